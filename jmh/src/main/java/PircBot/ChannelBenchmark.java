@@ -0,0 +1,46 @@
+package PircBot;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures taking the sorted list of users of a Channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+
+    @Param({"10", "1000"})
+    public int users;
+
+    private Channel _channel;
+
+    @Setup
+    public void setup() {
+        _channel = new Channel("#channel", "tmi.twitch.tv");
+        for (int i = 0; i < users; i++) {
+            _channel.addUser(new User("viewer" + i, "#channel"));
+        }
+    }
+
+    @Benchmark
+    public List<User> getUserlist() {
+        return _channel.getUserlist();
+    }
+
+}
@@ -0,0 +1,48 @@
+package PircBot;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures removing formatting and colours from a line of text, both from one
+ * that has them and from one that has none, which is most chat.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorsBenchmark {
+
+    @Param({"PLAIN", "FORMATTED"})
+    public String kind;
+
+    private String _text;
+
+    @Setup
+    public void setup() {
+        if (kind.equals("FORMATTED")) {
+            _text = Colors.BOLD + "hello" + Colors.NORMAL + " there, " + Colors.RED + "how" + Colors.NORMAL + " is "
+                    + Colors.UNDERLINE + "everyone" + Colors.NORMAL + " doing " + Colors.BLUE + ",01today?" + Colors.NORMAL;
+        } else {
+            _text = "hello there, how is everyone doing today?";
+        }
+    }
+
+    @Benchmark
+    public String removeFormattingAndColors() {
+        return Colors.removeFormattingAndColors(_text);
+    }
+
+}
@@ -0,0 +1,158 @@
+package PircBot;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connects thousands of PircBots to a LocalIrcServer over loopback sockets,
+ * and reports how long that took, how many threads and how much heap they
+ * cost, and how quickly generated chat reaches them. Like
+ * MembershipFootprint, this is a program of its own, run from the benchmarks
+ * jar:
+ * <pre>
+ * java -cp target/benchmarks.jar PircBot.ConnectionScaling [connections] [threads] [messagesPerSecond]
+ * </pre>
+ * The threads are "virtual" (the default), "platform" or "loop" for an
+ * IrcEventLoop. Virtual threads need Java 21 or later; on an older JVM the
+ * program says so and stops. The default of 10000 connections needs two file
+ * descriptors per connection, one for each end, so raise ulimit -n first.
+ * With platform threads, each PircBot has two threads and the server one
+ * more, so the limit on processes matters as well.
+ * <p>
+ * The bots are spread over 100 channels, and the server writes the given
+ * number of messages per second, 200 by default, spread over those channels.
+ * Each carries the time it was written, so the latency of every delivery is
+ * known.
+ */
+public final class ConnectionScaling {
+
+    private static final int CHANNELS = 100;
+    private static final int SECONDS = 10;
+    private static final int MAX_SAMPLES = 1 << 22;
+
+    private ConnectionScaling() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        String threads = args.length > 1 ? args[1] : "virtual";
+        int messagesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        ThreadFactory factory = null;
+        IrcEventLoop loop = null;
+        if (threads.equals("virtual")) {
+            factory = virtualThreadFactory();
+            if (factory == null) {
+                System.out.println("Virtual threads need Java 21 or later, this is " + System.getProperty("java.version") + ".");
+                return;
+            }
+        } else if (threads.equals("loop")) {
+            loop = new IrcEventLoop();
+        } else if (!threads.equals("platform")) {
+            throw new IllegalArgumentException("Unknown threads: " + threads);
+        }
+        long[] samples = new long[MAX_SAMPLES];
+        AtomicInteger sampleCount = new AtomicInteger();
+        LongAdder delivered = new LongAdder();
+        IrcListener listener = event -> {
+            String sent = event.getMessage().getTags().get("pirc-sent-ns", "");
+            if (!sent.isEmpty()) {
+                long latency = System.nanoTime() - Long.parseLong(sent);
+                delivered.increment();
+                int index = sampleCount.getAndIncrement();
+                if (index < MAX_SAMPLES) {
+                    samples[index] = latency;
+                }
+            }
+        };
+        try (LocalIrcServer server = new LocalIrcServer()) {
+            long heapBefore = usedHeap();
+            int threadsBefore = Thread.activeCount();
+            List<PircBot> bots = new ArrayList<>(connections);
+            long start = System.nanoTime();
+            ExecutorService pool = Executors.newFixedThreadPool(16);
+            List<Future<PircBot>> connecting = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                int n = i;
+                ThreadFactory botFactory = factory;
+                IrcEventLoop botLoop = loop;
+                connecting.add(pool.submit(() -> {
+                    PircBot bot = new PircBot() {
+                    };
+                    bot.setName("bot" + n);
+                    bot.setVerbose(false);
+                    bot.setThreadFactory(botFactory);
+                    if (botLoop != null) {
+                        bot.setEventLoop(botLoop);
+                    }
+                    bot.getListenerManager().addListener(listener, EventType.MESSAGE);
+                    bot.connect("127.0.0.1", server.getPort());
+                    bot.joinChannel("#load" + (n % CHANNELS));
+                    return bot;
+                }));
+            }
+            for (Future<PircBot> bot : connecting) {
+                bots.add(bot.get());
+            }
+            pool.shutdown();
+            long connectNanos = System.nanoTime() - start;
+            System.out.println(connections + " connections with " + threads + " threads in " + connectNanos / 1000000 + " ms");
+            System.out.println("Threads: " + (Thread.activeCount() - threadsBefore) + " more platform threads, of which the server has one per connection, "
+                    + ManagementFactory.getThreadMXBean().getPeakThreadCount() + " at the peak");
+            long heap = usedHeap() - heapBefore;
+            System.out.println("Heap: " + heap / (1024 * 1024) + " MB, " + heap / connections / 1024 + " kB per connection, counting the server");
+
+            server.startLoad(CHANNELS, 1000, messagesPerSecond);
+            Thread.sleep(SECONDS * 1000L);
+            server.stopLoad();
+            long expected = (long) messagesPerSecond * SECONDS * connections / CHANNELS;
+            System.out.println("Delivered " + delivered.sum() + " messages in " + SECONDS + " s, of about " + expected + " written");
+            int count = Math.min(sampleCount.get(), MAX_SAMPLES);
+            if (count > 0) {
+                long[] sorted = Arrays.copyOf(samples, count);
+                Arrays.sort(sorted);
+                System.out.println("Latency: p50 " + percentile(sorted, 0.5) + " us, p99 " + percentile(sorted, 0.99)
+                        + " us, p99.9 " + percentile(sorted, 0.999) + " us, max " + sorted[count - 1] / 1000 + " us");
+            }
+            for (PircBot bot : bots) {
+                bot.dispose();
+            }
+        } finally {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns Thread.ofVirtual().factory(), looked up by reflection as the
+     * library is built for Java 11, or null before Java 21.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[(int) Math.min(sorted.length - 1, (long) (sorted.length * fraction))] / 1000;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
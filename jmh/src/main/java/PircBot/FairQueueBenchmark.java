@@ -0,0 +1,85 @@
+package PircBot;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how long a line to a quiet channel waits behind a hot channel
+ * whose backlog is kept full. Each operation adds a line to the small channel
+ * and then sends lines, spending some CPU on each as writing it out would,
+ * topping the hot channel up after every one, until the small channel's line
+ * has gone. The distribution of the times, with its tail, is the figure of
+ * interest; it grows with the number of lines sent ahead of the small one.
+ * <p>
+ * QUEUE is the Queue, which shares the message lane fairly between targets.
+ * FIFO is a plain queue, as the Queue was before.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FairQueueBenchmark {
+
+    private static final String HOT = "PRIVMSG #hot :spam, spam, spam";
+    private static final String SMALL = "PRIVMSG #small :a reply";
+
+    @Param({"QUEUE", "FIFO"})
+    public String queue;
+
+    @Param({"100", "1000"})
+    public int backlog;
+
+    @Param({"200"})
+    public int sendTokens;
+
+    private Queue _queue;
+    private ArrayDeque<String> _fifo;
+
+    @Setup
+    public void setup() {
+        _queue = new Queue();
+        _fifo = new ArrayDeque<>();
+        for (int i = 0; i < backlog; i++) {
+            this.add(HOT);
+        }
+    }
+
+    private void add(String line) {
+        if (queue.equals("QUEUE")) {
+            _queue.add(line);
+        } else {
+            _fifo.addLast(line);
+        }
+    }
+
+    @Benchmark
+    public int smallChannel() {
+        this.add(SMALL);
+        int sent = 0;
+        String line;
+        do {
+            line = queue.equals("QUEUE") ? _queue.next() : _fifo.pollFirst();
+            Blackhole.consumeCPU(sendTokens);
+            sent++;
+            if (line != SMALL) {
+                this.add(HOT);
+            }
+        } while (line != SMALL);
+        return sent;
+    }
+
+}
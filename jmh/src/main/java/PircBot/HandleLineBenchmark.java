@@ -0,0 +1,66 @@
+package PircBot;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures handling a PRIVMSG from the server in a PircBot, from the raw line
+ * to the listener, with and without the tags Twitch sends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandleLineBenchmark {
+
+    private static final int VIEWERS = 64;
+
+    @Param({"PLAIN", "TAGGED"})
+    public String kind;
+
+    private PircBot _bot;
+    private String[] _lines;
+    private int _next = 0;
+    private long _handled = 0;
+
+    @Setup
+    public void setup() {
+        _bot = new PircBot() {
+        };
+        _bot.setName("bench");
+        _bot.setVerbose(false);
+        _bot.getListenerManager().addListener(event -> _handled++, "#channel", EventType.MESSAGE);
+        _bot.joinChannel("#channel");
+        _lines = new String[VIEWERS];
+        for (int i = 0; i < VIEWERS; i++) {
+            String prefix = ":viewer" + i + "!viewer" + i + "@viewer" + i + ".tmi.twitch.tv PRIVMSG #channel :hello there, how is everyone doing today?";
+            if (kind.equals("TAGGED")) {
+                _lines[i] = "@badge-info=subscriber/8;badges=subscriber/6,premium/1;color=#1E90FF;display-name=Viewer" + i
+                        + ";emotes=;first-msg=0;flags=;id=b34ccfc7-4977-403a-8a94-" + i + ";mod=0;returning-chatter=0;"
+                        + "room-id=12345678;subscriber=1;tmi-sent-ts=1700000000000;turbo=0;user-id=" + (1000 + i) + ";user-type= " + prefix;
+            } else {
+                _lines[i] = prefix;
+            }
+        }
+    }
+
+    @Benchmark
+    public long handleLine() {
+        _bot.handleLine(_lines[_next]);
+        _next = (_next + 1) % VIEWERS;
+        return _handled;
+    }
+
+}
@@ -0,0 +1,67 @@
+package PircBot;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing a line from the server into an IrcMessage, with and
+ * without looking at its tags.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IrcMessageBenchmark {
+
+    private static final String PRIVMSG = "@badge-info=subscriber/8;badges=subscriber/6,premium/1;client-nonce=5e5b0f5b;color=#1E90FF;"
+            + "display-name=Viewer;emotes=;first-msg=0;flags=;id=b34ccfc7-4977-403a-8a94-33c6bac34fb8;mod=0;returning-chatter=0;"
+            + "room-id=12345678;subscriber=1;tmi-sent-ts=1700000000000;turbo=0;user-id=87654321;user-type= "
+            + ":viewer!viewer@viewer.tmi.twitch.tv PRIVMSG #channel :hello there, how is everyone doing today?";
+    private static final String JOIN = ":viewer!viewer@viewer.tmi.twitch.tv JOIN #channel";
+    private static final String PING = "PING :tmi.twitch.tv";
+
+    @Param({"PRIVMSG", "JOIN", "PING"})
+    public String kind;
+
+    private String _line;
+
+    @Setup
+    public void setup() {
+        switch (kind) {
+            case "JOIN":
+                _line = JOIN;
+                break;
+            case "PING":
+                _line = PING;
+                break;
+            default:
+                _line = PRIVMSG;
+                break;
+        }
+    }
+
+    @Benchmark
+    public String parse() {
+        IrcMessage message = new IrcMessage(_line);
+        return message.getParam(message.getParamCount() - 1);
+    }
+
+    @Benchmark
+    public String parseWithTags() {
+        IrcMessage message = new IrcMessage(_line);
+        return message.getTags().get("display-name", message.getNick());
+    }
+
+}
@@ -0,0 +1,80 @@
+package PircBot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures splitting a read of server traffic into lines with a LineFramer,
+ * both when every line is decoded and when lines are only checked by their
+ * command on the raw bytes, as is done for lines that nothing wants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineFramerBenchmark {
+
+    private static final int LINES = 64;
+    private static final byte[] PRIVMSG = "PRIVMSG".getBytes(StandardCharsets.US_ASCII);
+
+    private LineFramer _framer;
+    private ByteBuffer _read;
+
+    @Setup
+    public void setup() {
+        StringBuilder traffic = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            if (i % 8 == 7) {
+                traffic.append(":viewer").append(i).append("!viewer").append(i).append("@viewer").append(i)
+                        .append(".tmi.twitch.tv JOIN #channel\r\n");
+            } else {
+                traffic.append("@badges=;color=#1E90FF;display-name=Viewer").append(i)
+                        .append(";id=b34ccfc7-4977-403a-8a94-").append(i).append(";mod=0;room-id=1;subscriber=0;user-id=")
+                        .append(i).append(" :viewer").append(i).append("!viewer").append(i).append("@viewer").append(i)
+                        .append(".tmi.twitch.tv PRIVMSG #channel :message number ").append(i).append(" éè\r\n");
+            }
+        }
+        byte[] bytes = traffic.toString().getBytes(StandardCharsets.UTF_8);
+        _read = ByteBuffer.allocate(bytes.length);
+        _read.put(bytes);
+        _framer = new LineFramer(StandardCharsets.UTF_8, 8192);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void frameAndDecode(Blackhole blackhole) {
+        _read.flip();
+        _framer.feed(_read);
+        while (_framer.next()) {
+            blackhole.consume(_framer.line());
+        }
+        _read.limit(_read.capacity());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void frameOnly(Blackhole blackhole) {
+        _read.flip();
+        _framer.feed(_read);
+        while (_framer.next()) {
+            blackhole.consume(_framer.isCommand(PRIVMSG));
+        }
+        _read.limit(_read.capacity());
+    }
+
+}
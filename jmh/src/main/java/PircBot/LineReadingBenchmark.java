@@ -0,0 +1,107 @@
+package PircBot;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures how many megabytes of server traffic per second are split into
+ * lines, from a stream as a connection reads them: by a BufferedReader over
+ * an InputStreamReader, as the InputThread used to, and by a LineFramer,
+ * with every line decoded or with lines only checked by their command on the
+ * raw bytes. The rate is the megabytes counter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineReadingBenchmark {
+
+    private static final int BYTES = 1 << 20;
+    private static final byte[] PRIVMSG = "PRIVMSG".getBytes(StandardCharsets.US_ASCII);
+
+    private byte[] _traffic;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+        }
+
+    }
+
+    @Setup
+    public void setup() {
+        StringBuilder traffic = new StringBuilder();
+        for (int i = 0; traffic.length() < BYTES; i++) {
+            if (i % 8 == 7) {
+                traffic.append(":viewer").append(i).append("!viewer").append(i).append("@viewer").append(i)
+                        .append(".tmi.twitch.tv JOIN #channel\r\n");
+            } else {
+                traffic.append("@badges=;color=#1E90FF;display-name=Viewer").append(i)
+                        .append(";id=b34ccfc7-4977-403a-8a94-").append(i).append(";mod=0;room-id=1;subscriber=0;user-id=")
+                        .append(i).append(" :viewer").append(i).append("!viewer").append(i).append("@viewer").append(i)
+                        .append(".tmi.twitch.tv PRIVMSG #channel :message number ").append(i).append(" éè\r\n");
+            }
+        }
+        _traffic = traffic.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void bufferedReader(Counters counters, Blackhole blackhole) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(_traffic), StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            blackhole.consume(line);
+        }
+        counters.megabytes += _traffic.length / 1e6;
+    }
+
+    @Benchmark
+    public void lineFramer(Counters counters, Blackhole blackhole) throws IOException {
+        LineFramer framer = new LineFramer(StandardCharsets.UTF_8, 8192);
+        ByteArrayInputStream in = new ByteArrayInputStream(_traffic);
+        while (framer.read(in) >= 0) {
+            while (framer.next()) {
+                blackhole.consume(framer.line());
+            }
+        }
+        counters.megabytes += _traffic.length / 1e6;
+    }
+
+    @Benchmark
+    public void lineFramerCommandOnly(Counters counters, Blackhole blackhole) throws IOException {
+        LineFramer framer = new LineFramer(StandardCharsets.UTF_8, 8192);
+        ByteArrayInputStream in = new ByteArrayInputStream(_traffic);
+        while (framer.read(in) >= 0) {
+            while (framer.next()) {
+                blackhole.consume(framer.isCommand(PRIVMSG));
+            }
+        }
+        counters.megabytes += _traffic.length / 1e6;
+    }
+
+}
@@ -0,0 +1,75 @@
+package PircBot;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how many queued messages per second a PircBot gets to a
+ * LocalIrcServer over a loopback socket, with no message delay. With a
+ * maxBatchBytes of 0 every line is flushed on its own; otherwise the lines
+ * waiting in the queue go out together.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackSendBenchmark {
+
+    private static final int LINES = 1000;
+
+    @Param({"0", "8192"})
+    public int maxBatchBytes;
+
+    private LocalIrcServer _server;
+    private PircBot _bot;
+
+    @Setup
+    public void setup() throws IOException, IrcException {
+        _server = new LocalIrcServer();
+        _server.setFloodLimit(Integer.MAX_VALUE, 1);
+        _bot = new PircBot() {
+        };
+        _bot.setName("bench");
+        _bot.setVerbose(false);
+        _bot.setMessageDelay(0);
+        _bot.setMaxBatchBytes(maxBatchBytes);
+        _bot.connect("127.0.0.1", _server.getPort());
+    }
+
+    @TearDown
+    public void tearDown() {
+        _bot.dispose();
+        _server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long send() {
+        long target = _server.getReceivedMessageCount() + LINES;
+        for (int i = 0; i < LINES; i++) {
+            _bot.sendMessage("#channel", "message number " + i);
+        }
+        long received;
+        while ((received = _server.getReceivedMessageCount()) < target) {
+            LockSupport.parkNanos(50000);
+        }
+        return received;
+    }
+
+}
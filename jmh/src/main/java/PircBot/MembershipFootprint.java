@@ -0,0 +1,84 @@
+package PircBot;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap a PircBot keeps for its channel members: a number of
+ * users who have joined a number of channels, each of whom has sent one
+ * tagged PRIVMSG to every channel. A heap size is not something JMH can measure, so this is a
+ * program of its own, run from the benchmarks jar:
+ * <pre>
+ * java -Xmx3g -cp target/benchmarks.jar PircBot.MembershipFootprint [users] [channels]
+ * </pre>
+ * The default is 20000 users in 50 channels, a million memberships. The heap
+ * retained is the heap in use after a full collection, less what was in use
+ * before, and is printed for two layouts. With the shared layout, the User of
+ * each channel shares the UserIdentity of the user, as a PircBot does. With
+ * the unshared layout, every User is given an identity of its own, filled
+ * from the tags of its channel, as when all of a user's values were kept in
+ * each channel.
+ */
+public final class MembershipFootprint {
+
+    private MembershipFootprint() {
+    }
+
+    public static void main(String[] args) {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int channels = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        measure(users, channels, true);
+        measure(users, channels, false);
+    }
+
+    private static void measure(int users, int channels, boolean shared) {
+        long memberships = (long) users * channels;
+        long before = usedHeap();
+        PircBot bot = fill(users, channels, shared);
+        long retained = usedHeap() - before;
+        System.out.println((shared ? "Shared:   " : "Unshared: ") + memberships + " memberships in "
+                + bot.getChannels().length + " channels, " + retained / (1024 * 1024) + " MB, "
+                + retained / memberships + " bytes per membership");
+    }
+
+    private static PircBot fill(int users, int channels, boolean shared) {
+        PircBot bot = new PircBot() {
+        };
+        bot.setName("bench");
+        bot.setVerbose(false);
+        bot.setTrackUserActivity(true);
+        // Wanting the messages makes the tags of each line go to the User.
+        bot.getListenerManager().addListener(event -> {
+        }, EventType.MESSAGE);
+        for (int c = 0; c < channels; c++) {
+            bot.joinChannel("#channel" + c);
+        }
+        for (int u = 0; u < users; u++) {
+            String prefix = ":viewer" + u + "!viewer" + u + "@viewer" + u + ".tmi.twitch.tv ";
+            for (int c = 0; c < channels; c++) {
+                bot.handleLine(prefix + "JOIN #channel" + c);
+                bot.handleLine("@badge-info=subscriber/8;badges=subscriber/6,premium/1;color=#1E90FF;display-name=Viewer" + u
+                        + ";emotes=;first-msg=0;flags=;id=b34ccfc7-4977-403a-8a94-" + u + "-" + c + ";mod=0;returning-chatter=0;"
+                        + "room-id=" + (c + 1) + ";subscriber=1;tmi-sent-ts=1700000000000;turbo=0;user-id=" + (1000 + u) + ";user-type= "
+                        + prefix + "PRIVMSG #channel" + c + " :hello there");
+            }
+        }
+        if (!shared) {
+            for (int c = 0; c < channels; c++) {
+                for (User user : bot.getChannel("#channel" + c)) {
+                    UserIdentity identity = new UserIdentity(user.getNick());
+                    identity.update(user.getTagSnapshot());
+                    user.setIdentity(identity);
+                }
+            }
+        }
+        return bot;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+}
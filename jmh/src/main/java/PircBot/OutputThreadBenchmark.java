@@ -0,0 +1,51 @@
+package PircBot;
+
+import java.io.BufferedWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures writing a line to the server with OutputThread.sendRawLine, which
+ * flushes after every line, against a stream that throws the bytes away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputThreadBenchmark {
+
+    @Param({"PRIVMSG #channel :hello there, how is everyone doing today?"})
+    public String line;
+
+    private PircBot _bot;
+    private BufferedWriter _writer;
+
+    @Setup
+    public void setup() {
+        _bot = new PircBot() {
+        };
+        _bot.setVerbose(false);
+        _writer = new BufferedWriter(new OutputStreamWriter(OutputStream.nullOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public void sendRawLine() {
+        OutputThread.sendRawLine(_bot, _writer, line);
+    }
+
+}
@@ -0,0 +1,98 @@
+package PircBot;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures adding a line to the outgoing Queue and taking the next one, with
+ * a backlog of messages spread over a number of targets. One thread adds
+ * lines while another takes them, as the OutputThread does while handlers are
+ * sending, so the lock of the Queue is contended.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+
+    @Param({"1", "100"})
+    public int targets;
+
+    @Param({"1000"})
+    public int backlog;
+
+    private Queue _queue;
+    private String[] _lines;
+    private int _next = 0;
+
+    @Setup
+    public void setup() {
+        _queue = new Queue();
+        _lines = new String[targets * 16];
+        for (int i = 0; i < _lines.length; i++) {
+            _lines[i] = "PRIVMSG #channel" + (i % targets) + " :message " + i;
+        }
+        for (int i = 0; i < backlog; i++) {
+            _queue.add(this.nextLine());
+        }
+    }
+
+    private String nextLine() {
+        String line = _lines[_next];
+        _next = (_next + 1) % _lines.length;
+        return line;
+    }
+
+    @Benchmark
+    @Group("addAndNext")
+    @GroupThreads(1)
+    public void add() {
+        _queue.add(this.nextLine());
+    }
+
+    @Benchmark
+    @Group("addAndNext")
+    @GroupThreads(1)
+    public String next() throws InterruptedException {
+        // Does not wait, so the thread can stop at the end of an iteration.
+        return _queue.poll(0);
+    }
+
+    @Benchmark
+    @Group("addAndNextAllowed")
+    @GroupThreads(1)
+    public void addAllowed() {
+        _queue.add(this.nextLine());
+    }
+
+    @Benchmark
+    @Group("addAndNextAllowed")
+    @GroupThreads(1)
+    public String nextAllowed() throws InterruptedException {
+        return _queue.poll(0, line -> 0);
+    }
+
+    @Benchmark
+    @Group("addControlAndNext")
+    @GroupThreads(1)
+    public String addControlAndNext() {
+        // A PONG overtakes the whole backlog.
+        _queue.add("PONG :tmi.twitch.tv");
+        return _queue.next();
+    }
+
+}
@@ -0,0 +1,118 @@
+package PircBot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the whole of handling a recording of Twitch traffic with
+ * TrafficReplay: decoding, parsing, looking up the command, keeping the
+ * channels and users up to date, and dispatching events. The recording is
+ * made up front with a TrafficRecorder, as the same mix every time: mostly
+ * tagged PRIVMSG lines in 20 channels from a few thousand users, with JOIN
+ * and PART, USERNOTICE, CLEARCHAT, CLEARMSG, ROOMSTATE, USERSTATE, NOTICE
+ * and PING in between.
+ * <p>
+ * With listeners NONE, nothing wants any event, so most lines are skipped
+ * once the command is known. With ALL, there is a listener for every event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TrafficReplayBenchmark {
+
+    private static final int LINES = 10000;
+    private static final int CHANNELS = 20;
+    private static final int USERS = 2000;
+
+    @Param({"NONE", "ALL"})
+    public String listeners;
+
+    private File _recording;
+    private PircBot _bot;
+    private long _events = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        _recording = File.createTempFile("twitch", ".cap");
+        try (TrafficRecorder recorder = new TrafficRecorder(_recording)) {
+            Random random = new Random(42);
+            for (int i = 0; i < LINES; i++) {
+                recorder.record(line(random, i));
+            }
+        }
+        _bot = new PircBot() {
+        };
+        _bot.setName("bench");
+        _bot.setVerbose(false);
+        for (int c = 0; c < CHANNELS; c++) {
+            _bot.joinChannel("#channel" + c);
+        }
+        if (listeners.equals("ALL")) {
+            _bot.getListenerManager().addListener(event -> _events++, EventType.values());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _recording.delete();
+    }
+
+    /**
+     * Returns the next line of the mix.
+     */
+    private static String line(Random random, int i) {
+        int u = random.nextInt(USERS);
+        String channel = "#channel" + random.nextInt(CHANNELS);
+        String prefix = ":viewer" + u + "!viewer" + u + "@viewer" + u + ".tmi.twitch.tv ";
+        String tags = "@badge-info=;badges=;color=#1E90FF;display-name=Viewer" + u + ";emotes=;flags=;id=b34ccfc7-4977-403a-8a94-" + i
+                + ";mod=0;room-id=" + channel.length() + ";subscriber=0;tmi-sent-ts=1700000000000;turbo=0;user-id=" + (1000 + u) + ";user-type= ";
+        int kind = random.nextInt(100);
+        if (kind < 80) {
+            return tags + prefix + "PRIVMSG " + channel + " :message number " + i + " Kappa";
+        } else if (kind < 86) {
+            return prefix + "JOIN " + channel;
+        } else if (kind < 91) {
+            return prefix + "PART " + channel;
+        } else if (kind < 93) {
+            return tags.replace("@badge-info", "@msg-id=sub;msg-param-cumulative-months=3;badge-info")
+                    + ":tmi.twitch.tv USERNOTICE " + channel + " :great stream";
+        } else if (kind < 94) {
+            return "@ban-duration=600;room-id=1;target-user-id=" + (1000 + u) + ";tmi-sent-ts=1700000000000 :tmi.twitch.tv CLEARCHAT " + channel + " :viewer" + u;
+        } else if (kind < 95) {
+            return "@login=viewer" + u + ";target-msg-id=b34ccfc7-4977-403a-8a94-" + (i - 1) + " :tmi.twitch.tv CLEARMSG " + channel + " :spam";
+        } else if (kind < 96) {
+            return "@emote-only=0;followers-only=-1;r9k=0;room-id=1;slow=0;subs-only=0 :tmi.twitch.tv ROOMSTATE " + channel;
+        } else if (kind < 97) {
+            return "@badge-info=;badges=;color=;display-name=bench;emote-sets=0;mod=0;subscriber=0;user-type= :tmi.twitch.tv USERSTATE " + channel;
+        } else if (kind < 99) {
+            return "@msg-id=subs_on :tmi.twitch.tv NOTICE " + channel + " :This room is now in subscribers-only mode.";
+        }
+        return "PING :tmi.twitch.tv";
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long replay() throws IOException, InterruptedException {
+        TrafficReplay.replay(_recording, _bot, TrafficReplay.AS_FAST_AS_POSSIBLE);
+        return _events;
+    }
+
+}
@@ -24,6 +24,10 @@ public class Channel implements Iterable<User> {
     private long roomId = -1;
     private boolean subsOnly = false;
     private boolean emoteOnly = false;
+    private volatile int weight = 1;
+    // Held by the ChannelRegistry while it changes the users. The Channel
+    // itself is not used, as application code may synchronize on it.
+    final Object userLock = new Object();
 
     /**
      * Constructs a new Channel Object with only the name and server. This
@@ -135,7 +139,7 @@ public class Channel implements Iterable<User> {
     }
 
     public boolean containsUser(String nick) {
-        return users.containsKey(nick);
+        return users.containsKey(nick.toLowerCase());
     }
 
     public boolean containsUser(User user) {
@@ -238,6 +242,29 @@ public class Channel implements Iterable<User> {
         this.slow = slow;
     }
 
+    /**
+     * Returns the share of the outgoing message queue given to this channel.
+     *
+     * @return Weight of the channel, 1 by default.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Sets the share of the outgoing message queue given to this channel. When
+     * several channels have messages waiting, a channel with a weight of 3
+     * gets three messages sent for every one of a channel with a weight of 1.
+     *
+     * @param weight Weight of the channel, at least 1.
+     */
+    public void setWeight(int weight) {
+        if (weight < 1) {
+            throw new IllegalArgumentException("Weight must be at least 1.");
+        }
+        this.weight = weight;
+    }
+
     /**
      * Returns the status of Followers Only on the channel.
      *
@@ -385,7 +412,6 @@ public class Channel implements Iterable<User> {
     @Override
     public int hashCode() {
         int hash = 3;
-        hash = 97 * hash + Objects.hashCode(this.users);
         hash = 97 * hash + Objects.hashCode(this.name);
         hash = 97 * hash + Objects.hashCode(this.server);
         return hash;
@@ -0,0 +1,286 @@
+package PircBot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the channels a PircBot is in and of the users in each of
+ * them.
+ * <p>
+ * Reads never take a lock: the channels are kept in a ConcurrentHashMap and
+ * every Channel keeps its users in a ConcurrentHashMap of its own, so
+ * application threads calling getChannel or getUsers never hold up the
+ * InputThread. Changes to the users of a channel are made while holding the
+ * nick's entry in the index and then a lock of that Channel, always in that
+ * order. Changes of different nicks in different channels therefore do not
+ * wait on each other, and a change is never lost to a concurrent change of
+ * the same channel or nick. The Channel lock is private to PircBot, so an
+ * application that synchronizes on a Channel cannot hold up the InputThread.
+ * <p>
+ * Every user is also indexed by nick, so that a QUIT or NICK only has to
+ * visit the channels the user is actually in rather than every channel we
+ * have joined. The index also holds the single UserIdentity of each user,
+ * which the User objects of all their channels share, so memory grows with
+ * the number of distinct users rather than with users times channels.
+ * <p>
+ * Channel names are not case sensitive.
+ */
+final class ChannelRegistry {
+
+    private final ConcurrentHashMap<String, Channel> _channels = new ConcurrentHashMap<>();
+    // Lowercased nick to the identity of the user and the channels they are in.
+    private final ConcurrentHashMap<String, Member> _nicks = new ConcurrentHashMap<>();
+
+    private static final class Member {
+
+        final UserIdentity identity;
+        final Set<Channel> channels = ConcurrentHashMap.newKeySet();
+
+        Member(UserIdentity identity) {
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * Returns a channel that we are in.
+     *
+     * @param channel Name of the channel, prefixed with #
+     * @return The Channel, or null if we are not in it
+     */
+    Channel get(String channel) {
+        return _channels.get(channel.toLowerCase());
+    }
+
+    /**
+     * Adds a channel, replacing any channel of the same name.
+     *
+     * @param channel Channel to add
+     */
+    void put(Channel channel) {
+        Channel old = _channels.put(channel.getChannelName().toLowerCase(), channel);
+        if (old != null && old != channel) {
+            unindex(old);
+        }
+    }
+
+    /**
+     * Removes a channel and all of its users.
+     *
+     * @param channel Name of the channel
+     * @return The Channel that was removed, or null if we were not in it
+     */
+    Channel remove(String channel) {
+        Channel chan = _channels.remove(channel.toLowerCase());
+        if (chan != null) {
+            unindex(chan);
+        }
+        return chan;
+    }
+
+    /**
+     * Forgets about every channel.
+     */
+    void clear() {
+        _channels.clear();
+        _nicks.clear();
+    }
+
+    /**
+     * Returns the names of all channels that we are in.
+     *
+     * @return Array of channel names
+     */
+    String[] getNames() {
+        ArrayList<String> names = new ArrayList<>(_channels.size());
+        for (Channel el : _channels.values()) {
+            names.add(el.getChannelName());
+        }
+        return names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Returns a live view of the channels that we are in.
+     *
+     * @return Collection of Channels
+     */
+    Collection<Channel> getChannels() {
+        return _channels.values();
+    }
+
+    /**
+     * Returns the channels that a user is in.
+     *
+     * @param nick Nick of the user
+     * @return Unmodifiable view of the channels, which is empty if the user is
+     * not in any channel we know about
+     */
+    Set<Channel> getChannelsOf(String nick) {
+        Member member = _nicks.get(nick.toLowerCase());
+        return member == null ? Collections.<Channel>emptySet() : Collections.unmodifiableSet(member.channels);
+    }
+
+    /**
+     * Returns the shared identity of a user.
+     *
+     * @param nick Nick of the user
+     * @return The identity, or null if the user is not in any channel we know
+     * about
+     */
+    UserIdentity getIdentity(String nick) {
+        Member member = _nicks.get(nick.toLowerCase());
+        return member == null ? null : member.identity;
+    }
+
+    /**
+     * Returns a user of a channel.
+     *
+     * @param channel Name of the channel
+     * @param nick Nick of the user
+     * @return The User, or null if either the channel or the user is unknown
+     */
+    User getUser(String channel, String nick) {
+        Channel chan = get(channel);
+        return chan == null ? null : chan.getUser(nick);
+    }
+
+    /**
+     * Adds a user to a channel, replacing the existing entry if there is one.
+     * If the user is already in another channel, the new User is made to
+     * share the identity of the existing ones.
+     *
+     * @param channel Name of the channel
+     * @param user User to add
+     * @return True if the user was added, false if we are not in the channel
+     */
+    boolean addUser(String channel, User user) {
+        Channel chan = get(channel);
+        if (chan == null) {
+            return false;
+        }
+        _nicks.compute(user.getNick().toLowerCase(), (key, member) -> {
+            if (member == null) {
+                member = new Member(user.getIdentity());
+            } else if (user.getIdentity() != member.identity) {
+                user.setIdentity(member.identity);
+            }
+            synchronized (chan.userLock) {
+                member.channels.add(chan);
+                chan.addUser(user);
+            }
+            return member;
+        });
+        return true;
+    }
+
+    /**
+     * Removes a user from a channel.
+     *
+     * @param channel Name of the channel
+     * @param nick Nick of the user
+     * @return True if we are in the channel, false otherwise
+     */
+    boolean removeUser(String channel, String nick) {
+        Channel chan = get(channel);
+        if (chan == null) {
+            return false;
+        }
+        _nicks.compute(nick.toLowerCase(), (key, member) -> {
+            synchronized (chan.userLock) {
+                chan.removeUser(nick);
+            }
+            if (member == null) {
+                return null;
+            }
+            member.channels.remove(chan);
+            return member.channels.isEmpty() ? null : member;
+        });
+        return true;
+    }
+
+    /**
+     * Removes a user from every channel, e.g. when they QUIT.
+     *
+     * @param nick Nick of the user
+     */
+    void removeUser(String nick) {
+        _nicks.computeIfPresent(nick.toLowerCase(), (key, member) -> {
+            for (Channel chan : member.channels) {
+                synchronized (chan.userLock) {
+                    chan.removeUser(nick);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Renames a user in every channel they are in, e.g. on NICK. The shared
+     * identity is renamed once, and each channel only has to file the user
+     * under the new nick.
+     * <p>
+     * The channels are changed while the old nick's entry in the index is
+     * held, so a JOIN of someone else under the old nick waits until the user
+     * is filed under the new one. Should the new nick be in a channel already,
+     * the two entries are merged and the renamed user takes on the identity
+     * of the existing one.
+     *
+     * @param oldNick Current nick of the user
+     * @param newNick New nick of the user
+     */
+    void renameUser(String oldNick, String newNick) {
+        Member[] renamed = new Member[1];
+        _nicks.computeIfPresent(oldNick.toLowerCase(), (key, member) -> {
+            member.identity.nick = newNick;
+            for (Channel chan : member.channels) {
+                synchronized (chan.userLock) {
+                    User user = chan.getUser(oldNick);
+                    if (user == null) {
+                        continue;
+                    }
+                    chan.removeUser(oldNick);
+                    chan.addUser(user);
+                }
+            }
+            renamed[0] = member;
+            return null;
+        });
+        if (renamed[0] == null) {
+            return;
+        }
+        Member member = renamed[0];
+        _nicks.compute(newNick.toLowerCase(), (key, existing) -> {
+            Member target = existing != null ? existing : new Member(member.identity);
+            for (Channel chan : member.channels) {
+                synchronized (chan.userLock) {
+                    // The user may have parted since they were renamed.
+                    User user = chan.getUser(newNick);
+                    if (user == null) {
+                        continue;
+                    }
+                    if (user.getIdentity() != target.identity) {
+                        user.setIdentity(target.identity);
+                    }
+                    target.channels.add(chan);
+                }
+            }
+            return target.channels.isEmpty() ? null : target;
+        });
+    }
+
+    /**
+     * Removes every user of a channel that is no longer tracked from the nick
+     * index.
+     */
+    private void unindex(Channel chan) {
+        for (User user : chan.getUserlist()) {
+            _nicks.computeIfPresent(user.getNick().toLowerCase(), (key, member) -> {
+                member.channels.remove(chan);
+                return member.channels.isEmpty() ? null : member;
+            });
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package PircBot;
+
+/**
+ * Handles a command that PircBot does not know about itself, such as a
+ * command specific to a server or a numeric reply that needs more than
+ * onServerResponse. A CommandHandler is set with
+ * {@link PircBot#setCommandHandler(String, CommandHandler)}.
+ * <p>
+ * Handlers are called on the thread that reads from the server, before the
+ * next line is read, so they may keep track of state of their own but should
+ * not block.
+ */
+public interface CommandHandler {
+
+    /**
+     * Handles a line of the command this handler was set for.
+     *
+     * @param bot The PircBot that received the line
+     * @param message The line
+     */
+    void handleCommand(PircBot bot, IrcMessage message);
+
+}
@@ -106,12 +106,14 @@ public class DccFileTransfer {
      * Receive the file in a new thread.
      */
     void doReceive(final File file, final boolean resume) {
-        new Thread() {
+        _bot.newThread(new Runnable() {
             @Override
             public void run() {
                 
                 BufferedOutputStream foutput = null;
                 Exception exception = null;
+                // Progress when the transfer got underway, for the metrics.
+                long initial = -1;
                 
                 try {
         
@@ -123,6 +125,7 @@ public class DccFileTransfer {
                     _socket = new Socket(ipStr, _port);
                     _socket.setSoTimeout(30*1000);
                     _startTime = System.currentTimeMillis();
+                    initial = _progress;
                     
                     // No longer possible to resume this transfer once it's underway.
                     _manager.removeAwaitingResume(DccFileTransfer.this);
@@ -163,9 +166,12 @@ public class DccFileTransfer {
                     }
                 }
                 
+                if (initial >= 0) {
+                    _bot.getMetrics().dccTransferFinished(true, _progress - initial, System.currentTimeMillis() - _startTime);
+                }
                 _bot.onFileTransferFinished(DccFileTransfer.this, exception);
             }
-        }.start();
+        }, "Pirc-DccReceive-" + _nick).start();
     }
 
 
@@ -173,12 +179,14 @@ public class DccFileTransfer {
      * Method to send the file inside a new thread.
      */
     void doSend(final boolean allowResume) {
-        new Thread() {
+        _bot.newThread(new Runnable() {
             @Override
             public void run() {
                 
                 BufferedInputStream finput = null;
                 Exception exception = null;
+                // Progress when the transfer got underway, for the metrics.
+                long initial = -1;
                 
                 try {
                     
@@ -231,6 +239,7 @@ public class DccFileTransfer {
                     _socket = ss.accept();
                     _socket.setSoTimeout(30000);
                     _startTime = System.currentTimeMillis();
+                    initial = _progress;
 
                     // No longer possible to resume this transfer once it's underway.
                     if (allowResume) {
@@ -276,9 +285,12 @@ public class DccFileTransfer {
                     }
                 }
                 
+                if (initial >= 0) {
+                    _bot.getMetrics().dccTransferFinished(false, _progress - initial, System.currentTimeMillis() - _startTime);
+                }
                 _bot.onFileTransferFinished(DccFileTransfer.this, exception);
             }
-        }.start();
+        }, "Pirc-DccSend-" + _nick).start();
     }
     
     
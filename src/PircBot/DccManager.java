@@ -99,12 +99,12 @@ public class DccManager {
                 long address = Long.parseLong(tokenizer.nextToken());
                 int port = Integer.parseInt(tokenizer.nextToken());
                 final DccChat chat = new DccChat(_bot, nick, login, hostname, address, port);
-                new Thread() {
+                _bot.newThread(new Runnable() {
                     @Override
                     public void run() {
                         _bot.onIncomingChatRequest(chat);
                     }
-                }.start();
+                }, "Pirc-DccChat-" + nick).start();
                 break;
             }
             default:
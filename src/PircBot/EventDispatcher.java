@@ -0,0 +1,339 @@
+package PircBot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of threads that call the onXxx methods of one or more PircBots, so
+ * that a slow handler does not hold up the thread that reads from the server.
+ * <p>
+ * Without an EventDispatcher, a PircBot calls its onXxx methods on the
+ * thread that reads from the server, and nothing else is read until they
+ * return. With one, the reading thread only parses each line and updates the
+ * channels and users, then hands the onXxx call to the dispatcher and goes
+ * back to reading.
+ * <p>
+ * Events are spread over a number of lanes, each of which is drained by a
+ * thread of its own. Channels are hashed onto the channel lanes by name, so
+ * events of the same channel of the same PircBot are handled one at a time
+ * and in the order they arrived, while different channels are handled in
+ * parallel. Events that do not belong to a channel, such as private
+ * messages, whispers and server numerics, go to a lane of their own, so a
+ * busy channel never holds them up. There is no ordering between lanes.
+ * <p>
+ * Every lane has a bounded buffer. When the buffer of a lane is full, the
+ * OverflowPolicy decides what happens to a new event. Note that the channels
+ * and users seen by a handler are those of the moment it runs, which may
+ * already reflect lines that arrived after its event.
+ * <pre>
+ * EventDispatcher dispatcher = new EventDispatcher(4, 8192, EventDispatcher.OverflowPolicy.DROP_OLDEST);
+ * bot.setEventDispatcher(dispatcher);
+ * bot.connect("irc.chat.twitch.tv");
+ * </pre>
+ */
+public final class EventDispatcher {
+
+    /**
+     * What to do with an event when the buffer it should go to is full.
+     */
+    public enum OverflowPolicy {
+
+        /**
+         * Wait until there is room. This never loses an event, but holds up
+         * the reading thread just like a slow handler would.
+         */
+        BLOCK,
+        /**
+         * Throw away the oldest event in the buffer to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Throw away the new event.
+         */
+        DROP_NEWEST
+    }
+
+    // The channel lanes, followed by the lane for everything else.
+    private final Worker[] _workers;
+    private final OverflowPolicy _policy;
+    private final AtomicLong _dispatched = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _totalLag = new AtomicLong();
+    private final AtomicLong _maxLag = new AtomicLong();
+    private volatile long _lastLag = 0;
+
+    /**
+     * Constructs an EventDispatcher with one channel lane per processor, room
+     * for 1024 waiting events per lane, and the BLOCK policy.
+     */
+    public EventDispatcher() {
+        this(Runtime.getRuntime().availableProcessors(), 1024 * (Runtime.getRuntime().availableProcessors() + 1), OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs an EventDispatcher and starts its threads.
+     *
+     * @param lanes Number of lanes for channel events, each with a thread
+     * that calls the handlers. There is always one more lane and thread for
+     * events that do not belong to a channel.
+     * @param capacity Total number of events that may wait to be handled,
+     * which is shared out evenly between all lanes
+     * @param policy What to do with an event when its buffer is full
+     */
+    public EventDispatcher(int lanes, int capacity, OverflowPolicy policy) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("An EventDispatcher needs at least one channel lane.");
+        }
+        if (capacity < lanes + 1) {
+            throw new IllegalArgumentException("Cannot have less than one event per lane.");
+        }
+        if (policy == null) {
+            throw new NullPointerException("Cannot have a null OverflowPolicy.");
+        }
+        _policy = policy;
+        _workers = new Worker[lanes + 1];
+        for (int i = 0; i < _workers.length; i++) {
+            _workers[i] = new Worker((capacity + lanes) / (lanes + 1));
+        }
+        for (int i = 0; i < _workers.length; i++) {
+            String name = i < lanes ? "Pirc-Dispatch-" + i : "Pirc-Dispatch-Private";
+            Thread thread = new Thread(_workers[i], name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands an event to the lane that handles the given channel of the given
+     * PircBot.
+     *
+     * @param bot The PircBot the event belongs to
+     * @param channel Lowercased name of the channel, or an empty String if
+     * the event does not belong to a channel
+     * @param line The line that caused the event, for logging exceptions
+     * @param event Calls the onXxx method
+     */
+    void dispatch(PircBot bot, String channel, String line, Runnable event) {
+        _workers[laneOf(bot, channel)].add(new Event(bot, line, event));
+    }
+
+    private int laneOf(PircBot bot, String channel) {
+        int lanes = _workers.length - 1;
+        if (channel.isEmpty()) {
+            return lanes;
+        }
+        int hash = 31 * System.identityHashCode(bot) + channel.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, lanes);
+    }
+
+    /**
+     * Returns the number of lanes for channel events. There is one more lane
+     * for events that do not belong to a channel.
+     *
+     * @return Number of channel lanes
+     */
+    public int getLaneCount() {
+        return _workers.length - 1;
+    }
+
+    /**
+     * Returns the number of events that have been handed to a handler.
+     *
+     * @return Number of events handled
+     */
+    public long getDispatchedCount() {
+        return _dispatched.get();
+    }
+
+    /**
+     * Returns the number of events that were thrown away because a buffer
+     * was full.
+     *
+     * @return Number of events dropped
+     */
+    public long getDroppedCount() {
+        return _dropped.get();
+    }
+
+    /**
+     * Returns the number of events waiting to be handled.
+     *
+     * @return Number of waiting events
+     */
+    public int getPendingCount() {
+        int count = 0;
+        for (Worker worker : _workers) {
+            count += worker._count;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of events of a channel lane waiting to be handled,
+     * which shows if a few busy channels are keeping one lane behind.
+     *
+     * @param lane Index of the channel lane, or getLaneCount() for the lane
+     * of events that do not belong to a channel
+     * @return Number of waiting events of the lane
+     */
+    public int getPendingCount(int lane) {
+        return _workers[lane]._count;
+    }
+
+    /**
+     * Returns how long the most recently handled event waited between being
+     * read and being handed to its handler.
+     *
+     * @param unit Unit of the result
+     * @return The latest dispatch lag
+     */
+    public long getLag(TimeUnit unit) {
+        return unit.convert(_lastLag, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the longest time that any event waited to be handled.
+     *
+     * @param unit Unit of the result
+     * @return The maximum dispatch lag
+     */
+    public long getMaxLag(TimeUnit unit) {
+        return unit.convert(_maxLag.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns the average time that events waited to be handled.
+     *
+     * @param unit Unit of the result
+     * @return The average dispatch lag, or 0 if no event was handled yet
+     */
+    public long getAverageLag(TimeUnit unit) {
+        long count = _dispatched.get();
+        return count == 0 ? 0 : unit.convert(_totalLag.get() / count, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops the threads of this EventDispatcher once they have finished the
+     * event they are handling. Events that are still waiting are thrown away,
+     * and later events are dropped.
+     */
+    public void shutdown() {
+        for (Worker worker : _workers) {
+            worker.stop();
+        }
+    }
+
+    private static final class Event {
+
+        final PircBot bot;
+        final String line;
+        final Runnable task;
+        final long created = System.nanoTime();
+
+        Event(PircBot bot, String line, Runnable task) {
+            this.bot = bot;
+            this.line = line;
+            this.task = task;
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        private final Event[] _ring;
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _notEmpty = _lock.newCondition();
+        private final Condition _notFull = _lock.newCondition();
+        private int _head = 0;
+        private volatile int _count = 0;
+        private boolean _running = true;
+
+        Worker(int capacity) {
+            _ring = new Event[capacity];
+        }
+
+        void add(Event event) {
+            _lock.lock();
+            try {
+                while (_running && _count == _ring.length) {
+                    if (_policy == OverflowPolicy.DROP_NEWEST) {
+                        _dropped.incrementAndGet();
+                        return;
+                    } else if (_policy == OverflowPolicy.DROP_OLDEST) {
+                        _ring[_head] = null;
+                        _head = (_head + 1) % _ring.length;
+                        _count--;
+                        _dropped.incrementAndGet();
+                    } else {
+                        _notFull.awaitUninterruptibly();
+                    }
+                }
+                if (!_running) {
+                    _dropped.incrementAndGet();
+                    return;
+                }
+                _ring[(_head + _count) % _ring.length] = event;
+                _count++;
+                _notEmpty.signal();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        void stop() {
+            _lock.lock();
+            try {
+                _running = false;
+                _count = 0;
+                _notEmpty.signalAll();
+                _notFull.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        private Event take() throws InterruptedException {
+            _lock.lock();
+            try {
+                while (_running && _count == 0) {
+                    _notEmpty.await();
+                }
+                if (!_running) {
+                    return null;
+                }
+                Event event = _ring[_head];
+                _ring[_head] = null;
+                _head = (_head + 1) % _ring.length;
+                _count--;
+                _notFull.signal();
+                return event;
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Event event;
+                while ((event = take()) != null) {
+                    long lag = System.nanoTime() - event.created;
+                    _lastLag = lag;
+                    _totalLag.addAndGet(lag);
+                    _maxLag.accumulateAndGet(lag, Math::max);
+                    _dispatched.incrementAndGet();
+                    try {
+                        event.task.run();
+                    } catch (Exception e) {
+                        InputThread.logException(event.bot, event.line, e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop handling events.
+            }
+        }
+    }
+
+}
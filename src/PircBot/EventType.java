@@ -0,0 +1,174 @@
+package PircBot;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The kinds of event that a PircBot raises for the lines it receives. An
+ * IrcListener is registered for the types it cares about with the
+ * ListenerManager of a PircBot.
+ * <p>
+ * Every type also lists the onXxx methods of PircBot that are called for it.
+ * A PircBot only does the work for a type, such as creating User objects and
+ * parsing tags, if one of those methods is overridden or a listener is
+ * registered for it.
+ */
+public enum EventType {
+
+    /**
+     * A message to a channel.
+     */
+    MESSAGE("onMessage"),
+    /**
+     * A /me action, to a channel or to us.
+     */
+    ACTION("onAction"),
+    /**
+     * A message sent to us rather than to a channel.
+     */
+    PRIVATE_MESSAGE("onPrivateMessage"),
+    /**
+     * A CTCP VERSION, PING, TIME or FINGER request. PircBot answers these by
+     * default, so this type is always handled.
+     */
+    CTCP("onVersion", "onPing", "onTime", "onFinger"),
+    /**
+     * A Twitch whisper.
+     */
+    WHISPER("onWhisper"),
+    /**
+     * A NOTICE, to a channel or to us.
+     */
+    NOTICE("onNotice"),
+    /**
+     * Someone joined a channel.
+     */
+    JOIN("onJoin"),
+    /**
+     * Someone left a channel.
+     */
+    PART("onPart"),
+    /**
+     * Someone changed their nick.
+     */
+    NICK("onNickChange"),
+    /**
+     * Someone quit the server.
+     */
+    QUIT("onQuit"),
+    /**
+     * Someone was kicked from a channel.
+     */
+    KICK("onKick"),
+    /**
+     * The mode of a channel or user was changed.
+     */
+    MODE("onMode", "onUserMode", "onOp", "onDeop", "onVoice", "onDeVoice",
+            "onSetChannelKey", "onRemoveChannelKey", "onSetChannelLimit", "onRemoveChannelLimit",
+            "onSetChannelBan", "onRemoveChannelBan", "onSetTopicProtection", "onRemoveTopicProtection",
+            "onSetNoExternalMessages", "onRemoveNoExternalMessages", "onSetInviteOnly", "onRemoveInviteOnly",
+            "onSetModerated", "onRemoveModerated", "onSetPrivate", "onRemovePrivate",
+            "onSetSecret", "onRemoveSecret"),
+    /**
+     * The topic of a channel was changed or sent to us.
+     */
+    TOPIC("onTopic"),
+    /**
+     * We were invited to a channel.
+     */
+    INVITE("onInvite"),
+    /**
+     * A Twitch USERNOTICE, such as a subscription or raid.
+     */
+    USER_NOTICE("onUserNotice"),
+    /**
+     * A Twitch USERSTATE.
+     */
+    USER_STATE("onUserState"),
+    /**
+     * A Twitch GLOBALUSERSTATE.
+     */
+    GLOBAL_USER_STATE("onGlobalUserState"),
+    /**
+     * A Twitch ROOMSTATE.
+     */
+    ROOM_STATE("onRoomState"),
+    /**
+     * A Twitch CLEARCHAT, for a cleared chat or a timed out user.
+     */
+    CLEAR_CHAT("onChatCleared", "onUserTimedOut"),
+    /**
+     * A Twitch HOSTTARGET.
+     */
+    HOST_TARGET("onHostTarget"),
+    /**
+     * A Twitch RECONNECT.
+     */
+    RECONNECT("onReconnect"),
+    /**
+     * The end of the list of users of a channel we joined.
+     */
+    USER_LIST("onUserList"),
+    /**
+     * A reply to a LIST command.
+     */
+    CHANNEL_INFO("onChannelInfo"),
+    /**
+     * Any numeric reply from the server.
+     */
+    SERVER_RESPONSE("onServerResponse"),
+    /**
+     * A line that PircBot does not know about.
+     */
+    UNKNOWN("onUnknown");
+
+    private final Set<String> _methods;
+
+    private EventType(String... methods) {
+        Set<String> names = new HashSet<>();
+        Collections.addAll(names, methods);
+        _methods = Collections.unmodifiableSet(names);
+    }
+
+    /**
+     * Returns the names of the onXxx methods of PircBot called for this type.
+     *
+     * @return Method names
+     */
+    public Set<String> getMethods() {
+        return _methods;
+    }
+
+    /**
+     * Returns the types whose onXxx methods are overridden by a subclass of
+     * PircBot. CTCP is always included, as PircBot answers those requests
+     * itself. The result is worked out once per class.
+     *
+     * @param type The class of a PircBot
+     * @return Types handled by the class
+     */
+    static Set<EventType> handledBy(Class<?> type) {
+        return HANDLED.get(type);
+    }
+
+    private static final ClassValue<Set<EventType>> HANDLED = new ClassValue<Set<EventType>>() {
+        @Override
+        protected Set<EventType> computeValue(Class<?> type) {
+            EnumSet<EventType> handled = EnumSet.of(CTCP);
+            for (Class<?> c = type; c != null && c != PircBot.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    for (EventType eventType : values()) {
+                        if (eventType._methods.contains(method.getName())) {
+                            handled.add(eventType);
+                        }
+                    }
+                }
+            }
+            return Collections.unmodifiableSet(handled);
+        }
+    };
+
+}
@@ -0,0 +1,382 @@
+package PircBot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves a PircBot onto a new connection without a gap, after the server has
+ * asked it to reconnect.
+ * <p>
+ * The new connection is logged on and joins our channels while the old one
+ * keeps delivering events. Both read at the same time during the overlap, so
+ * every line that carries an id tag, such as a PRIVMSG or USERNOTICE, is
+ * handled only the first time it arrives, from whichever connection is
+ * quicker. Lines without an id, such as CLEARCHAT or ROOMSTATE, are only
+ * taken from the old connection. Once the new connection is in all of our
+ * channels, it takes the place of the old one, which is closed. Ids are
+ * still checked for a little while after that, as the new connection may lag
+ * behind the old one.
+ * <p>
+ * The old connection may also lag behind the new one, with lines that were
+ * sent before the new connection joined still waiting to be read. So in each
+ * channel, the lines of the new connection are dropped until the old one has
+ * delivered the latest of them, which keeps the lines in order, and the old
+ * connection is only closed once it has answered a PING sent after the new
+ * one joined everything, and has caught up in every channel.
+ * <p>
+ * Lines are accepted and handled under the line lock of the PircBot, so the
+ * two connections never handle lines at the same time.
+ * <p>
+ * If the old connection is lost during the overlap, the new one takes over
+ * straight away. If the new one is lost before that, we stay on the old one.
+ */
+final class Handover {
+
+    /**
+     * How long ids are still checked after the swap, in nanoseconds.
+     */
+    static final long GRACE = 5000000000L;
+
+    // The most ids remembered, which is a couple of seconds of a busy server.
+    private static final int MAX_IDS = 1 << 17;
+
+    private final PircBot _bot;
+    private final IrcConnection _old;
+    private final IrcConnection _standby;
+    private final long _since;
+    private final List<String> _channels;
+    private int _sent = 0;
+    // Channels the new connection has been asked to join, in lower case, and
+    // those of them the server has confirmed.
+    private final Set<String> _joining = new HashSet<>();
+    private final Set<String> _joined = new HashSet<>();
+    private volatile boolean _swapped = false;
+    private volatile boolean _aborted = false;
+    private volatile boolean _finished = false;
+    private volatile long _until = 0;
+    private long _duplicates = 0;
+    // The token of the PING sent on the old connection once the new one has
+    // joined everything, and whether the PONG has come back.
+    private final String _marker;
+    private boolean _markerSent = false;
+    private boolean _markerAnswered = false;
+    // For each channel, in lower case, where the old connection is still
+    // behind the new one, the id of the latest line the new one dropped, and
+    // the other way around. Channels the old connection has caught up in.
+    private final Map<String, String> _behind = new HashMap<>();
+    private final Map<String, String> _waitingFor = new HashMap<>();
+    private final Set<String> _caughtUp = new HashSet<>();
+    private final LinkedHashMap<String, Boolean> _ids = new LinkedHashMap<String, Boolean>(1024, 0.75f) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_IDS;
+        }
+    };
+
+    /**
+     * Constructs a Handover between two connections.
+     *
+     * @param bot The PircBot
+     * @param old The connection in use
+     * @param standby The new connection, logged on but not reading yet
+     * @param since System.nanoTime() when the server asked us to reconnect
+     * @param channels The channels to join on the new connection
+     */
+    Handover(PircBot bot, IrcConnection old, IrcConnection standby, long since, String[] channels) {
+        _bot = bot;
+        _old = old;
+        _standby = standby;
+        _since = since;
+        _channels = new ArrayList<>(List.of(channels));
+        // Not starting with the token of a KeepAlive, which would swallow it.
+        _marker = "handover-" + since;
+    }
+
+    /**
+     * Decides whether a line read during the handover is handled.
+     *
+     * @param from The connection the line was read from
+     * @param line The raw line
+     * @return True to handle the line, false to drop it
+     */
+    boolean accept(IrcConnection from, String line) {
+        String id = id(line);
+        if (_swapped) {
+            return from == _standby ? id == null || this.firstSeen(id) : id != null && this.firstSeen(id);
+        }
+        if (from == _old) {
+            if (id == null) {
+                if (line.endsWith(_marker)) {
+                    this.markerAnswered();
+                    return false;
+                }
+                return true;
+            }
+            if (this.firstSeen(id)) {
+                this.delivered(id);
+                return true;
+            }
+            return false;
+        }
+        if (id != null) {
+            return this.standbyLine(new IrcMessage(line).getParam(0).toLowerCase(), id);
+        }
+        IrcMessage message = new IrcMessage(line);
+        String command = message.getCommand();
+        if (command.equals("PING")) {
+            // onServerPing would answer on the old connection.
+            from.sendRawLine("PONG " + message.getRawParams(0));
+        } else if (command.equals("JOIN") && message.getNick().equalsIgnoreCase(_bot.getNick())) {
+            this.joined(message.getParam(0));
+        }
+        return false;
+    }
+
+    /**
+     * Decides whether a line with an id from the new connection is handled,
+     * before the swap. It is dropped if the old connection has not caught up
+     * in its channel yet, as the old connection will deliver it too.
+     *
+     * @param channel The channel of the line, in lower case
+     * @param id The id of the line
+     * @return True to handle the line
+     */
+    private synchronized boolean standbyLine(String channel, String id) {
+        if (_caughtUp.contains(channel)) {
+            return this.firstSeen(id);
+        }
+        boolean seen;
+        synchronized (_ids) {
+            seen = _ids.containsKey(id);
+            if (seen) {
+                _duplicates++;
+            }
+        }
+        if (seen) {
+            // The old connection is at least as far as this one.
+            this.caughtUp(channel);
+            return false;
+        }
+        String previous = _behind.put(channel, id);
+        if (previous != null) {
+            _waitingFor.remove(previous);
+        }
+        _waitingFor.put(id, channel);
+        return false;
+    }
+
+    /**
+     * Called for every line with an id the old connection delivers before
+     * the swap, to see if it has caught up with the new one.
+     */
+    private synchronized void delivered(String id) {
+        if (!_waitingFor.isEmpty()) {
+            String channel = _waitingFor.remove(id);
+            if (channel != null) {
+                this.caughtUp(channel);
+            }
+        }
+    }
+
+    private void caughtUp(String channel) {
+        String id = _behind.remove(channel);
+        if (id != null) {
+            _waitingFor.remove(id);
+        }
+        _caughtUp.add(channel);
+        this.finishIfReady();
+    }
+
+    private synchronized void markerAnswered() {
+        _markerAnswered = true;
+        this.finishIfReady();
+    }
+
+    /**
+     * Once the new connection is in all of our channels, asks the old one
+     * for a PONG, and swaps when it has come back and the old connection
+     * has caught up everywhere.
+     */
+    private void finishIfReady() {
+        if (_sent < _channels.size() || !_joined.containsAll(_joining)) {
+            return;
+        }
+        if (!_markerSent) {
+            _markerSent = true;
+            _old.sendRawLine("PING :" + _marker);
+        } else if (_markerAnswered && _behind.isEmpty()) {
+            this.finish();
+        }
+    }
+
+    /**
+     * Returns true the first time an id is seen, and counts the duplicates.
+     */
+    private boolean firstSeen(String id) {
+        synchronized (_ids) {
+            if (_ids.put(id, Boolean.TRUE) == null) {
+                return true;
+            }
+            _duplicates++;
+            return false;
+        }
+    }
+
+    /**
+     * Returns the value of the id tag of a raw line, or null if it has none.
+     *
+     * @param line The raw line
+     * @return The id
+     */
+    static String id(String line) {
+        if (line.isEmpty() || line.charAt(0) != '@') {
+            return null;
+        }
+        int end = line.indexOf(' ');
+        if (end < 0) {
+            return null;
+        }
+        int i = 1;
+        while (i < end) {
+            int tagEnd = line.indexOf(';', i);
+            if (tagEnd < 0 || tagEnd > end) {
+                tagEnd = end;
+            }
+            if (tagEnd - i > 3 && line.startsWith("id=", i)) {
+                return line.substring(i + 3, tagEnd);
+            }
+            i = tagEnd + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Asks the new connection to join the next channels.
+     *
+     * @param count The most channels to join
+     * @return True if there are more channels left to join
+     */
+    synchronized boolean joinNext(int count) {
+        if (_aborted || _finished) {
+            return false;
+        }
+        int end = Math.min(_sent + count, _channels.size());
+        for (String channel : _channels.subList(_sent, end)) {
+            _joining.add(channel.toLowerCase());
+            _standby.sendRawLine(this.join(channel));
+        }
+        _sent = end;
+        this.finishIfReady();
+        return _sent < _channels.size();
+    }
+
+    /**
+     * Returns the JOIN for a channel, with the key it was joined with.
+     */
+    private String join(String channel) {
+        String key = _bot.getChannelKey(channel);
+        return key == null ? "JOIN " + channel : "JOIN " + channel + " " + key;
+    }
+
+    private synchronized void joined(String channel) {
+        channel = channel.toLowerCase();
+        if (_joining.contains(channel) && _joined.add(channel)) {
+            this.finishIfReady();
+        }
+    }
+
+    /**
+     * Makes the new connection the one in use, and closes the old one, unless
+     * that has already been done.
+     */
+    private synchronized void swap() {
+        if (!_swapped && !_aborted) {
+            _swapped = true;
+            _bot.switchConnection(_old, _standby);
+        }
+    }
+
+    /**
+     * Swaps the connections if that has not been done yet, and reports how
+     * long it took. Called once all channels are joined and the old
+     * connection has caught up, or when we stop waiting for that.
+     */
+    synchronized void finish() {
+        if (_finished || _aborted) {
+            return;
+        }
+        // Catch up with channels joined or parted on the old connection since.
+        Set<String> current = new HashSet<>();
+        for (String channel : _bot.getChannels()) {
+            current.add(channel.toLowerCase());
+            if (!_joining.contains(channel.toLowerCase())) {
+                _standby.sendRawLine(this.join(channel));
+            }
+        }
+        for (String channel : _joining) {
+            if (!current.contains(channel)) {
+                _standby.sendRawLine("PART " + channel);
+            }
+        }
+        this.swap();
+        long now = System.nanoTime();
+        _until = now + GRACE;
+        _finished = true;
+        long duplicates;
+        synchronized (_ids) {
+            duplicates = _duplicates;
+        }
+        _bot.log("*** Switched to the new connection in " + (now - _since) / 1000000 + "ms, in " + _joined.size() + " of " + _channels.size() + " channels, " + duplicates + " duplicate lines dropped.");
+        _bot.getMetrics().handedOver(_joined.size(), now - _since, duplicates);
+    }
+
+    /**
+     * Called when one of the two connections has been lost.
+     *
+     * @param connection The connection
+     * @return True if this is taken care of, and the PircBot has not been
+     * disconnected
+     */
+    synchronized boolean disconnected(IrcConnection connection) {
+        if (_swapped || _aborted) {
+            return false;
+        }
+        if (connection == _old) {
+            _bot.log("*** Lost the old connection early; switching now.");
+            this.swap();
+            return true;
+        }
+        if (connection == _standby) {
+            _bot.log("*** Lost the new connection; staying on the old one.");
+            _aborted = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if we stayed on the old connection, so nothing is left to
+     * do.
+     *
+     * @return True if aborted
+     */
+    boolean isAborted() {
+        return _aborted;
+    }
+
+    /**
+     * Returns true once lines no longer need checking.
+     *
+     * @param now System.nanoTime()
+     * @return True if over
+     */
+    boolean isOver(long now) {
+        return _aborted || (_finished && now - _until > 0);
+    }
+
+}
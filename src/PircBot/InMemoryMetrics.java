@@ -0,0 +1,687 @@
+package PircBot;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * PircBotMetrics that keep counters and latency histograms in memory, and can
+ * be registered with the platform MBeanServer to be watched through JMX
+ * without any other library.
+ * <pre>
+ * InMemoryMetrics metrics = new InMemoryMetrics();
+ * bot.setMetrics(metrics);
+ * metrics.register("mybot");
+ * </pre>
+ * One InMemoryMetrics may be shared by several PircBots, in which case it
+ * adds up their figures.
+ * <p>
+ * Latencies are kept in histograms with eight buckets for every power of two
+ * nanoseconds, so percentiles are accurate to within an eighth, while every
+ * measurement costs only a few atomic additions.
+ */
+public final class InMemoryMetrics implements PircBotMetrics, InMemoryMetricsMXBean {
+
+    private final LongAdder _linesReceived = new LongAdder();
+    private final LongAdder _bytesReceived = new LongAdder();
+    private final Rate _receiveRate = new Rate();
+    private volatile CommandCounts _commands = new CommandCounts();
+    private final Histogram _handleLine = new Histogram();
+    private final Histogram[] _events = new Histogram[EventType.values().length];
+    private final Histogram _pong = new Histogram();
+    private volatile long _lastPong = 0;
+    private volatile long _roundTrip = 0;
+    private volatile long _jitter = 0;
+    private final AtomicLong _maxRoundTrip = new AtomicLong();
+    private final LongAdder _linesSent = new LongAdder();
+    private final LongAdder _charsSent = new LongAdder();
+    private final Rate _sendRate = new Rate();
+    private volatile int _queueDepth = 0;
+    private final AtomicLong _maxQueueDepth = new AtomicLong();
+    private final Histogram _queueWait = new Histogram();
+    private final LongAdder _stalls = new LongAdder();
+    private final LongAdder _stallNanos = new LongAdder();
+    private final LongAdder _connects = new LongAdder();
+    private final LongAdder _reconnects = new LongAdder();
+    private final LongAdder _disconnects = new LongAdder();
+    private final LongAdder _rejoins = new LongAdder();
+    private volatile long _lastRejoin = 0;
+    private final AtomicLong _maxRejoin = new AtomicLong();
+    private final LongAdder _handovers = new LongAdder();
+    private volatile long _lastHandover = 0;
+    private final LongAdder _duplicates = new LongAdder();
+    private final LongAdder _dccTransfers = new LongAdder();
+    private final LongAdder _dccReceived = new LongAdder();
+    private final LongAdder _dccSent = new LongAdder();
+    private final LongAdder _dccMillis = new LongAdder();
+    private ObjectName _name = null;
+
+    /**
+     * Constructs an InMemoryMetrics with every figure at zero.
+     */
+    public InMemoryMetrics() {
+        for (int i = 0; i < _events.length; i++) {
+            _events[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Registers this InMemoryMetrics with the platform MBeanServer, as
+     * PircBot:type=Metrics,name=&lt;name&gt;.
+     *
+     * @param name Name to tell this InMemoryMetrics apart from others, such
+     * as the nick of the PircBot
+     * @return The name it was registered under
+     * @throws JMException if it could not be registered, for example because
+     * the name is already taken
+     */
+    public synchronized ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("PircBot:type=Metrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        _name = objectName;
+        return objectName;
+    }
+
+    /**
+     * Removes this InMemoryMetrics from the platform MBeanServer, if it was
+     * registered.
+     *
+     * @throws JMException if it could not be removed
+     */
+    public synchronized void unregister() throws JMException {
+        if (_name != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(_name);
+            _name = null;
+        }
+    }
+
+    @Override
+    public void lineReceived(String line, int bytes, long nanos) {
+        _linesReceived.increment();
+        _bytesReceived.add(bytes);
+        _receiveRate.increment();
+        _handleLine.record(nanos);
+        _commands.increment(line);
+    }
+
+    /**
+     * Counts a line whose size in bytes is not known as its characters plus
+     * the "\r\n", which is right for ASCII.
+     */
+    @Override
+    public void lineReceived(String line, long nanos) {
+        lineReceived(line, line.length() + 2, nanos);
+    }
+
+    @Override
+    public void lineSent(String line) {
+        _linesSent.increment();
+        _charsSent.add(line.length() + 2);
+        _sendRate.increment();
+    }
+
+    @Override
+    public void eventHandled(EventType type, long nanos) {
+        _events[type.ordinal()].record(nanos);
+    }
+
+    @Override
+    public void pongSent(long nanos) {
+        _lastPong = nanos;
+        _pong.record(nanos);
+    }
+
+    @Override
+    public void roundTrip(long rtt, long smoothed, long jitter) {
+        _roundTrip = smoothed;
+        _jitter = jitter;
+        _maxRoundTrip.accumulateAndGet(rtt, Math::max);
+    }
+
+    @Override
+    public void lineQueued(int depth) {
+        _queueDepth = depth;
+        _maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    @Override
+    public void lineDequeued(long waitNanos, int depth) {
+        _queueDepth = depth;
+        _queueWait.record(waitNanos);
+    }
+
+    @Override
+    public void rateLimited(long nanos) {
+        _stalls.increment();
+        _stallNanos.add(nanos);
+    }
+
+    @Override
+    public void connected() {
+        _connects.increment();
+    }
+
+    @Override
+    public void reconnected() {
+        _reconnects.increment();
+    }
+
+    @Override
+    public void disconnected() {
+        _disconnects.increment();
+    }
+
+    @Override
+    public void rejoined(int channels, long nanos) {
+        _rejoins.increment();
+        _lastRejoin = nanos;
+        _maxRejoin.accumulateAndGet(nanos, Math::max);
+    }
+
+    @Override
+    public void handedOver(int channels, long nanos, long duplicates) {
+        _handovers.increment();
+        _lastHandover = nanos;
+        _duplicates.add(duplicates);
+    }
+
+    @Override
+    public void dccTransferFinished(boolean incoming, long bytes, long millis) {
+        _dccTransfers.increment();
+        (incoming ? _dccReceived : _dccSent).add(bytes);
+        _dccMillis.add(millis);
+    }
+
+    @Override
+    public long getLinesReceived() {
+        return _linesReceived.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return _bytesReceived.sum();
+    }
+
+    @Override
+    public long getLinesReceivedPerSecond() {
+        return _receiveRate.get();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        return _commands.get();
+    }
+
+    @Override
+    public long getHandleLineAverageMicros() {
+        return _handleLine.average() / 1000;
+    }
+
+    @Override
+    public long getHandleLineMedianMicros() {
+        return _handleLine.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getHandleLine99thPercentileMicros() {
+        return _handleLine.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getHandleLineMaxMicros() {
+        return _handleLine.max() / 1000;
+    }
+
+    @Override
+    public Map<String, Long> getEventCounts() {
+        TreeMap<String, Long> counts = new TreeMap<>();
+        for (EventType type : EventType.values()) {
+            Histogram histogram = _events[type.ordinal()];
+            if (histogram.count() > 0) {
+                counts.put(type.name(), histogram.count());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getEventAverageMicros() {
+        TreeMap<String, Long> averages = new TreeMap<>();
+        for (EventType type : EventType.values()) {
+            Histogram histogram = _events[type.ordinal()];
+            if (histogram.count() > 0) {
+                averages.put(type.name(), histogram.average() / 1000);
+            }
+        }
+        return averages;
+    }
+
+    @Override
+    public Map<String, Long> getEventMaxMicros() {
+        TreeMap<String, Long> maxima = new TreeMap<>();
+        for (EventType type : EventType.values()) {
+            Histogram histogram = _events[type.ordinal()];
+            if (histogram.count() > 0) {
+                maxima.put(type.name(), histogram.max() / 1000);
+            }
+        }
+        return maxima;
+    }
+
+    @Override
+    public long getPongs() {
+        return _pong.count();
+    }
+
+    @Override
+    public long getPongLatencyMicros() {
+        return _lastPong / 1000;
+    }
+
+    @Override
+    public long getPongLatencyMaxMicros() {
+        return _pong.max() / 1000;
+    }
+
+    @Override
+    public long getRoundTripMicros() {
+        return _roundTrip / 1000;
+    }
+
+    @Override
+    public long getRoundTripJitterMicros() {
+        return _jitter / 1000;
+    }
+
+    @Override
+    public long getRoundTripMaxMicros() {
+        return _maxRoundTrip.get() / 1000;
+    }
+
+    @Override
+    public long getLinesSent() {
+        return _linesSent.sum();
+    }
+
+    @Override
+    public long getCharsSent() {
+        return _charsSent.sum();
+    }
+
+    @Override
+    public long getLinesSentPerSecond() {
+        return _sendRate.get();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return _queueDepth;
+    }
+
+    @Override
+    public int getMaxQueueDepth() {
+        return (int) _maxQueueDepth.get();
+    }
+
+    @Override
+    public long getQueueWaitAverageMicros() {
+        return _queueWait.average() / 1000;
+    }
+
+    @Override
+    public long getQueueWait99thPercentileMicros() {
+        return _queueWait.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getQueueWaitMaxMicros() {
+        return _queueWait.max() / 1000;
+    }
+
+    @Override
+    public long getRateLimitStalls() {
+        return _stalls.sum();
+    }
+
+    @Override
+    public long getRateLimitStallMillis() {
+        return _stallNanos.sum() / 1000000;
+    }
+
+    @Override
+    public long getConnects() {
+        return _connects.sum();
+    }
+
+    @Override
+    public long getReconnects() {
+        return _reconnects.sum();
+    }
+
+    @Override
+    public long getDisconnects() {
+        return _disconnects.sum();
+    }
+
+    @Override
+    public long getRejoins() {
+        return _rejoins.sum();
+    }
+
+    @Override
+    public long getRejoinMillis() {
+        return _lastRejoin / 1000000;
+    }
+
+    @Override
+    public long getRejoinMaxMillis() {
+        return _maxRejoin.get() / 1000000;
+    }
+
+    @Override
+    public long getHandovers() {
+        return _handovers.sum();
+    }
+
+    @Override
+    public long getHandoverMillis() {
+        return _lastHandover / 1000000;
+    }
+
+    @Override
+    public long getHandoverDuplicates() {
+        return _duplicates.sum();
+    }
+
+    @Override
+    public long getDccTransfers() {
+        return _dccTransfers.sum();
+    }
+
+    @Override
+    public long getDccBytesReceived() {
+        return _dccReceived.sum();
+    }
+
+    @Override
+    public long getDccBytesSent() {
+        return _dccSent.sum();
+    }
+
+    @Override
+    public long getDccBytesPerSecond() {
+        long millis = _dccMillis.sum();
+        return millis == 0 ? 0 : (_dccReceived.sum() + _dccSent.sum()) * 1000 / millis;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : new LongAdder[]{_linesReceived, _bytesReceived, _linesSent, _charsSent, _stalls, _stallNanos,
+            _connects, _reconnects, _disconnects, _rejoins, _handovers, _duplicates, _dccTransfers, _dccReceived, _dccSent, _dccMillis}) {
+            adder.reset();
+        }
+        _commands = new CommandCounts();
+        _handleLine.reset();
+        for (Histogram histogram : _events) {
+            histogram.reset();
+        }
+        _queueWait.reset();
+        _pong.reset();
+        _lastPong = 0;
+        _roundTrip = 0;
+        _jitter = 0;
+        _maxRoundTrip.set(0);
+        _lastRejoin = 0;
+        _maxRejoin.set(0);
+        _lastHandover = 0;
+        _maxQueueDepth.set(_queueDepth);
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryMetrics[received=" + getLinesReceived() + ", sent=" + getLinesSent()
+                + ", handleLine avg=" + getHandleLineAverageMicros() + "us p99=" + getHandleLine99thPercentileMicros()
+                + "us, queue=" + getQueueDepth() + ", queue wait p99=" + getQueueWait99thPercentileMicros() + "us]";
+    }
+
+    /**
+     * Counts lines by command. The commands are kept in an open addressing
+     * table by IrcMessage.commandHash, so counting a command that has been
+     * seen before creates no String. Only a new command takes a lock, to be
+     * added.
+     */
+    private static final class CommandCounts {
+
+        private static final class Entry {
+
+            final String command;
+            final int hash;
+            final LongAdder count = new LongAdder();
+
+            Entry(String command, int hash) {
+                this.command = command;
+                this.hash = hash;
+            }
+        }
+
+        private volatile Entry[] _table = new Entry[64];
+        private int _size = 0;
+
+        void increment(String line) {
+            int start = commandStart(line);
+            int end;
+            if (start < 0) {
+                // Nothing but tags or a prefix.
+                start = 0;
+                end = 0;
+            } else {
+                end = line.indexOf(' ', start);
+                if (end < 0) {
+                    end = line.length();
+                }
+            }
+            int hash = IrcMessage.commandHash(line, start, end);
+            Entry entry = find(_table, line, start, end, hash);
+            if (entry == null) {
+                entry = add(line.substring(start, end), hash);
+            }
+            entry.count.increment();
+        }
+
+        /**
+         * Returns where the command of a raw line starts, after its tags and
+         * prefix, or -1 if it has none.
+         */
+        private static int commandStart(String line) {
+            int start = 0;
+            if (line.startsWith("@")) {
+                start = line.indexOf(' ') + 1;
+                if (start == 0) {
+                    return -1;
+                }
+            }
+            if (line.startsWith(":", start)) {
+                start = line.indexOf(' ', start) + 1;
+                if (start == 0) {
+                    return -1;
+                }
+            }
+            return start;
+        }
+
+        private static Entry find(Entry[] table, String line, int start, int end, int hash) {
+            int mask = table.length - 1;
+            for (int i = hash & mask; table[i] != null; i = (i + 1) & mask) {
+                Entry entry = table[i];
+                if (entry.hash == hash && entry.command.length() == end - start
+                        && line.regionMatches(start, entry.command, 0, end - start)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        private synchronized Entry add(String command, int hash) {
+            Entry entry = find(_table, command, 0, command.length(), hash);
+            if (entry != null) {
+                return entry;
+            }
+            entry = new Entry(command, hash);
+            Entry[] table = _table;
+            if ((_size + 1) * 2 > table.length) {
+                table = new Entry[table.length * 2];
+                for (Entry old : _table) {
+                    if (old != null) {
+                        put(table, old);
+                    }
+                }
+                put(table, entry);
+                _table = table;
+            } else {
+                put(table, entry);
+                // Publishes the new entry to threads that read the table.
+                _table = table;
+            }
+            _size++;
+            return entry;
+        }
+
+        private static void put(Entry[] table, Entry entry) {
+            int mask = table.length - 1;
+            int i = entry.hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+
+        Map<String, Long> get() {
+            TreeMap<String, Long> counts = new TreeMap<>();
+            for (Entry entry : _table) {
+                if (entry != null) {
+                    counts.put(entry.command, entry.count.sum());
+                }
+            }
+            return counts;
+        }
+    }
+
+    /**
+     * Counts events per second of the clock, remembering the count of the
+     * last full second.
+     */
+    private static final class Rate {
+
+        private final AtomicLong _second = new AtomicLong();
+        private final LongAdder _current = new LongAdder();
+        private volatile long _previous = 0;
+
+        void increment() {
+            long now = System.nanoTime() / 1000000000L;
+            long second = _second.get();
+            if (now != second && _second.compareAndSet(second, now)) {
+                long count = _current.sumThenReset();
+                _previous = now == second + 1 ? count : 0;
+            }
+            _current.increment();
+        }
+
+        long get() {
+            long now = System.nanoTime() / 1000000000L;
+            long second = _second.get();
+            if (now == second) {
+                return _previous;
+            }
+            // Nothing has happened this second yet.
+            return now == second + 1 ? _current.sum() : 0;
+        }
+    }
+
+    /**
+     * A histogram of durations in nanoseconds, with eight buckets for every
+     * power of two.
+     */
+    private static final class Histogram {
+
+        private static final int BUCKETS = 62 * 8;
+
+        private final AtomicLongArray _buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder _count = new LongAdder();
+        private final LongAdder _total = new LongAdder();
+        private final AtomicLong _max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            _buckets.incrementAndGet(bucketOf(nanos));
+            _count.increment();
+            _total.add(nanos);
+            if (nanos > _max.get()) {
+                _max.accumulateAndGet(nanos, Math::max);
+            }
+        }
+
+        private static int bucketOf(long nanos) {
+            if (nanos < 8) {
+                return (int) nanos;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            return ((exponent - 2) << 3) | (int) ((nanos >>> (exponent - 3)) & 7);
+        }
+
+        /**
+         * Returns the largest duration that falls into a bucket.
+         */
+        private static long upperBoundOf(int bucket) {
+            if (bucket < 8) {
+                return bucket;
+            }
+            int exponent = (bucket >>> 3) + 2;
+            long lower = (8L | (bucket & 7)) << (exponent - 3);
+            return lower + (1L << (exponent - 3)) - 1;
+        }
+
+        long count() {
+            return _count.sum();
+        }
+
+        long average() {
+            long count = _count.sum();
+            return count == 0 ? 0 : _total.sum() / count;
+        }
+
+        long max() {
+            return _max.get();
+        }
+
+        long percentile(double fraction) {
+            long count = _count.sum();
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += _buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(upperBoundOf(i), _max.get());
+                }
+            }
+            return _max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                _buckets.set(i, 0);
+            }
+            _count.reset();
+            _total.reset();
+            _max.set(0);
+        }
+    }
+
+}
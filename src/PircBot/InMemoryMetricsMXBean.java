@@ -0,0 +1,231 @@
+package PircBot;
+
+import java.util.Map;
+
+/**
+ * The management interface of InMemoryMetrics, through which its figures can
+ * be read with JConsole, VisualVM or any other JMX client. Times are in
+ * microseconds unless stated otherwise.
+ */
+public interface InMemoryMetricsMXBean {
+
+    /**
+     * @return Number of lines read from the server
+     */
+    long getLinesReceived();
+
+    /**
+     * @return Number of bytes read from the server, counting the line ending
+     * of every line
+     */
+    long getBytesReceived();
+
+    /**
+     * @return Number of lines read from the server during the last full second
+     */
+    long getLinesReceivedPerSecond();
+
+    /**
+     * @return Number of lines read from the server by command, such as
+     * PRIVMSG or 353
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * @return Average time taken by handleLine
+     */
+    long getHandleLineAverageMicros();
+
+    /**
+     * @return Median time taken by handleLine
+     */
+    long getHandleLineMedianMicros();
+
+    /**
+     * @return 99th percentile of the time taken by handleLine
+     */
+    long getHandleLine99thPercentileMicros();
+
+    /**
+     * @return Longest time taken by handleLine
+     */
+    long getHandleLineMaxMicros();
+
+    /**
+     * @return Number of events handled by type
+     */
+    Map<String, Long> getEventCounts();
+
+    /**
+     * @return Average time taken by the handlers of each type of event
+     */
+    Map<String, Long> getEventAverageMicros();
+
+    /**
+     * @return Longest time taken by the handlers of each type of event
+     */
+    Map<String, Long> getEventMaxMicros();
+
+    /**
+     * @return Number of server PINGs answered
+     */
+    long getPongs();
+
+    /**
+     * @return Time from reading the latest server PING to writing our PONG
+     */
+    long getPongLatencyMicros();
+
+    /**
+     * @return Longest time from reading a server PING to writing our PONG
+     */
+    long getPongLatencyMaxMicros();
+
+    /**
+     * @return Smoothed round trip time of keep alive PINGs, as of the latest
+     * PONG
+     */
+    long getRoundTripMicros();
+
+    /**
+     * @return Smoothed deviation of the round trip time, as of the latest PONG
+     */
+    long getRoundTripJitterMicros();
+
+    /**
+     * @return Longest round trip time of a keep alive PING
+     */
+    long getRoundTripMaxMicros();
+
+    /**
+     * @return Number of lines written to the server
+     */
+    long getLinesSent();
+
+    /**
+     * @return Number of characters written to the server, counting the "\r\n"
+     * of every line
+     */
+    long getCharsSent();
+
+    /**
+     * @return Number of lines written to the server during the last full
+     * second
+     */
+    long getLinesSentPerSecond();
+
+    /**
+     * @return Number of lines in the outgoing queue when it last changed
+     */
+    int getQueueDepth();
+
+    /**
+     * @return Largest number of lines that were in the outgoing queue at once
+     */
+    int getMaxQueueDepth();
+
+    /**
+     * @return Average time lines waited in the outgoing queue
+     */
+    long getQueueWaitAverageMicros();
+
+    /**
+     * @return 99th percentile of the time lines waited in the outgoing queue
+     */
+    long getQueueWait99thPercentileMicros();
+
+    /**
+     * @return Longest time a line waited in the outgoing queue
+     */
+    long getQueueWaitMaxMicros();
+
+    /**
+     * @return Number of lines held up by the RateLimiter
+     */
+    long getRateLimitStalls();
+
+    /**
+     * @return Total time lines were held up by the RateLimiter, in
+     * milliseconds
+     */
+    long getRateLimitStallMillis();
+
+    /**
+     * @return Number of times a server was logged onto
+     */
+    long getConnects();
+
+    /**
+     * @return Number of times a PircBot logged onto a server again after
+     * having been logged on before
+     */
+    long getReconnects();
+
+    /**
+     * @return Number of times a connection was lost
+     */
+    long getDisconnects();
+
+    /**
+     * @return Number of times a ReconnectSupervisor rejoined our channels
+     * after a lost connection
+     */
+    long getRejoins();
+
+    /**
+     * @return Time from the latest lost connection to being back in all of
+     * our channels, in milliseconds
+     */
+    long getRejoinMillis();
+
+    /**
+     * @return Longest time from a lost connection to being back in all of our
+     * channels, in milliseconds
+     */
+    long getRejoinMaxMillis();
+
+    /**
+     * @return Number of times we moved onto a new connection without
+     * dropping the old one first
+     */
+    long getHandovers();
+
+    /**
+     * @return Time from the latest request to reconnect to being on the new
+     * connection, in milliseconds
+     */
+    long getHandoverMillis();
+
+    /**
+     * @return Number of lines that arrived on both connections during a
+     * handover, and were only handled once
+     */
+    long getHandoverDuplicates();
+
+    /**
+     * @return Number of DCC file transfers that have finished
+     */
+    long getDccTransfers();
+
+    /**
+     * @return Number of bytes received by DCC file transfers
+     */
+    long getDccBytesReceived();
+
+    /**
+     * @return Number of bytes sent by DCC file transfers
+     */
+    long getDccBytesSent();
+
+    /**
+     * @return Average speed of finished DCC file transfers, in bytes per
+     * second
+     */
+    long getDccBytesPerSecond();
+
+    /**
+     * Sets every figure back to zero.
+     */
+    void reset();
+
+}
@@ -14,34 +14,44 @@ package PircBot;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * A Thread which reads lines from the IRC server. It then passes these lines to
+ * The task which reads lines from the IRC server. It then passes these lines to
  * the PircBot without changing them. This running Thread also detects
  * disconnection from the server and is thus used by the OutputThread to send
  * lines to the server.
+ * <p>
+ * It runs on a thread made by the ThreadFactory of the PircBot, if it has
+ * one. Writes are serialized with a ReentrantLock rather than a monitor, so a
+ * virtual thread that blocks on a slow socket does not pin its carrier.
  *
  * @author Paul James Mutton,
  * <a href="http://www.jibble.org/">http://www.jibble.org/</a>
  * @version 1.5.0 (Build time: Mon Dec 14 20:07:17 2009)
  */
-public class InputThread extends Thread {
+public class InputThread implements Runnable, IrcConnection {
 
     /**
      * The InputThread reads lines from the IRC server and allows the PircBot to
      * handle them.
      *
      * @param bot An instance of the underlying PircBot.
-     * @param breader The BufferedReader that reads lines from the server.
+     * @param in The stream of bytes from the server.
+     * @param charset The encoding used by the server.
      * @param bwriter The BufferedWriter that sends lines to the server.
      */
-    InputThread(PircBot bot, Socket socket, BufferedReader breader, BufferedWriter bwriter) {
+    InputThread(PircBot bot, Socket socket, InputStream in, Charset charset, BufferedWriter bwriter) {
         _bot = bot;
         _socket = socket;
-        _breader = breader;
+        _in = in;
+        _framer = new LineFramer(charset, 8192);
+        _keepAlive = new KeepAlive(bot);
         _bwriter = bwriter;
-        this.setName("Pirc-Input-" + bot.getServer() + "-" + bot.getName());
+        _thread = bot.newThread(this, "Pirc-Input-" + bot.getServer() + "-" + bot.getName());
     }
 
     /**
@@ -50,8 +60,88 @@ public class InputThread extends Thread {
      *
      * @param line The raw line to send to the IRC server.
      */
-    void sendRawLine(String line) {
-        OutputThread.sendRawLine(_bot, _bwriter, line);
+    @Override
+    public void sendRawLine(String line) {
+        _writeLock.lock();
+        try {
+            writePongs();
+            OutputThread.sendRawLine(_bot, _bwriter, line);
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Sends several raw lines to the IRC server in a single write, bypassing
+     * the outgoing message queue.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    @Override
+    public void sendRawLines(List<String> lines) {
+        _writeLock.lock();
+        try {
+            writePongs();
+            OutputThread.sendRawLines(_bot, _bwriter, lines);
+        } finally {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Sends a PONG straight away if nobody else is writing. Otherwise the
+     * thread that is writing sends it as soon as its current write is done,
+     * ahead of anything else, so the reading thread never waits.
+     *
+     * @param line The PONG line.
+     * @param since System.nanoTime() when the PING was read.
+     */
+    @Override
+    public void sendPong(String line, long since) {
+        _pongs.add(new Pong(line, since, true));
+        if (_writeLock.tryLock()) {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Sends a keep alive PING the same way as a PONG, so that the reading
+     * thread never waits for another thread that is stuck writing to a slow
+     * socket, which is just when the PING is needed.
+     *
+     * @param line The PING line.
+     */
+    private void sendProbe(String line) {
+        _pongs.add(new Pong(line, 0, false));
+        if (_writeLock.tryLock()) {
+            unlockWriter();
+        }
+    }
+
+    /**
+     * Writes the PONGs and keep alive PINGs that are waiting. Must be called
+     * while holding the write lock.
+     */
+    private void writePongs() {
+        Pong pong;
+        while ((pong = _pongs.poll()) != null) {
+            OutputThread.sendRawLine(_bot, _bwriter, pong.line);
+            if (pong.answer) {
+                _bot.pongSent(pong.line, System.nanoTime() - pong.since);
+            }
+        }
+    }
+
+    /**
+     * Writes any waiting PONGs and releases the write lock. A PONG that was
+     * added after we looked, while its sender could not get the lock, is
+     * picked up by taking the lock again.
+     */
+    private void unlockWriter() {
+        do {
+            writePongs();
+            _writeLock.unlock();
+        } while (!_pongs.isEmpty() && _writeLock.tryLock());
     }
 
     /**
@@ -61,10 +151,130 @@ public class InputThread extends Thread {
      *
      * @return True if still connected.
      */
-    boolean isConnected() {
+    @Override
+    public boolean isConnected() {
         return _isConnected;
     }
 
+    /**
+     * Reads a line from the IRC server while logging in.
+     *
+     * @return The line, or null if the server closed the connection.
+     * @throws IOException if the connection failed.
+     */
+    @Override
+    public String readLine() throws IOException {
+        while (!_framer.next()) {
+            if (_framer.read(_in) < 0) {
+                return null;
+            }
+        }
+        return _framer.line();
+    }
+
+    /**
+     * Starts this Thread once we are logged in.
+     *
+     * @throws IOException if the socket timeout could not be set.
+     */
+    @Override
+    public void startReading() throws IOException {
+        // Wake up every second while keep alive PINGs are on, to send them
+        // and to notice a dead connection even when nothing arrives.
+        _socket.setSoTimeout(_keepAlive.isEnabled() ? 1000 : 0);
+        _thread.start();
+    }
+
+    /**
+     * Sends a keep alive PING if one is due.
+     *
+     * @param now System.nanoTime()
+     * @return False if the connection is dead.
+     */
+    private boolean keepAlive(long now) {
+        switch (_keepAlive.check(now, _framer.getReadTime())) {
+            case PROBE:
+                this.sendProbe(_keepAlive.probe(now));
+                return true;
+            case DEAD:
+                _bot.log("*** No reply from the server for " + _keepAlive.getTimeout() / 1000000 + " ms.");
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Passes a line from the IRC server to the handleLine method of a
+     * PircBot, and logs the stack trace of anything it throws. The line is
+     * recorded first if the PircBot has a TrafficRecorder.
+     *
+     * @param bot The PircBot to handle the line
+     * @param line The raw line from the server
+     * @param bytes Size of the line as it was received, in bytes
+     */
+    static void handleLine(PircBot bot, String line, int bytes) {
+        bot.recordLine(line);
+        long start = System.nanoTime();
+        try {
+            bot.handleLine(line);
+        } catch (Exception t) {
+            logException(bot, line, t);
+        }
+        bot.getMetrics().lineReceived(line, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Passes the current line of a LineFramer to the handleLine method of a
+     * PircBot, unless the PircBot can tell from its raw bytes that nothing
+     * wants it, in which case it is never decoded.
+     *
+     * A server PING is answered right here, before the line is decoded or
+     * parsed, unless onServerPing is overridden.
+     *
+     * The line is accepted and handled under the lock of the PircBot, so
+     * during a Handover the two connections take turns.
+     *
+     * @param bot The PircBot to pass the line to.
+     * @param framer The LineFramer, positioned on a complete line.
+     * @param connection The connection the line was read from.
+     */
+    static void handleFrame(PircBot bot, LineFramer framer, IrcConnection connection) {
+        if (!bot.answerPing(framer, connection) && !bot.canSkipFrame(framer)) {
+            String line = framer.line();
+            synchronized (bot.lineLock()) {
+                if (bot.accepts(connection, line)) {
+                    handleLine(bot, line, framer.lineBytes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs an exception thrown while handling a line, along with its stack
+     * trace.
+     *
+     * @param bot The PircBot that was handling the line.
+     * @param line The line that was being handled.
+     * @param t The exception that was thrown.
+     */
+    static void logException(PircBot bot, String line, Exception t) {
+        // Stick the whole stack trace into a String so we can output it nicely.
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        System.err.println("[EXCEPTION] " + line);
+        t.printStackTrace(pw);
+        pw.flush();
+        StringTokenizer tokenizer = new StringTokenizer(sw.toString(), "\r\n");
+        synchronized (bot) {
+            bot.log("### Your implementation of PIRC Bot threw an exception. Good job, dumbass.");
+            bot.log("### ");
+            while (tokenizer.hasMoreTokens()) {
+                bot.log("### " + tokenizer.nextToken());
+            }
+        }
+    }
+
     /**
      * Called to start this Thread reading lines from the IRC server. When a
      * line is read, this method calls the handleLine method in the PircBot,
@@ -81,36 +291,21 @@ public class InputThread extends Thread {
             boolean running = true;
             while (running) {
                 try {
-                    String line = null;
-                    while ((line = _breader.readLine()) != null) {
-                        try {
-                            _bot.handleLine(line);
-                        } catch (Exception t) {
-                            // Stick the whole stack trace into a String so we can output it nicely.
-                            StringWriter sw = new StringWriter();
-                            PrintWriter pw = new PrintWriter(sw);
-                            System.err.println("[EXCEPTION] " + line);
-                            t.printStackTrace(pw);
-                            pw.flush();
-                            StringTokenizer tokenizer = new StringTokenizer(sw.toString(), "\r\n");
-                            synchronized (_bot) {
-                                _bot.log("### Your implementation of PIRC Bot threw an exception. Good job, dumbass.");
-                                _bot.log("### ");
-                                while (tokenizer.hasMoreTokens()) {
-                                    _bot.log("### " + tokenizer.nextToken());
-                                }
+                    do {
+                        while (_framer.next()) {
+                            if (_keepAlive.lineRead(_framer)) {
+                                _bot.lineConsumed(_framer, System.nanoTime());
+                            } else {
+                                handleFrame(_bot, _framer, this);
                             }
                         }
-                    }
-                    if (line == null) {
-                        // The server must have disconnected us.
-                        running = false;
-                    }
+                    } while (this.keepAlive(_framer.getReadTime()) && _framer.read(_in) >= 0);
+                    // The server must have disconnected us, or stopped answering.
+                    running = false;
                 } catch (InterruptedIOException iioe) {
-                    // This will happen if we haven't received anything from the server for a while.
-                    // So we shall send it a ping to check that we are still connected.
-                    this.sendRawLine("PING " + (System.currentTimeMillis() / 1000));
-                    // Now we go back to listening for stuff from the server...
+                    // Nothing arrived for a second, so see if it is time to
+                    // PING the server or to give up on it.
+                    running = this.keepAlive(System.nanoTime());
                 }
             }
         } catch (Exception e) {
@@ -127,14 +322,28 @@ public class InputThread extends Thread {
         if (!_disposed) {
             _bot.log("*** Disconnected.");
             _isConnected = false;
-            _bot.onDisconnect();
+            _bot.disconnected(this);
         }
 
     }
 
+    /**
+     * Closes the socket. The thread that reads from it then stops, and calls
+     * onDisconnect.
+     */
+    @Override
+    public void close() {
+        try {
+            _socket.close();
+        } catch (Exception e) {
+            // Do nothing.
+        }
+    }
+
     /**
      * Closes the socket without onDisconnect being called subsequently.
      */
+    @Override
     public void dispose() {
         try {
             _disposed = true;
@@ -146,11 +355,34 @@ public class InputThread extends Thread {
 
     private PircBot _bot = null;
     private Socket _socket = null;
-    private BufferedReader _breader = null;
+    private InputStream _in = null;
+    private final LineFramer _framer;
+    private final KeepAlive _keepAlive;
     private BufferedWriter _bwriter = null;
-    private boolean _isConnected = true;
-    private boolean _disposed = false;
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final ConcurrentLinkedQueue<Pong> _pongs = new ConcurrentLinkedQueue<>();
+    private final Thread _thread;
+    private volatile boolean _isConnected = true;
+    private volatile boolean _disposed = false;
 
     public static int MAX_LINE_LENGTH = 1024;
 
+    /**
+     * A PONG waiting to be written, with the time its PING was read, or a
+     * keep alive PING of our own.
+     */
+    private static final class Pong {
+
+        final String line;
+        final long since;
+        // False for a keep alive PING.
+        final boolean answer;
+
+        Pong(String line, long since, boolean answer) {
+            this.line = line;
+            this.since = since;
+            this.answer = answer;
+        }
+    }
+
 }
@@ -0,0 +1,79 @@
+package PircBot;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * The connection of a PircBot to an IRC server, which reads lines from the
+ * server and hands them to the PircBot, and writes the lines we send.
+ * <p>
+ * By default every PircBot reads from a blocking socket on its own
+ * InputThread. A PircBot that has been given an IrcEventLoop uses an
+ * NioConnection instead, which shares the threads of the event loop with
+ * other PircBots.
+ */
+interface IrcConnection {
+
+    /**
+     * Reads the next line from the server, blocking until one arrives. This
+     * is only used while logging in, before startReading is called.
+     *
+     * @return The line without its line ending, or null if the server closed
+     * the connection.
+     * @throws IOException if the connection failed.
+     */
+    String readLine() throws IOException;
+
+    /**
+     * Starts handing every line read from the server to the PircBot, once we
+     * are logged in.
+     *
+     * @throws IOException if the connection failed.
+     */
+    void startReading() throws IOException;
+
+    /**
+     * Sends a raw line to the IRC server as soon as possible.
+     *
+     * @param line The raw line to send to the IRC server.
+     */
+    void sendRawLine(String line);
+
+    /**
+     * Sends several raw lines to the IRC server in a single write.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    void sendRawLines(List<String> lines);
+
+    /**
+     * Sends the PONG to a server PING ahead of any line that is waiting to be
+     * written, without ever waiting for another thread that is writing. The
+     * PircBot is told through pongSent once the PONG is on the wire.
+     *
+     * @param line The PONG line.
+     * @param since System.nanoTime() when the PING was read.
+     */
+    void sendPong(String line, long since);
+
+    /**
+     * Returns true if this connection is still open. The result should only
+     * act as a rough guide, as it may not be valid by the time you act upon
+     * it.
+     *
+     * @return True if still connected.
+     */
+    boolean isConnected();
+
+    /**
+     * Closes the connection, after which onDisconnect is called just as if
+     * the server had closed it.
+     */
+    void close();
+
+    /**
+     * Closes the connection without onDisconnect being called subsequently.
+     */
+    void dispose();
+
+}
@@ -0,0 +1,88 @@
+package PircBot;
+
+/**
+ * An event raised by a PircBot for a line it received, as passed to an
+ * IrcListener.
+ * <p>
+ * The event gives the parsed line, along with the Channel and User that
+ * PircBot worked out for it, so a listener can get at everything that the
+ * matching onXxx method would have been given.
+ */
+public final class IrcEvent {
+
+    private final EventType _type;
+    private final PircBot _bot;
+    private final IrcMessage _message;
+    private final Channel _channel;
+    private final User _user;
+
+    IrcEvent(EventType type, PircBot bot, IrcMessage message, Channel channel, User user) {
+        _type = type;
+        _bot = bot;
+        _message = message;
+        _channel = channel;
+        _user = user;
+    }
+
+    /**
+     * Returns the type of this event.
+     *
+     * @return The event type
+     */
+    public EventType getType() {
+        return _type;
+    }
+
+    /**
+     * Returns the PircBot that received the line.
+     *
+     * @return The PircBot
+     */
+    public PircBot getBot() {
+        return _bot;
+    }
+
+    /**
+     * Returns the line that caused this event.
+     *
+     * @return The parsed line
+     */
+    public IrcMessage getMessage() {
+        return _message;
+    }
+
+    /**
+     * Returns the channel this event is about.
+     *
+     * @return The Channel, or null if the event is not about a channel that
+     * we are in
+     */
+    public Channel getChannel() {
+        return _channel;
+    }
+
+    /**
+     * Returns the user that sent the line.
+     *
+     * @return The User, or null if the line was not sent by a user
+     */
+    public User getUser() {
+        return _user;
+    }
+
+    /**
+     * Returns the last parameter of the line, which is the text of a message,
+     * notice or whisper.
+     *
+     * @return The last parameter, or an empty String if there are none
+     */
+    public String getText() {
+        return _message.getParam(_message.getParamCount() - 1);
+    }
+
+    @Override
+    public String toString() {
+        return _type + " " + _message;
+    }
+
+}
@@ -0,0 +1,217 @@
+package PircBot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed group of I/O threads that serve the connections of many PircBots,
+ * so that a large number of bots does not need a reading thread each.
+ * <p>
+ * Every thread runs its own Selector, and connections are handed to the
+ * threads in turn. A thread reads from its connections into a single buffer
+ * that it shares between all of them, splits what it reads into lines and
+ * passes each line to the handleLine method of the PircBot it belongs to.
+ * <p>
+ * A PircBot uses an IrcEventLoop once it is given one with
+ * {@link PircBot#setEventLoop(IrcEventLoop)} before it connects. Since the
+ * onXxx methods of such a PircBot are called on a shared I/O thread, they
+ * should return quickly, or they will hold up every other PircBot served by
+ * the same thread. The exception is onDisconnect, which is called on a
+ * thread of a pool that the IrcEventLoop keeps for it, so that it may
+ * reconnect. An exception that escapes while a connection is served closes
+ * that connection only.
+ * <pre>
+ * IrcEventLoop loop = new IrcEventLoop(4);
+ * for (MyBot bot : bots) {
+ *     bot.setEventLoop(loop);
+ *     bot.connect("irc.chat.twitch.tv");
+ * }
+ * </pre>
+ */
+public final class IrcEventLoop {
+
+    /**
+     * The size of the buffer that each I/O thread reads into.
+     */
+    static final int READ_BUFFER_SIZE = 65536;
+
+    /**
+     * How long a thread that reported a disconnect waits for the next one
+     * before it ends, in seconds.
+     */
+    static final int DISCONNECT_THREAD_KEEP_ALIVE = 10;
+
+    private final Worker[] _workers;
+    private final AtomicInteger _next = new AtomicInteger();
+    // Runs onDisconnect. A thread is only made when none is idle, so a storm
+    // of disconnects reuses the threads of the ones that already returned.
+    private final ExecutorService _disconnects;
+
+    /**
+     * Constructs an IrcEventLoop with one I/O thread per processor.
+     *
+     * @throws IOException if a Selector could not be opened.
+     */
+    public IrcEventLoop() throws IOException {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs an IrcEventLoop and starts its I/O threads.
+     *
+     * @param threads Number of I/O threads
+     * @throws IOException if a Selector could not be opened.
+     */
+    public IrcEventLoop(int threads) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("An IrcEventLoop needs at least one thread.");
+        }
+        _workers = new Worker[threads];
+        AtomicInteger disconnectThreads = new AtomicInteger();
+        _disconnects = new ThreadPoolExecutor(0, Integer.MAX_VALUE, DISCONNECT_THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), task -> new Thread(task, "Pirc-Disconnect-" + disconnectThreads.getAndIncrement()));
+        for (int i = 0; i < threads; i++) {
+            _workers[i] = new Worker(Selector.open());
+        }
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(_workers[i], "Pirc-EventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Hands a connection to the next I/O thread, which starts reading from it.
+     *
+     * @param connection Connection in non-blocking mode
+     */
+    void register(NioConnection connection) {
+        _workers[Math.floorMod(_next.getAndIncrement(), _workers.length)].register(connection);
+    }
+
+    /**
+     * Tells a PircBot that its connection was closed, on a thread other than
+     * the I/O threads.
+     *
+     * @param bot The PircBot of the connection
+     * @param connection The connection that was closed
+     */
+    void disconnected(PircBot bot, NioConnection connection) {
+        _disconnects.execute(() -> bot.disconnected(connection));
+    }
+
+    /**
+     * Returns the number of connections being served.
+     *
+     * @return Number of connections
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (Worker worker : _workers) {
+            count += worker._selector.keys().size();
+        }
+        return count;
+    }
+
+    /**
+     * Closes every connection and stops the I/O threads. The PircBots that
+     * were connected through this IrcEventLoop are told that they have been
+     * disconnected.
+     */
+    public void shutdown() {
+        for (Worker worker : _workers) {
+            worker._running = false;
+            worker._selector.wakeup();
+        }
+    }
+
+    private static final class Worker implements Runnable {
+
+        private final Selector _selector;
+        // Connections waiting to be registered with the Selector.
+        private final ConcurrentLinkedQueue<NioConnection> _registrations = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean _running = true;
+
+        Worker(Selector selector) {
+            _selector = selector;
+        }
+
+        void register(NioConnection connection) {
+            _registrations.add(connection);
+            _selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            long nextIdleCheck = System.currentTimeMillis() + 1000;
+            while (_running) {
+                try {
+                    _selector.select(1000);
+                } catch (IOException e) {
+                    break;
+                }
+                NioConnection registration;
+                while ((registration = _registrations.poll()) != null) {
+                    try {
+                        registration.register(_selector);
+                    } catch (IOException e) {
+                        registration.close();
+                    } catch (RuntimeException e) {
+                        registration.failed(e);
+                    }
+                }
+                Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read(_readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (CancelledKeyException e) {
+                        connection.close();
+                    } catch (RuntimeException e) {
+                        // Only this connection is lost, not the whole thread.
+                        connection.failed(e);
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now >= nextIdleCheck) {
+                    for (SelectionKey key : _selector.keys()) {
+                        NioConnection connection = (NioConnection) key.attachment();
+                        try {
+                            connection.checkIdle(now);
+                        } catch (RuntimeException e) {
+                            connection.failed(e);
+                        }
+                    }
+                    nextIdleCheck = now + 1000;
+                }
+            }
+            for (SelectionKey key : _selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            try {
+                _selector.close();
+            } catch (IOException e) {
+                // Nothing more we can do.
+            }
+        }
+    }
+
+}
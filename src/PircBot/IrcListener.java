@@ -0,0 +1,20 @@
+package PircBot;
+
+/**
+ * Receives the events of a PircBot that it was registered for with
+ * {@link ListenerManager#addListener(IrcListener, EventType...)}.
+ * <p>
+ * Listeners are called on the same thread as the onXxx methods of the
+ * PircBot, and after them.
+ */
+public interface IrcListener {
+
+    /**
+     * Called for every event of a type, and channel if given, that this
+     * listener was registered for.
+     *
+     * @param event The event
+     */
+    void onEvent(IrcEvent event);
+
+}
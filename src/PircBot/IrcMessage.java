@@ -0,0 +1,346 @@
+package PircBot;
+
+/**
+ * A single line received from the IRC server, broken into its IRCv3 tags,
+ * prefix (nick, login and hostname), command and parameters.
+ * <p>
+ * The line is scanned exactly once when the IrcMessage is constructed, and
+ * only the offsets of each part are recorded. Strings are created only when a
+ * part is actually asked for, so handling a line does not pay for the parts
+ * that nobody reads.
+ * <p>
+ * For example, the line
+ * <pre>@color=#FF0000 :dave!dave@dave.tmi.twitch.tv PRIVMSG #cs :Hello there</pre>
+ * has the raw tags <code>color=#FF0000</code>, the nick <code>dave</code>, the
+ * command <code>PRIVMSG</code> and the two parameters <code>#cs</code> and
+ * <code>Hello there</code>.
+ */
+public final class IrcMessage {
+
+    /**
+     * The maximum number of parameters that are recorded individually, as
+     * specified by RFC 1459. Anything beyond this is left in the last
+     * parameter.
+     */
+    public static final int MAX_PARAMS = 15;
+
+    private final String _line;
+    private int _tagsStart = -1;
+    private int _tagsEnd = -1;
+    private int _prefixStart = -1;
+    private int _prefixEnd = -1;
+    private int _loginStart = -1;
+    private int _hostStart = -1;
+    private int _commandStart = 0;
+    private int _commandEnd = 0;
+    private final int[] _params = new int[MAX_PARAMS * 2];
+    private int _paramCount = 0;
+    private MessageTags _tags = null;
+
+    /**
+     * Parses a raw line from the IRC server.
+     *
+     * @param line The raw line, without the trailing "\r\n".
+     */
+    public IrcMessage(String line) {
+        _line = line;
+        int length = line.length();
+        int i = 0;
+
+        if (i < length && line.charAt(i) == '@') {
+            _tagsStart = 1;
+            _tagsEnd = endOfToken(1);
+            i = skipSpaces(_tagsEnd);
+        }
+
+        if (i < length && line.charAt(i) == ':') {
+            _prefixStart = i + 1;
+            _prefixEnd = endOfToken(_prefixStart);
+            int exclamation = line.indexOf('!', _prefixStart);
+            int at = exclamation < 0 ? -1 : line.indexOf('@', exclamation);
+            if (exclamation > _prefixStart && at > exclamation && at < _prefixEnd) {
+                _loginStart = exclamation + 1;
+                _hostStart = at + 1;
+            }
+            i = skipSpaces(_prefixEnd);
+        }
+
+        _commandStart = i;
+        _commandEnd = endOfToken(i);
+        i = skipSpaces(_commandEnd);
+
+        while (i < length && _paramCount < MAX_PARAMS) {
+            int start = i;
+            int end;
+            if (line.charAt(i) == ':') {
+                // The trailing parameter takes up the rest of the line.
+                start = i + 1;
+                end = length;
+            } else if (_paramCount == MAX_PARAMS - 1) {
+                end = length;
+            } else {
+                end = endOfToken(i);
+            }
+            _params[_paramCount * 2] = start;
+            _params[_paramCount * 2 + 1] = end;
+            _paramCount++;
+            i = skipSpaces(end);
+        }
+    }
+
+    private int endOfToken(int from) {
+        int space = _line.indexOf(' ', from);
+        return space < 0 ? _line.length() : space;
+    }
+
+    private int skipSpaces(int from) {
+        while (from < _line.length() && _line.charAt(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    /**
+     * Returns the raw line that this message was parsed from.
+     *
+     * @return The raw line from the server.
+     */
+    public String getLine() {
+        return _line;
+    }
+
+    /**
+     * Checks if this line starts with a set of IRCv3 tags.
+     *
+     * @return True if the line has tags, false otherwise
+     */
+    public boolean hasTags() {
+        return _tagsStart >= 0;
+    }
+
+    /**
+     * Returns the IRCv3 tags of this line exactly as they were sent, without
+     * the leading '@'.
+     *
+     * @return Raw tag string, or an empty String if the line has no tags.
+     */
+    public String getRawTags() {
+        return hasTags() ? _line.substring(_tagsStart, _tagsEnd) : "";
+    }
+
+    /**
+     * Returns the IRCv3 tags of this line. The tags are only split up the
+     * first time this method is called, and their values are only decoded
+     * when they are read.
+     *
+     * @return The tags of this line, which are empty if the line has none.
+     */
+    public MessageTags getTags() {
+        if (_tags == null) {
+            _tags = new MessageTags(_line, _tagsStart, _tagsEnd);
+        }
+        return _tags;
+    }
+
+    /**
+     * Checks if this line has a prefix, that is, if it was sent by a server or
+     * a user rather than being a bare command such as PING.
+     *
+     * @return True if the line has a prefix, false otherwise
+     */
+    public boolean hasPrefix() {
+        return _prefixStart >= 0;
+    }
+
+    /**
+     * Checks if the prefix of this line is of the form nick!login@hostname.
+     * If it is not, the line was most likely sent by the server itself.
+     *
+     * @return True if the prefix identifies a user, false otherwise
+     */
+    public boolean hasUserPrefix() {
+        return _loginStart >= 0;
+    }
+
+    /**
+     * Returns the prefix of this line, without the leading ':'.
+     *
+     * @return The prefix, or an empty String if there isn't one.
+     */
+    public String getPrefix() {
+        return hasPrefix() ? _line.substring(_prefixStart, _prefixEnd) : "";
+    }
+
+    /**
+     * Returns the nick of the sender. If the prefix does not identify a user,
+     * then the whole prefix (usually the server name) is returned.
+     *
+     * @return Nick of the sender, or an empty String if there is no prefix.
+     */
+    public String getNick() {
+        if (hasUserPrefix()) {
+            return _line.substring(_prefixStart, _loginStart - 1);
+        }
+        return getPrefix();
+    }
+
+    /**
+     * Returns the login of the sender.
+     *
+     * @return Login of the sender, or an empty String if unknown.
+     */
+    public String getLogin() {
+        return hasUserPrefix() ? _line.substring(_loginStart, _hostStart - 1) : "";
+    }
+
+    /**
+     * Returns the hostname of the sender.
+     *
+     * @return Hostname of the sender, or an empty String if unknown.
+     */
+    public String getHostname() {
+        return hasUserPrefix() ? _line.substring(_hostStart, _prefixEnd) : "";
+    }
+
+    /**
+     * Returns the command of this line exactly as it was sent, e.g.
+     * "PRIVMSG" or "353".
+     *
+     * @return The command.
+     */
+    public String getCommand() {
+        return _line.substring(_commandStart, _commandEnd);
+    }
+
+    /**
+     * Checks if the command of this line is the given command, ignoring case.
+     * This does not create any Strings.
+     *
+     * @param command Command to compare with, e.g. "PRIVMSG"
+     * @return True if the commands match, false otherwise
+     */
+    public boolean isCommand(String command) {
+        return _commandEnd - _commandStart == command.length()
+                && _line.regionMatches(true, _commandStart, command, 0, command.length());
+    }
+
+    /**
+     * Returns a hash of the command that ignores the case of ASCII letters,
+     * so that a command can be looked up in a table without creating a
+     * String. It equals {@link #commandHash(String, int, int)} of the command
+     * in upper case.
+     *
+     * @return The hash
+     */
+    int commandHash() {
+        return commandHash(_line, _commandStart, _commandEnd);
+    }
+
+    /**
+     * Returns a hash of part of a String that ignores the case of ASCII
+     * letters.
+     *
+     * @param s The String
+     * @param start Index of the first character
+     * @param end Index after the last character
+     * @return The hash
+     */
+    static int commandHash(String s, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                c -= 'a' - 'A';
+            }
+            hash = 31 * hash + c;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the numeric code of this line if the command is a three-digit
+     * server response.
+     *
+     * @return The numeric code, or -1 if the command is not numeric.
+     */
+    public int getNumeric() {
+        if (_commandEnd - _commandStart != 3) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = _commandStart; i < _commandEnd; i++) {
+            char c = _line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            code = code * 10 + (c - '0');
+        }
+        return code;
+    }
+
+    /**
+     * Returns the number of parameters following the command, including the
+     * trailing parameter.
+     *
+     * @return Number of parameters
+     */
+    public int getParamCount() {
+        return _paramCount;
+    }
+
+    /**
+     * Returns a single parameter. The trailing parameter is returned without
+     * its leading ':'.
+     *
+     * @param index Index of the parameter, starting at 0
+     * @return The parameter, or an empty String if there is no such parameter.
+     */
+    public String getParam(int index) {
+        if (index < 0 || index >= _paramCount) {
+            return "";
+        }
+        return _line.substring(_params[index * 2], _params[index * 2 + 1]);
+    }
+
+    /**
+     * Checks if a parameter starts with the given text. This does not create
+     * any Strings.
+     *
+     * @param index Index of the parameter, starting at 0
+     * @param prefix Text to look for
+     * @return True if there is such a parameter and it starts with prefix
+     */
+    public boolean paramStartsWith(int index, String prefix) {
+        if (index < 0 || index >= _paramCount) {
+            return false;
+        }
+        int start = _params[index * 2];
+        return _params[index * 2 + 1] - start >= prefix.length() && _line.startsWith(prefix, start);
+    }
+
+    /**
+     * Returns everything from the start of the given parameter up to the end
+     * of the line, exactly as it was sent. Unlike getParam, a ':' in front of
+     * the trailing parameter is kept.
+     *
+     * @param index Index of the first parameter to include, starting at 0
+     * @return The raw parameters, or an empty String if there is no such
+     * parameter.
+     */
+    public String getRawParams(int index) {
+        if (index < 0 || index >= _paramCount) {
+            return "";
+        }
+        int start = _params[index * 2];
+        if (start > 0 && _line.charAt(start - 1) == ':' && _params[index * 2 + 1] == _line.length()) {
+            start--;
+        }
+        return _line.substring(start);
+    }
+
+    @Override
+    public String toString() {
+        return _line;
+    }
+
+}
@@ -0,0 +1,144 @@
+package PircBot;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Probes a connection with PINGs of our own, measures the round trip time to
+ * the PONG the server sends back, and decides when the connection is dead.
+ * <p>
+ * A PING is sent every keep alive interval, whether or not the server has been
+ * quiet, so the round trip time is measured all the time. It is smoothed the
+ * way TCP smooths it (RFC 6298), giving an average and a mean deviation, the
+ * jitter. Once a PING is out, the connection is declared dead if nothing at
+ * all is read from the server for longer than the smoothed round trip time
+ * plus four times the jitter, but never sooner than the keep alive timeout
+ * set on the PircBot.
+ * <p>
+ * A KeepAlive belongs to a single connection, and is only used by the thread
+ * that reads from it.
+ */
+final class KeepAlive {
+
+    /**
+     * What the connection has to do after a check.
+     */
+    enum Action {
+        NONE, PROBE, DEAD
+    }
+
+    private static final byte[] PONG = "PONG".getBytes(StandardCharsets.US_ASCII);
+    private static final String TOKEN = "pirc-";
+
+    private final PircBot _bot;
+    private final long _interval;
+    private final long _minTimeout;
+    private final long _started = System.nanoTime();
+    private long _lastProbe = _started;
+    // The PING that has not been answered yet, if any.
+    private long _probeSent = 0;
+    private String _token = null;
+    private long _srtt = -1;
+    private long _rttvar = 0;
+
+    /**
+     * Constructs a KeepAlive with the keep alive settings of a PircBot.
+     *
+     * @param bot The PircBot the connection belongs to
+     */
+    KeepAlive(PircBot bot) {
+        _bot = bot;
+        _interval = bot.getKeepAliveInterval() * 1000000L;
+        _minTimeout = bot.getKeepAliveTimeout() * 1000000L;
+    }
+
+    /**
+     * Returns true unless keep alive PINGs are turned off.
+     *
+     * @return True if enabled
+     */
+    boolean isEnabled() {
+        return _interval > 0;
+    }
+
+    /**
+     * Looks at a line read from the server, to see if it is the PONG to one
+     * of our PINGs. Such a PONG is of no interest to anything else, so it is
+     * not handled any further.
+     *
+     * @param framer A LineFramer positioned on a complete line
+     * @return True if the line is the PONG to one of our PINGs
+     */
+    boolean lineRead(LineFramer framer) {
+        if (!framer.isCommand(PONG)) {
+            return false;
+        }
+        String pong = framer.fromCommand();
+        if (_token != null && pong.endsWith(_token)) {
+            long rtt = framer.getReadTime() - _probeSent;
+            if (_srtt < 0) {
+                _srtt = rtt;
+                _rttvar = rtt / 2;
+            } else {
+                _rttvar = (3 * _rttvar + Math.abs(_srtt - rtt)) / 4;
+                _srtt = (7 * _srtt + rtt) / 8;
+            }
+            _token = null;
+            _probeSent = 0;
+            _bot.roundTrip(rtt, _srtt, _rttvar);
+            return true;
+        }
+        // The late answer to a PING that we gave up on.
+        return _interval > 0 && pong.contains(":" + TOKEN);
+    }
+
+    /**
+     * Decides whether a PING should be sent or the connection is dead.
+     *
+     * @param now System.nanoTime()
+     * @param lastRead System.nanoTime() when something was last read
+     * @return What to do
+     */
+    Action check(long now, long lastRead) {
+        if (_interval <= 0) {
+            return Action.NONE;
+        }
+        if (_token != null) {
+            if (now - Math.max(lastRead, _probeSent) >= getTimeout()) {
+                return Action.DEAD;
+            }
+            if (lastRead - _probeSent <= 0 || now - _probeSent < _interval) {
+                return Action.NONE;
+            }
+            // The server is talking but ignored our PING, so try another.
+            _token = null;
+        }
+        return now - _lastProbe >= _interval ? Action.PROBE : Action.NONE;
+    }
+
+    /**
+     * Returns a new PING to send, and starts timing it.
+     *
+     * @param now System.nanoTime()
+     * @return The PING line
+     */
+    String probe(long now) {
+        _lastProbe = now;
+        _probeSent = now;
+        _token = TOKEN + Long.toHexString(now);
+        return "PING :" + _token;
+    }
+
+    /**
+     * Returns how long the connection may be silent, once a PING is out,
+     * before it is declared dead.
+     *
+     * @return The timeout in nanoseconds
+     */
+    long getTimeout() {
+        if (_srtt < 0) {
+            return _minTimeout;
+        }
+        return Math.max(_minTimeout, _srtt + 4 * _rttvar);
+    }
+
+}
@@ -0,0 +1,310 @@
+package PircBot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Splits the bytes received from an IRC server into lines.
+ * <p>
+ * Bytes are collected until a '\n' arrives, and only then is the line
+ * decoded, so a multi-byte character that is split between two reads is
+ * decoded correctly. Both "\r\n" and a bare "\n" end a line.
+ * <p>
+ * Lines are framed in place in a reusable buffer. The command of the current
+ * line can be checked on the raw bytes, so a line that nothing wants can be
+ * dropped without ever being decoded to a String. This relies on the tags,
+ * prefix and command being ASCII, which holds for every encoding that IRC
+ * servers use.
+ */
+final class LineFramer {
+
+    /**
+     * The most bytes we keep for a single line. A line that grows beyond this
+     * without ending has its first MAX_LINE_BYTES handed out as a line, rather
+     * than buffered forever, and the rest of it is dropped.
+     */
+    static final int MAX_LINE_BYTES = 65536;
+
+    // The least free space we read into when reading from a stream.
+    private static final int MIN_READ = 4096;
+
+    private final Charset _charset;
+    private byte[] _buffer;
+    // Start of the first line that has not been handed out yet.
+    private int _start = 0;
+    // Everything between _start and _scanned is known not to contain a '\n'.
+    private int _scanned = 0;
+    private int _end = 0;
+    // The current line, without its line ending.
+    private int _lineStart = 0;
+    private int _lineEnd = 0;
+    // Bytes the current line took up, including its line ending.
+    private int _lineBytes = 0;
+    // Where the command of the current line starts, or -1 if not found yet.
+    private int _commandStart = -1;
+    private int _commandEnd = -1;
+    // True while the rest of an overlong line is being dropped.
+    private boolean _discarding = false;
+    // System.nanoTime() of the latest feed or read.
+    private long _readTime = 0;
+
+    /**
+     * Constructs a LineFramer.
+     *
+     * @param charset The encoding of the lines sent by the server
+     */
+    LineFramer(Charset charset) {
+        this(charset, 1024);
+    }
+
+    /**
+     * Constructs a LineFramer.
+     *
+     * @param charset The encoding of the lines sent by the server
+     * @param size Initial size of the buffer in bytes
+     */
+    LineFramer(Charset charset, int size) {
+        _charset = charset;
+        _buffer = new byte[size];
+    }
+
+    /**
+     * Adds the bytes that remain in a buffer to the end of the data.
+     *
+     * @param bytes Buffer ready to be read from, which is emptied
+     */
+    void feed(ByteBuffer bytes) {
+        int length = bytes.remaining();
+        makeRoom(length);
+        bytes.get(_buffer, _end, length);
+        _end += length;
+        _readTime = System.nanoTime();
+    }
+
+    /**
+     * Reads whatever is available from a stream, straight into the buffer,
+     * blocking until at least one byte arrives.
+     *
+     * @param in The stream to read from
+     * @return Number of bytes read, or -1 at the end of the stream
+     * @throws IOException if the stream could not be read, or timed out
+     */
+    int read(InputStream in) throws IOException {
+        makeRoom(MIN_READ);
+        int read = in.read(_buffer, _end, _buffer.length - _end);
+        if (read > 0) {
+            _end += read;
+            _readTime = System.nanoTime();
+        }
+        return read;
+    }
+
+    /**
+     * Makes sure there is room for at least the given number of bytes after
+     * the data, moving the unread data to the front and growing if needed.
+     */
+    private void makeRoom(int length) {
+        if (_end + length <= _buffer.length) {
+            return;
+        }
+        int unread = _end - _start;
+        byte[] buffer = _buffer;
+        if (unread + length > _buffer.length) {
+            buffer = new byte[Math.max(_buffer.length * 2, unread + length)];
+        }
+        System.arraycopy(_buffer, _start, buffer, 0, unread);
+        _buffer = buffer;
+        _scanned -= _start;
+        _end = unread;
+        _start = 0;
+    }
+
+    /**
+     * Moves on to the next complete line, without decoding it. The line can
+     * then be looked at with isCommand and decoded with line, until next,
+     * feed or read is called again.
+     *
+     * @return True if there is a complete line, false if no complete line has
+     * been received yet.
+     */
+    boolean next() {
+        if (_discarding && !skipRest()) {
+            return false;
+        }
+        for (int i = _scanned; i < _end; i++) {
+            if (_buffer[i] == '\n') {
+                int lineEnd = i > _start && _buffer[i - 1] == '\r' ? i - 1 : i;
+                frame(lineEnd, i + 1);
+                return true;
+            }
+        }
+        _scanned = _end;
+        if (_end - _start >= MAX_LINE_BYTES) {
+            int cut = _start + MAX_LINE_BYTES;
+            frame(cut, cut);
+            _discarding = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops the rest of an overlong line, up to and including its '\n', so
+     * that it is not taken for lines of its own.
+     *
+     * @return True if the end of the line was found, false if everything
+     * received so far was dropped.
+     */
+    private boolean skipRest() {
+        for (int i = _scanned; i < _end; i++) {
+            if (_buffer[i] == '\n') {
+                _start = i + 1;
+                _scanned = i + 1;
+                _discarding = false;
+                return true;
+            }
+        }
+        _start = 0;
+        _scanned = 0;
+        _end = 0;
+        return false;
+    }
+
+    private void frame(int lineEnd, int next) {
+        _lineStart = _start;
+        _lineEnd = lineEnd;
+        _lineBytes = next - _start;
+        _commandStart = -1;
+        _start = next;
+        _scanned = next;
+        if (_start == _end) {
+            // The line stays in place until more data arrives.
+            _start = 0;
+            _scanned = 0;
+            _end = 0;
+        }
+    }
+
+    /**
+     * Decodes the current line.
+     *
+     * @return The line without its line ending
+     */
+    String line() {
+        return new String(_buffer, _lineStart, _lineEnd - _lineStart, _charset);
+    }
+
+    /**
+     * Decodes the current line from its command onwards, leaving out any tags
+     * and prefix.
+     *
+     * @return The command and its parameters
+     */
+    String fromCommand() {
+        if (_commandStart < 0) {
+            findCommand();
+        }
+        return new String(_buffer, _commandStart, _lineEnd - _commandStart, _charset);
+    }
+
+    /**
+     * Returns the number of bytes the current line took up as it was
+     * received, including its line ending.
+     *
+     * @return Size of the line in bytes
+     */
+    int lineBytes() {
+        return _lineBytes;
+    }
+
+    /**
+     * Returns when the bytes of the current line were last added to, which is
+     * as close as we can tell to when the line arrived.
+     *
+     * @return System.nanoTime() of the latest feed or read
+     */
+    long getReadTime() {
+        return _readTime;
+    }
+
+    /**
+     * Returns the next complete line.
+     *
+     * @return The line without its line ending, or null if no complete line
+     * has been received yet.
+     */
+    String nextLine() {
+        return next() ? line() : null;
+    }
+
+    /**
+     * Checks the command of the current line, ignoring case.
+     *
+     * @param command The command in upper case, as ASCII bytes
+     * @return True if the line has that command
+     */
+    boolean isCommand(byte[] command) {
+        if (_commandStart < 0) {
+            findCommand();
+        }
+        if (_commandEnd - _commandStart != command.length) {
+            return false;
+        }
+        for (int i = 0; i < command.length; i++) {
+            int b = _buffer[_commandStart + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != command[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the command of the current line, skipping its tags and prefix.
+     */
+    private void findCommand() {
+        int i = _lineStart;
+        if (i < _lineEnd && _buffer[i] == '@') {
+            i = skipWord(i);
+        }
+        if (i < _lineEnd && _buffer[i] == ':') {
+            i = skipWord(i);
+        }
+        int end = i;
+        while (end < _lineEnd && _buffer[end] != ' ') {
+            end++;
+        }
+        _commandStart = i;
+        _commandEnd = end;
+    }
+
+    /**
+     * Returns the index of the first character after a word and the spaces
+     * that follow it.
+     */
+    private int skipWord(int i) {
+        while (i < _lineEnd && _buffer[i] != ' ') {
+            i++;
+        }
+        while (i < _lineEnd && _buffer[i] == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns true if there are bytes that have not been handed out as part
+     * of a line yet.
+     *
+     * @return True if some data is buffered.
+     */
+    boolean hasBufferedData() {
+        return _end > _start;
+    }
+
+}
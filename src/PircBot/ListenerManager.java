@@ -0,0 +1,153 @@
+package PircBot;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the IrcListeners of a PircBot, each registered for a set of event
+ * types and optionally a single channel.
+ * <p>
+ * Every PircBot has one, returned by {@link PircBot#getListenerManager()}.
+ * Lines of a type that neither has a listener nor an overridden onXxx method
+ * are skipped as early as possible, without parsing their tags or creating a
+ * User, as long as skipping them does not leave the channels and users
+ * PircBot keeps track of out of date.
+ * <pre>
+ * bot.getListenerManager().addListener(event -&gt; log(event.getText()), "#cs", EventType.MESSAGE);
+ * </pre>
+ * Listeners may be added and removed at any time, from any thread. Looking up
+ * the listeners of an event never takes a lock.
+ */
+public final class ListenerManager {
+
+    private static final Registration[] NONE = new Registration[0];
+
+    // The registrations of each event type, indexed by ordinal. Replaced as a
+    // whole on every change so that readers never see a partial update.
+    private volatile Registration[][] _registrations;
+
+    private static final class Registration {
+
+        final IrcListener listener;
+        final String channel;
+
+        Registration(IrcListener listener, String channel) {
+            this.listener = listener;
+            this.channel = channel;
+        }
+
+        boolean matches(String target) {
+            return channel == null || channel.equalsIgnoreCase(target);
+        }
+    }
+
+    ListenerManager() {
+        Registration[][] registrations = new Registration[EventType.values().length][];
+        for (int i = 0; i < registrations.length; i++) {
+            registrations[i] = NONE;
+        }
+        _registrations = registrations;
+    }
+
+    /**
+     * Registers a listener for events of the given types in any channel, and
+     * for those that are not about a channel.
+     *
+     * @param listener The listener
+     * @param types The event types to receive
+     */
+    public void addListener(IrcListener listener, EventType... types) {
+        add(listener, null, types);
+    }
+
+    /**
+     * Registers a listener for events of the given types in a single channel.
+     * Events that are not sent to a channel, such as QUIT and NICK, never
+     * reach it.
+     *
+     * @param listener The listener
+     * @param channel Name of the channel, e.g. "#cs"
+     * @param types The event types to receive
+     */
+    public void addListener(IrcListener listener, String channel, EventType... types) {
+        if (channel == null) {
+            throw new NullPointerException("Cannot listen to a null channel.");
+        }
+        add(listener, channel, types);
+    }
+
+    private synchronized void add(IrcListener listener, String channel, EventType... types) {
+        if (listener == null) {
+            throw new NullPointerException("Cannot add a null listener.");
+        }
+        Registration[][] registrations = _registrations.clone();
+        for (EventType type : types) {
+            Registration[] old = registrations[type.ordinal()];
+            Registration[] added = Arrays.copyOf(old, old.length + 1);
+            added[old.length] = new Registration(listener, channel);
+            registrations[type.ordinal()] = added;
+        }
+        _registrations = registrations;
+    }
+
+    /**
+     * Removes every registration of a listener.
+     *
+     * @param listener The listener
+     */
+    public synchronized void removeListener(IrcListener listener) {
+        Registration[][] registrations = _registrations.clone();
+        for (int i = 0; i < registrations.length; i++) {
+            Registration[] kept = NONE;
+            for (Registration registration : registrations[i]) {
+                if (registration.listener != listener) {
+                    kept = Arrays.copyOf(kept, kept.length + 1);
+                    kept[kept.length - 1] = registration;
+                }
+            }
+            registrations[i] = kept;
+        }
+        _registrations = registrations;
+    }
+
+    /**
+     * Checks if any listener wants an event.
+     *
+     * @param type Type of the event
+     * @param target Channel or nick the line was sent to
+     * @return True if a listener is registered for the event
+     */
+    boolean hasListeners(EventType type, String target) {
+        for (Registration registration : _registrations[type.ordinal()]) {
+            if (registration.matches(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if any listener wants events of a type, from any target.
+     *
+     * @param type Type of the event
+     * @return True if a listener is registered for the type
+     */
+    boolean hasListeners(EventType type) {
+        return _registrations[type.ordinal()].length > 0;
+    }
+
+    /**
+     * Passes an event to every listener that wants it, in the order they were
+     * added.
+     *
+     * @param event The event
+     * @param target Channel or nick the line was sent to
+     */
+    void fire(IrcEvent event, String target) {
+        for (Registration registration : _registrations[event.getType().ordinal()]) {
+            if (registration.matches(target)) {
+                registration.listener.onEvent(event);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,261 @@
+package PircBot;
+
+import java.util.HashMap;
+
+/**
+ * The IRCv3 tags of a single line from the server, such as the
+ * <code>color=#FF0000;display-name=Dave;mod=1</code> sent by Twitch.
+ * <p>
+ * The offsets of every tag are recorded once when the tags are first read.
+ * Values are only cut out of the line (and unescaped) when they are asked
+ * for, and numeric and boolean values can be read without creating a String
+ * at all.
+ * <p>
+ * Tag names are case sensitive, as specified by IRCv3.
+ */
+public final class MessageTags {
+
+    private final String _line;
+    // For each tag: start of the key, end of the key, end of the value.
+    // If the tag has no value, the end of the key and the end of the value
+    // are the same.
+    private final int[] _offsets;
+    private final int _count;
+
+    /**
+     * Records the offsets of the tags between start and end in a line.
+     *
+     * @param line The raw line from the server
+     * @param start Index of the first character of the tags, after the '@'
+     * @param end Index just past the last character of the tags
+     */
+    MessageTags(String line, int start, int end) {
+        _line = line;
+        int count = 0;
+        if (start < end) {
+            count = 1;
+            for (int i = start; i < end; i++) {
+                if (line.charAt(i) == ';') {
+                    count++;
+                }
+            }
+        }
+        _offsets = new int[count * 3];
+        int tag = 0;
+        int i = start;
+        while (tag < count) {
+            int tagEnd = line.indexOf(';', i);
+            if (tagEnd < 0 || tagEnd > end) {
+                tagEnd = end;
+            }
+            int equals = line.indexOf('=', i);
+            if (equals < 0 || equals > tagEnd) {
+                equals = tagEnd;
+            }
+            if (equals > i) {
+                _offsets[tag * 3] = i;
+                _offsets[tag * 3 + 1] = equals;
+                _offsets[tag * 3 + 2] = tagEnd;
+                tag++;
+            } else {
+                // Empty tag, e.g. a stray ';'.
+                count--;
+            }
+            i = tagEnd + 1;
+        }
+        _count = count;
+    }
+
+    private int indexOf(String key) {
+        int length = key.length();
+        for (int i = 0; i < _count; i++) {
+            int keyStart = _offsets[i * 3];
+            if (_offsets[i * 3 + 1] - keyStart == length && _line.regionMatches(keyStart, key, 0, length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String value(int index) {
+        int start = _offsets[index * 3 + 1] + 1;
+        int end = _offsets[index * 3 + 2];
+        if (start >= end) {
+            return "";
+        }
+        int escape = _line.indexOf('\\', start);
+        if (escape < 0 || escape >= end) {
+            return _line.substring(start, end);
+        }
+        StringBuilder value = new StringBuilder(end - start);
+        value.append(_line, start, escape);
+        for (int i = escape; i < end; i++) {
+            char c = _line.charAt(i);
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            i++;
+            if (i == end) {
+                // A lone backslash at the end is dropped.
+                break;
+            }
+            c = _line.charAt(i);
+            switch (c) {
+                case ':':
+                    value.append(';');
+                    break;
+                case 's':
+                    value.append(' ');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                default:
+                    value.append(c);
+            }
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns the number of tags.
+     *
+     * @return Number of tags
+     */
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Checks if there are no tags.
+     *
+     * @return True if there are no tags, false otherwise
+     */
+    public boolean isEmpty() {
+        return _count == 0;
+    }
+
+    /**
+     * Checks if a tag is present, with or without a value.
+     *
+     * @param key Name of the tag
+     * @return True if the tag is present, false otherwise
+     */
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the unescaped value of a tag.
+     *
+     * @param key Name of the tag
+     * @return Value of the tag, an empty String if the tag has no value, or
+     * null if the tag is not present.
+     */
+    public String get(String key) {
+        int index = indexOf(key);
+        return index < 0 ? null : value(index);
+    }
+
+    /**
+     * Returns the unescaped value of a tag.
+     *
+     * @param key Name of the tag
+     * @param defaultValue Value to return if the tag is not present
+     * @return Value of the tag, or defaultValue if the tag is not present.
+     */
+    public String get(String key, String defaultValue) {
+        int index = indexOf(key);
+        return index < 0 ? defaultValue : value(index);
+    }
+
+    /**
+     * Returns the value of a tag as a long, e.g. "room-id" or "tmi-sent-ts".
+     *
+     * @param key Name of the tag
+     * @param defaultValue Value to return if the tag is not present, is empty
+     * or is not a number
+     * @return Value of the tag, or defaultValue.
+     */
+    public long getLong(String key, long defaultValue) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        int start = _offsets[index * 3 + 1] + 1;
+        int end = _offsets[index * 3 + 2];
+        boolean negative = start < end && _line.charAt(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i >= end) {
+            return defaultValue;
+        }
+        if (end - i > 18) {
+            // Could overflow, so let Long deal with it.
+            try {
+                return Long.parseLong(_line.substring(start, end));
+            } catch (NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = _line.charAt(i);
+            if (c < '0' || c > '9') {
+                return defaultValue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Returns the value of a boolean tag such as "mod" or "subscriber".
+     *
+     * @param key Name of the tag
+     * @return True if the value of the tag is "1", false otherwise
+     */
+    public boolean getFlag(String key) {
+        return getFlag(key, false);
+    }
+
+    /**
+     * Returns the value of a boolean tag such as "mod" or "subscriber".
+     *
+     * @param key Name of the tag
+     * @param defaultValue Value to return if the tag is not present
+     * @return True if the value of the tag is "1", defaultValue if the tag is
+     * not present, false otherwise
+     */
+    public boolean getFlag(String key, boolean defaultValue) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        int start = _offsets[index * 3 + 1] + 1;
+        return _offsets[index * 3 + 2] - start == 1 && _line.charAt(start) == '1';
+    }
+
+    /**
+     * Copies every tag into a new HashMap. This unescapes every value, so
+     * prefer the other accessors when only a few tags are needed.
+     *
+     * @return HashMap from tag name to unescaped value
+     */
+    public HashMap<String, String> toMap() {
+        HashMap<String, String> map = new HashMap<>();
+        for (int i = 0; i < _count; i++) {
+            map.put(_line.substring(_offsets[i * 3], _offsets[i * 3 + 1]), value(i));
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return toMap().toString();
+    }
+
+}
@@ -0,0 +1,363 @@
+package PircBot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * A connection to an IRC server that is served by an IrcEventLoop rather than
+ * by a thread of its own.
+ * <p>
+ * While logging in, the SocketChannel is used in blocking mode by the thread
+ * that called connect. After that it is switched to non-blocking mode and
+ * handed to the event loop, together with anything that was already read but
+ * not yet split into lines.
+ * <p>
+ * Lines can be sent from any thread. They are written straight to the socket
+ * if it will take them, and are otherwise kept until the event loop finds the
+ * socket writable again. If more than MAX_PENDING_BYTES are kept that way,
+ * the server is not reading, and the connection is closed.
+ */
+final class NioConnection implements IrcConnection {
+
+    /**
+     * The most bytes kept waiting for the socket to become writable.
+     */
+    static final int MAX_PENDING_BYTES = 1 << 20;
+
+    private final PircBot _bot;
+    private final IrcEventLoop _loop;
+    private final SocketChannel _channel;
+    private final Charset _charset;
+    private final float _maxBytesPerChar;
+    private final LineFramer _framer;
+    private final KeepAlive _keepAlive;
+    private final ArrayDeque<ByteBuffer> _pending = new ArrayDeque<>();
+    // Bytes waiting in _pending.
+    private long _pendingBytes = 0;
+    private SelectionKey _key = null;
+    private ByteBuffer _loginBuffer = ByteBuffer.allocate(4096);
+    // The PONG that is waiting in _pending, if any, and when its PING was read.
+    private ByteBuffer _pong = null;
+    private String _pongLine = null;
+    private long _pongSince = 0;
+    private volatile boolean _isConnected = true;
+    private volatile boolean _disposed = false;
+
+    /**
+     * Constructs an NioConnection.
+     *
+     * @param bot The PircBot that the lines are for
+     * @param loop The event loop that will serve this connection
+     * @param channel A connected SocketChannel in blocking mode
+     * @param charset The encoding used by the server
+     */
+    NioConnection(PircBot bot, IrcEventLoop loop, SocketChannel channel, Charset charset) {
+        _bot = bot;
+        _loop = loop;
+        _channel = channel;
+        _charset = charset;
+        _maxBytesPerChar = charset.newEncoder().maxBytesPerChar();
+        _framer = new LineFramer(charset);
+        _keepAlive = new KeepAlive(bot);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        String line;
+        while ((line = _framer.nextLine()) == null) {
+            _loginBuffer.clear();
+            if (_channel.read(_loginBuffer) < 0) {
+                return null;
+            }
+            _loginBuffer.flip();
+            _framer.feed(_loginBuffer);
+        }
+        return line;
+    }
+
+    @Override
+    public void startReading() throws IOException {
+        _loginBuffer = null;
+        synchronized (_pending) {
+            _channel.configureBlocking(false);
+        }
+        _loop.register(this);
+    }
+
+    /**
+     * Registers the channel with the Selector of an I/O thread, and handles
+     * any lines left over from logging in. Called on that I/O thread.
+     */
+    void register(Selector selector) throws IOException {
+        synchronized (_pending) {
+            int ops = _pending.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+            _key = _channel.register(selector, ops, this);
+        }
+        dispatchLines();
+    }
+
+    /**
+     * Reads whatever the server has sent and handles every complete line.
+     * Called on the I/O thread.
+     *
+     * @param buffer The read buffer of the I/O thread
+     */
+    void read(ByteBuffer buffer) {
+        try {
+            int read;
+            do {
+                buffer.clear();
+                read = _channel.read(buffer);
+                if (read > 0) {
+                    buffer.flip();
+                    _framer.feed(buffer);
+                }
+            } while (read == buffer.capacity());
+            if (read < 0) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        dispatchLines();
+    }
+
+    private void dispatchLines() {
+        while (_isConnected && _framer.next()) {
+            if (_keepAlive.lineRead(_framer)) {
+                _bot.lineConsumed(_framer, System.nanoTime());
+            } else {
+                InputThread.handleFrame(_bot, _framer, this);
+            }
+        }
+    }
+
+    /**
+     * Sends a keep alive PING if one is due, and closes the connection if the
+     * server has stopped answering, just like the InputThread does. Called on
+     * the I/O thread about once a second.
+     */
+    void checkIdle(long now) {
+        long nanos = System.nanoTime();
+        switch (_keepAlive.check(nanos, _framer.getReadTime())) {
+            case PROBE:
+                sendRawLine(_keepAlive.probe(nanos));
+                break;
+            case DEAD:
+                _bot.log("*** No reply from the server for " + _keepAlive.getTimeout() / 1000000 + " ms.");
+                close();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void sendRawLine(String line) {
+        line = truncate(line);
+        ByteBuffer buffer = encode(line, ByteBuffer.allocate(encodedLength(line)));
+        buffer.flip();
+        if (write(buffer)) {
+            _bot.log(">>>" + line);
+        }
+    }
+
+    @Override
+    public void sendRawLines(List<String> lines) {
+        int length = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = truncate(lines.get(i));
+            lines.set(i, line);
+            length += encodedLength(line);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (String line : lines) {
+            encode(line, buffer);
+        }
+        buffer.flip();
+        if (write(buffer)) {
+            for (String line : lines) {
+                _bot.log(">>>" + line);
+            }
+        }
+    }
+
+    /**
+     * Writes a PONG straight away if nothing is waiting to be written, and
+     * otherwise puts it in front of everything that is waiting, behind only
+     * a line that has been partly written.
+     */
+    @Override
+    public void sendPong(String line, long since) {
+        ByteBuffer buffer = encode(line, ByteBuffer.allocate(encodedLength(line)));
+        buffer.flip();
+        synchronized (_pending) {
+            if (_pending.isEmpty()) {
+                if (!write(buffer)) {
+                    return;
+                }
+                _bot.log(">>>" + line);
+                if (!buffer.hasRemaining()) {
+                    _bot.pongSent(line, System.nanoTime() - since);
+                    return;
+                }
+                // The rest is now waiting in _pending.
+            } else if (_isConnected) {
+                _pendingBytes += buffer.remaining();
+                ByteBuffer first = _pending.pollFirst();
+                if (first.position() > 0) {
+                    _pending.addFirst(buffer);
+                    _pending.addFirst(first);
+                } else {
+                    _pending.addFirst(first);
+                    _pending.addFirst(buffer);
+                }
+                _bot.log(">>>" + line);
+            } else {
+                return;
+            }
+            _pong = buffer;
+            _pongLine = line;
+            _pongSince = since;
+        }
+    }
+
+    private String truncate(String line) {
+        if (line.length() > _bot.getMaxLineLength() - 2) {
+            line = line.substring(0, _bot.getMaxLineLength() - 2);
+        }
+        return line;
+    }
+
+    private int encodedLength(String line) {
+        return (int) (line.length() * _maxBytesPerChar) + 2;
+    }
+
+    private ByteBuffer encode(String line, ByteBuffer buffer) {
+        buffer.put(line.getBytes(_charset));
+        buffer.put((byte) '\r');
+        buffer.put((byte) '\n');
+        return buffer;
+    }
+
+    /**
+     * Writes as much of a buffer as the socket will take, and keeps the rest
+     * to be written when the socket becomes writable.
+     *
+     * @return False if the connection is closed, true otherwise.
+     */
+    private boolean write(ByteBuffer buffer) {
+        synchronized (_pending) {
+            if (!_isConnected) {
+                return false;
+            }
+            try {
+                if (_pending.isEmpty()) {
+                    _channel.write(buffer);
+                }
+                if (buffer.hasRemaining()) {
+                    if (_pendingBytes + buffer.remaining() > MAX_PENDING_BYTES) {
+                        _bot.log("*** The server is not reading what we send.");
+                        close();
+                        return false;
+                    }
+                    _pending.addLast(buffer);
+                    _pendingBytes += buffer.remaining();
+                    if (_key != null && _key.isValid()) {
+                        _key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        _key.selector().wakeup();
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                // The reading side will notice the connection is gone.
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes the lines that the socket would not take before. Called on the
+     * I/O thread when the socket is writable.
+     */
+    void flush() {
+        synchronized (_pending) {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = _pending.peekFirst()) != null) {
+                    _pendingBytes -= _channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    _pending.pollFirst();
+                    if (buffer == _pong) {
+                        _pong = null;
+                        _bot.pongSent(_pongLine, System.nanoTime() - _pongSince);
+                    }
+                }
+                _key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                _pending.clear();
+                _pendingBytes = 0;
+            }
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return _isConnected;
+    }
+
+    /**
+     * Logs an exception that escaped while this connection was served by the
+     * I/O thread, and closes the connection.
+     *
+     * @param e The exception
+     */
+    void failed(RuntimeException e) {
+        InputThread.logException(_bot, "Serving the connection", e);
+        close();
+    }
+
+    /**
+     * Closes the connection, and tells the PircBot unless it was disposed.
+     * The PircBot is told on a thread of the IrcEventLoop's disconnect pool,
+     * as onDisconnect may take its time, e.g. to reconnect, and must not hold
+     * up the I/O thread.
+     */
+    @Override
+    public void close() {
+        synchronized (_pending) {
+            if (!_isConnected) {
+                return;
+            }
+            _isConnected = false;
+            _pending.clear();
+            _pendingBytes = 0;
+        }
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            // Just assume the channel was already closed.
+        }
+        if (!_disposed) {
+            _bot.log("*** Disconnected.");
+            _loop.disconnected(_bot, this);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        _disposed = true;
+        close();
+    }
+
+}
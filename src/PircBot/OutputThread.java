@@ -13,18 +13,26 @@
 package PircBot;
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
 
 /**
- * A Thread which is responsible for sending messages to the IRC server.
+ * The task which is responsible for sending messages to the IRC server.
  * Messages are obtained from the outgoing message queue and sent immediately if
  * possible. If there is a flood of messages, then to avoid getting kicked from
- * a channel, we put a small delay between each one.
+ * a channel, we put a small delay between each one, or leave it to the
+ * RateLimiter of the PircBot if it has one.
+ * <p>
+ * It runs on a thread made by the ThreadFactory of the PircBot, if it has
+ * one.
  *
  * @author Paul James Mutton,
  * <a href="http://www.jibble.org/">http://www.jibble.org/</a>
  * @version 1.5.0 (Build time: Mon Dec 14 20:07:17 2009)
  */
-public class OutputThread extends Thread {
+public class OutputThread implements Runnable {
 
     /**
      * Constructs an OutputThread for the underlying PircBot. All messages sent
@@ -38,64 +46,192 @@ public class OutputThread extends Thread {
     OutputThread(PircBot bot, Queue outQueue) {
         _bot = bot;
         _outQueue = outQueue;
-        this.setName("Pirc-Output-" + bot.getServer() + "-" + bot.getNick());
+        _thread = bot.newThread(this, "Pirc-Output-" + bot.getServer() + "-" + bot.getNick());
+    }
+
+    /**
+     * Starts sending messages from the outgoing message Queue.
+     */
+    void start() {
+        _thread.start();
+    }
+
+    /**
+     * Stops sending messages, once the line being sent has gone out.
+     */
+    void interrupt() {
+        _thread.interrupt();
     }
 
     /**
      * A static method to write a line to a BufferedOutputStream and then pass
-     * the line to the log method of the supplied PircBot instance.
+     * the line to the log method of the supplied PircBot instance. The caller
+     * must make sure that no other thread writes to the BufferedWriter at the
+     * same time.
      *
      * @param bot The underlying PircBot instance.
      * @param bwriter The BufferedWriter to write to.
      * @param line The line to be written. "\r\n" is appended to the end.
      */
     static void sendRawLine(PircBot bot, BufferedWriter bwriter, String line) {
-        if (line.length() > bot.getMaxLineLength() - 2) {
-            line = line.substring(0, bot.getMaxLineLength() - 2);
+        try {
+            line = writeLine(bot, bwriter, line);
+            bwriter.flush();
+            bot.log(">>>" + line);
+        } catch (Exception e) {
+            // Silent response - just lose the line.
         }
-        synchronized (bwriter) {
-            try {
-                bwriter.write(line + "\r\n");
-                bwriter.flush();
+    }
+
+    /**
+     * Writes several lines to a BufferedWriter and flushes it once, so that
+     * they go out together rather than one write to the socket per line. The
+     * caller must make sure that no other thread writes to the BufferedWriter
+     * at the same time.
+     *
+     * @param bot The underlying PircBot instance.
+     * @param bwriter The BufferedWriter to write to.
+     * @param lines The lines to be written. "\r\n" is appended to each.
+     */
+    static void sendRawLines(PircBot bot, BufferedWriter bwriter, List<String> lines) {
+        try {
+            for (int i = 0; i < lines.size(); i++) {
+                lines.set(i, writeLine(bot, bwriter, lines.get(i)));
+            }
+            bwriter.flush();
+            for (String line : lines) {
                 bot.log(">>>" + line);
-            } catch (Exception e) {
-                // Silent response - just lose the line.
             }
+        } catch (Exception e) {
+            // Silent response - just lose the lines.
         }
     }
 
+    /**
+     * Writes a line without flushing, truncating it to the maximum line
+     * length first.
+     *
+     * @return The line as written, without the "\r\n".
+     */
+    private static String writeLine(PircBot bot, BufferedWriter bwriter, String line) throws IOException {
+        if (line.length() > bot.getMaxLineLength() - 2) {
+            line = line.substring(0, bot.getMaxLineLength() - 2);
+        }
+        bwriter.write(line);
+        bwriter.write("\r\n");
+        return line;
+    }
+
     /**
      * This method starts the Thread consuming from the outgoing message Queue
      * and sending lines to the server.
+     * <p>
+     * When the PircBot has a RateLimiter, a line is only taken off the Queue
+     * once the RateLimiter allows it to be sent, and the most urgent lane
+     * whose line is allowed goes first, so that e.g. a JOIN that has to wait
+     * for the JOIN limit does not hold up the messages behind it. Every line
+     * that is already queued and may be sent straight away is sent along with
+     * the first one, up to the maximum batch size, and they are all flushed to
+     * the socket at once. Without a RateLimiter, the same is done when the
+     * message delay is 0, since every queued line may then go at once.
      */
     @Override
     public void run() {
         try {
-            boolean running = true;
-            while (running) {
-                // Small delay to prevent spamming of the channel
-                Thread.sleep(_bot.getMessageDelay());
-                String line = _outQueue.next();
-                if (line != null) {
+            String pending = null;
+            ArrayList<String> batch = new ArrayList<>();
+            while (true) {
+                RateLimiter limiter = _bot.getRateLimiter();
+                if (limiter == null && pending == null && _bot.getMessageDelay() > 0) {
+                    // Small delay to prevent spamming of the channel
+                    Thread.sleep(_bot.getMessageDelay());
+                    String line = _outQueue.next();
+                    if (line == null) {
+                        break;
+                    }
                     _bot.sendRawLine(line);
-                    if (line.startsWith("PRIVMSG")) {
-                        String msg = "";
-                        try{
-                            msg = line.split(" :", 2)[1];
-                        }catch(Exception ex){
-                            
-                        }
-                        _bot.onSentMessage(line.split("PRIVMSG ", 2)[1].split(" :", 2)[0], line.split(" :", 2)[1]);
+                    sent(line);
+                    continue;
+                }
+                String line = pending;
+                pending = null;
+                _limitedSince = 0;
+                if (line == null) {
+                    line = limiter == null ? _outQueue.next() : _outQueue.next(this.delay(limiter));
+                    if (line == null) {
+                        break;
                     }
+                } else if (limiter == null) {
+                    _bot.sendRawLine(line);
+                    sent(line);
+                    continue;
+                }
+                if (limiter != null && !limiter.tryAcquire(line)) {
+                    // Only for a RateLimiter that does not know delay.
+                    long start = System.nanoTime();
+                    limiter.acquire(line);
+                    _limitedSince = start;
+                }
+                if (_limitedSince != 0) {
+                    long waited = System.nanoTime() - _limitedSince;
+                    if (waited >= STALL_NANOS) {
+                        _bot.getMetrics().rateLimited(waited);
+                    }
+                }
+                batch.add(line);
+                int bytes = line.length() + 2;
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(_bot.getMaxBatchDelay());
+                ToLongFunction<String> delay = limiter == null ? NO_DELAY : limiter::delay;
+                while (bytes < _bot.getMaxBatchBytes()) {
+                    String more = _outQueue.poll(Math.max(0, deadline - System.nanoTime()), delay);
+                    if (more == null) {
+                        break;
+                    }
+                    if (limiter != null && !limiter.tryAcquire(more)) {
+                        pending = more;
+                        break;
+                    }
+                    batch.add(more);
+                    bytes += more.length() + 2;
+                }
+                if (batch.size() == 1) {
+                    _bot.sendRawLine(line);
                 } else {
-                    running = false;
+                    _bot.sendRawLines(batch);
                 }
+                for (String el : batch) {
+                    sent(el);
+                }
+                batch.clear();
             }
         } catch (InterruptedException e) {
             // Just let the method return naturally...
         }
     }
 
+    /**
+     * Wraps RateLimiter.delay to note when the line to be sent next was first
+     * held up by the RateLimiter.
+     */
+    private ToLongFunction<String> delay(RateLimiter limiter) {
+        return line -> {
+            long delay = limiter.delay(line);
+            if (delay > 0 && _limitedSince == 0) {
+                _limitedSince = System.nanoTime();
+            }
+            return delay;
+        };
+    }
+
+    /**
+     * Lets the PircBot know about a PRIVMSG that has been sent.
+     */
+    private void sent(String line) {
+        if (line.startsWith("PRIVMSG")) {
+            _bot.onSentMessage(line.split("PRIVMSG ", 2)[1].split(" :", 2)[0], line.split(" :", 2)[1]);
+        }
+    }
+
     /**
      * Checks if the queue contains a specified string.
      *
@@ -105,7 +241,16 @@ public class OutputThread extends Thread {
     public boolean checkQueue(String input) {
         return _outQueue.contains(input);
     }
+    // Lets every line be sent straight away, when there is no RateLimiter.
+    private static final ToLongFunction<String> NO_DELAY = line -> 0;
+    // Shortest wait for the RateLimiter that counts as being held up.
+    private static final long STALL_NANOS = 100000;
+    // System.nanoTime() when the line being waited for was first held up, or
+    // 0 if it was not.
+    private long _limitedSince = 0;
+
     private PircBot _bot = null;
     private Queue _outQueue = null;
+    private final Thread _thread;
 
 }
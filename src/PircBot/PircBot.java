@@ -20,7 +20,15 @@ import static PircBot.ReplyConstants.RPL_LIST;
 import static PircBot.ReplyConstants.RPL_NAMREPLY;
 import static PircBot.ReplyConstants.RPL_TOPIC;
 import static PircBot.ReplyConstants.RPL_TOPICINFO;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * PircBot is a Java framework for writing IRC bots quickly and easily.
@@ -70,8 +78,44 @@ public abstract class PircBot implements ReplyConstants {
     private static final int VOICE_REMOVE = 4;
 
     // Connection stuff.
-    private InputThread _inputThread = null;
+    private volatile IrcConnection _connection = null;
     private OutputThread _outputThread = null;
+    private IrcEventLoop _eventLoop = null;
+    private ThreadFactory _threadFactory = null;
+    private volatile EventDispatcher _eventDispatcher = null;
+    private volatile TrafficRecorder _trafficRecorder = null;
+    private volatile PircBotMetrics _metrics = PircBotMetrics.NONE;
+    private volatile ReconnectSupervisor _reconnectSupervisor = null;
+    // True from quitting the server until the next connect.
+    private volatile boolean _quitting = false;
+    // Moving onto a new connection after a RECONNECT, if we are.
+    private volatile Handover _handover = null;
+    // Held while a line is accepted and handled, so the two connections of a
+    // Handover never handle lines at the same time.
+    private final Object _lineLock = new Object();
+    // The CAP REQ lines sent since we connected, whether by sendRawLine or in
+    // a batch by sendRawLines, to be sent again on a new connection.
+    private final List<String> _capRequests = new CopyOnWriteArrayList<>();
+
+    // The listeners of this PircBot, and the event types whose onXxx methods
+    // are overridden.
+    private final ListenerManager _listeners = new ListenerManager();
+    private final Set<EventType> _handled = EventType.handledBy(getClass());
+    // Whether a subclass overrides log, in which case it may want every line.
+    private final boolean _logs = overrides(getClass(), "log");
+    // Whether a subclass overrides onServerPing, which rules out answering
+    // PINGs before they reach handleLine.
+    private final boolean _pings = overrides(getClass(), "onServerPing");
+    private volatile long _pongLatency = -1;
+    private long _keepAliveInterval = 30000;
+    private long _keepAliveTimeout = 10000;
+    private volatile long _roundTripTime = -1;
+    private volatile long _roundTripJitter = -1;
+
+    // Handlers set by the user for commands and numerics that PircBot does
+    // not know about.
+    private final ConcurrentHashMap<String, CommandHandler> _commandHandlers = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<CommandHandler> _numericHandlers = new AtomicReferenceArray<>(1000);
     private String _charset = null;
     private InetAddress _inetAddress = null;
 
@@ -83,10 +127,15 @@ public abstract class PircBot implements ReplyConstants {
     // Outgoing message stuff.
     private Queue _outQueue = new Queue();
     private long _messageDelay = 1000;
+    private RateLimiter _rateLimiter = null;
+    private int _maxBatchBytes = 8192;
+    private long _maxBatchDelay = 0;
 
-    // A ConcurrentHashMap of channels that points to a selfreferential ConcurrentHashMap of
-    // User objects (used to remember which users are in which channels).
-    private final ConcurrentHashMap<String, Channel> _channels = new ConcurrentHashMap<>();
+    // The channels we are in, each of which knows its users (used to remember
+    // which users are in which channels).
+    private final ChannelRegistry _channels = new ChannelRegistry();
+    // Lowercased channel name to the key it was joined with.
+    private final ConcurrentHashMap<String, String> _channelKeys = new ConcurrentHashMap<>();
 
     // A ConcurrentHashMap to temporarily store channel topics when we join them
     // until we find out who set that topic.
@@ -100,6 +149,10 @@ public abstract class PircBot implements ReplyConstants {
     // Default settings for the PircBot.
     private boolean _autoNickChange = false;
     private boolean _verbose = false;
+    private boolean _trackUserActivity = false;
+    // True once this PircBot has logged onto a server, so that the metrics
+    // can tell a reconnect from the first connect.
+    private volatile boolean _connectedBefore = false;
     private String _name = "PircBot";
     private String _nick = _name;
     private String _login = "PircBot";
@@ -114,6 +167,10 @@ public abstract class PircBot implements ReplyConstants {
      * changing the default settings if required.
      */
     public PircBot() {
+        _outQueue.setWeights(target -> {
+            Channel channel = _channels.get(target);
+            return channel == null ? 1 : channel.getWeight();
+        });
     }
 
     /**
@@ -165,6 +222,9 @@ public abstract class PircBot implements ReplyConstants {
         _server = hostname;
         _port = port;
         _password = password;
+        _quitting = false;
+        _handover = null;
+        _capRequests.clear();
 
         if (isConnected()) {
             throw new IrcException("The PircBot is already connected to an IRC server.  Disconnect first.");
@@ -175,47 +235,33 @@ public abstract class PircBot implements ReplyConstants {
         this.removeAllChannels();
 
         // Connect to the server.
-        Socket socket = new Socket(hostname, port);
-        this.log("*** Connected to server.");
-
-        _inetAddress = socket.getLocalAddress();
-
-        InputStreamReader inputStreamReader = null;
-        OutputStreamWriter outputStreamWriter = null;
-        if (getEncoding() != null) {
-            // Assume the specified encoding is valid for this JVM.
-            inputStreamReader = new InputStreamReader(socket.getInputStream(), getEncoding());
-            outputStreamWriter = new OutputStreamWriter(socket.getOutputStream(), getEncoding());
+        IrcConnection connection;
+        if (_eventLoop != null) {
+            connection = openChannel(hostname, port);
         } else {
-            // Otherwise, just use the JVM's default encoding.
-            inputStreamReader = new InputStreamReader(socket.getInputStream());
-            outputStreamWriter = new OutputStreamWriter(socket.getOutputStream());
+            connection = openSocket(hostname, port);
         }
-
-        BufferedReader breader = new BufferedReader(inputStreamReader);
-        BufferedWriter bwriter = new BufferedWriter(outputStreamWriter);
+        _connection = connection;
 
         // Attempt to join the server.
         if (password != null && !password.equals("")) {
-            OutputThread.sendRawLine(this, bwriter, "PASS " + password);
+            connection.sendRawLine("PASS " + password);
         }
         String nick = this.getName();
-        OutputThread.sendRawLine(this, bwriter, "NICK " + nick);
-        OutputThread.sendRawLine(this, bwriter, "USER " + this.getLogin() + " 8 * :" + this.getVersion());
-
-        _inputThread = new InputThread(this, socket, breader, bwriter);
+        connection.sendRawLine("NICK " + nick);
+        connection.sendRawLine("USER " + this.getLogin() + " 8 * :" + this.getVersion());
 
         // Read stuff back from the server to see if we connected.
         String line = null;
         int tries = 1;
-        while ((line = breader.readLine()) != null) {
+        while ((line = connection.readLine()) != null) {
 
+            this.recordLine(line);
             this.handleLine(line);
 
-            int firstSpace = line.indexOf(" ");
-            int secondSpace = line.indexOf(" ", firstSpace + 1);
-            if (secondSpace >= 0) {
-                String code = line.substring(firstSpace + 1, secondSpace);
+            IrcMessage message = new IrcMessage(line);
+            if (message.getParamCount() > 0) {
+                String code = message.getCommand();
 
                 if (code.equals("004")) {
                     // We're connected to the server.
@@ -224,17 +270,17 @@ public abstract class PircBot implements ReplyConstants {
                     if (_autoNickChange) {
                         tries++;
                         nick = getName() + tries;
-                        OutputThread.sendRawLine(this, bwriter, "NICK " + nick);
+                        connection.sendRawLine("NICK " + nick);
                     } else {
-                        socket.close();
-                        _inputThread = null;
+                        connection.dispose();
+                        _connection = null;
                         throw new NickAlreadyInUseException(line);
                     }
                 } else if (code.equals("439")) {
                     // No action required.
                 } else if (code.startsWith("5") || code.startsWith("4")) {
-                    socket.close();
-                    _inputThread = null;
+                    connection.dispose();
+                    _connection = null;
                     throw new IrcException("Could not log into the IRC server: " + line);
                 }
             }
@@ -243,13 +289,17 @@ public abstract class PircBot implements ReplyConstants {
         }
 
         this.log("*** Logged onto server.");
+        _pongLatency = -1;
+        _roundTripTime = -1;
+        _roundTripJitter = -1;
+        _metrics.connected();
+        if (_connectedBefore) {
+            _metrics.reconnected();
+        }
+        _connectedBefore = true;
 
-        // This makes the socket timeout on read operations after 5 minutes.
-        // Maybe in some future version I will let the user change this at runtime.
-        socket.setSoTimeout(5 * 60 * 1000);
-
-        // Now start the InputThread to read all other lines from the server.
-        _inputThread.start();
+        // Now start reading all other lines from the server.
+        connection.startReading();
 
         // Now start the outputThread that will be used to send all messages.
         if (_outputThread == null) {
@@ -261,6 +311,395 @@ public abstract class PircBot implements ReplyConstants {
 
     }
 
+    /**
+     * Opens a blocking socket to the server, to be read by an InputThread of
+     * its own.
+     */
+    private IrcConnection openSocket(String hostname, int port) throws IOException {
+        Socket socket = new Socket(hostname, port);
+        this.log("*** Connected to server.");
+
+        _inetAddress = socket.getLocalAddress();
+
+        // Lines are framed on the raw bytes, and only decoded when needed.
+        Charset charset = this.charset();
+        BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), charset));
+
+        return new InputThread(this, socket, socket.getInputStream(), charset, bwriter);
+    }
+
+    /**
+     * Opens a SocketChannel to the server, to be served by the event loop
+     * once we are logged in.
+     */
+    private IrcConnection openChannel(String hostname, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, port));
+        this.log("*** Connected to server.");
+
+        _inetAddress = channel.socket().getLocalAddress();
+
+        return new NioConnection(this, _eventLoop, channel, this.charset());
+    }
+
+    /**
+     * Opens and logs on a second connection to the server we are connected
+     * to, and starts reading from it alongside the one in use. It joins no
+     * channels yet; that is up to the Handover.
+     *
+     * @param old The connection in use, which the server asked us to leave
+     * @param since System.nanoTime() when the server asked
+     * @return The Handover, or null if old is no longer the connection in use
+     * @throws IOException if it was not possible to connect to the server.
+     * @throws IrcException if the server would not let us log on.
+     */
+    Handover openStandby(IrcConnection old, long since) throws IOException, IrcException {
+        if (_connection != old || !old.isConnected()) {
+            return null;
+        }
+        IrcConnection standby;
+        if (_eventLoop != null) {
+            standby = openChannel(_server, _port);
+        } else {
+            standby = openSocket(_server, _port);
+        }
+        try {
+            if (_password != null && !_password.equals("")) {
+                standby.sendRawLine("PASS " + _password);
+            }
+            standby.sendRawLine("NICK " + this.getNick());
+            standby.sendRawLine("USER " + this.getLogin() + " 8 * :" + this.getVersion());
+            String line;
+            while ((line = standby.readLine()) != null) {
+                this.log(line);
+                IrcMessage message = new IrcMessage(line);
+                String code = message.getCommand();
+                if (code.equals("004")) {
+                    break;
+                } else if (!code.equals("439") && (code.startsWith("5") || code.startsWith("4"))) {
+                    throw new IrcException("Could not log into the IRC server: " + line);
+                }
+            }
+            if (line == null) {
+                throw new IOException("The server closed the new connection while logging in.");
+            }
+            for (String request : _capRequests) {
+                standby.sendRawLine(request);
+            }
+            Handover handover = new Handover(this, old, standby, since, this.getChannels());
+            _handover = handover;
+            standby.startReading();
+            return handover;
+        } catch (IOException | IrcException e) {
+            standby.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a Handover's new connection the one in use, and closes the old
+     * one without onDisconnect being called.
+     *
+     * @param old The connection that was in use
+     * @param standby The new connection
+     */
+    void switchConnection(IrcConnection old, IrcConnection standby) {
+        _connection = standby;
+        _pongLatency = -1;
+        _roundTripTime = -1;
+        _roundTripJitter = -1;
+        old.dispose();
+        _metrics.connected();
+        _metrics.reconnected();
+    }
+
+    /**
+     * Decides whether a line read from a connection is handled. Always true,
+     * unless a Handover is under way and the line has been seen already.
+     *
+     * @param connection The connection the line was read from
+     * @param line The raw line
+     * @return True to handle the line
+     */
+    boolean accepts(IrcConnection connection, String line) {
+        Handover handover = _handover;
+        if (handover == null) {
+            return true;
+        }
+        if (handover.isOver(System.nanoTime())) {
+            _handover = null;
+            return true;
+        }
+        return handover.accept(connection, line);
+    }
+
+    /**
+     * Returns the lock that is held while a line is accepted and handled.
+     * There is only one reader at a time outside a Handover, so it is hardly
+     * ever contended, but it keeps the old and the new connection from
+     * handling lines at once, and a line that is still being handled when a
+     * Handover starts from overlapping the first line of the new connection.
+     *
+     * @return The lock
+     */
+    Object lineLock() {
+        return _lineLock;
+    }
+
+    /**
+     * Returns the encoding to talk to the server in.
+     */
+    private Charset charset() {
+        if (getEncoding() != null) {
+            // Assume the specified encoding is valid for this JVM.
+            return Charset.forName(getEncoding());
+        }
+        // Otherwise, just use the JVM's default encoding.
+        return Charset.defaultCharset();
+    }
+
+    /**
+     * Sets the IrcEventLoop that serves the connection of this PircBot. If
+     * set, the next call to connect will share the I/O threads of the event
+     * loop with other PircBots instead of starting an InputThread. If set to
+     * null, which is the default, every connection gets its own InputThread.
+     * <p>
+     * Note that the onXxx methods are then called on a thread shared with
+     * other PircBots, so they should not block.
+     *
+     * @param eventLoop The IrcEventLoop to use, or null for an InputThread
+     */
+    public final synchronized void setEventLoop(IrcEventLoop eventLoop) {
+        _eventLoop = eventLoop;
+    }
+
+    /**
+     * Returns the IrcEventLoop that serves the connection of this PircBot.
+     *
+     * @return The IrcEventLoop, or null if an InputThread is used
+     */
+    public final synchronized IrcEventLoop getEventLoop() {
+        return _eventLoop;
+    }
+
+    /**
+     * Sets the ThreadFactory that makes the threads of this PircBot: the
+     * InputThread, the OutputThread and the threads of DCC transfers and
+     * chat requests. On Java 21 and later, passing
+     * <code>Thread.ofVirtual().factory()</code> runs them all on virtual
+     * threads, so that many thousands of bots cost very few platform threads.
+     * If set to null, which is the default, platform threads are used.
+     * <p>
+     * The factory is used for threads started after this call, so it should
+     * be set before connecting.
+     *
+     * @param threadFactory The ThreadFactory to use, or null for platform
+     * threads
+     */
+    public final void setThreadFactory(ThreadFactory threadFactory) {
+        _threadFactory = threadFactory;
+    }
+
+    /**
+     * Returns the ThreadFactory that makes the threads of this PircBot.
+     *
+     * @return The ThreadFactory, or null if platform threads are used
+     */
+    public final ThreadFactory getThreadFactory() {
+        return _threadFactory;
+    }
+
+    /**
+     * Sets the EventDispatcher that calls the onXxx methods of this PircBot.
+     * If set, the thread that reads from the server only parses each line and
+     * updates the channels and users, and the onXxx methods are called on the
+     * threads of the dispatcher, so that a slow handler does not stop us from
+     * reading. If set to null, which is the default, the onXxx methods are
+     * called on the reading thread.
+     * <p>
+     * onConnect, onDisconnect, onServerPing and the DCC methods are always
+     * called right away, so that the PONG to a server PING is never held up.
+     * An EventDispatcher may be shared by many PircBots.
+     *
+     * @param dispatcher The EventDispatcher to use, or null to call the onXxx
+     * methods on the reading thread
+     */
+    public final void setEventDispatcher(EventDispatcher dispatcher) {
+        _eventDispatcher = dispatcher;
+    }
+
+    /**
+     * Returns the EventDispatcher that calls the onXxx methods of this
+     * PircBot.
+     *
+     * @return The EventDispatcher, or null if the onXxx methods are called on
+     * the reading thread
+     */
+    public final EventDispatcher getEventDispatcher() {
+        return _eventDispatcher;
+    }
+
+    /**
+     * Sets the TrafficRecorder that every line received from the server is
+     * recorded to, for replaying later with TrafficReplay. If set to null,
+     * which is the default, nothing is recorded.
+     *
+     * @param recorder The TrafficRecorder to use, or null to stop recording
+     */
+    public final void setTrafficRecorder(TrafficRecorder recorder) {
+        _trafficRecorder = recorder;
+    }
+
+    /**
+     * Returns the TrafficRecorder that lines received from the server are
+     * recorded to.
+     *
+     * @return The TrafficRecorder, or null if nothing is recorded
+     */
+    public final TrafficRecorder getTrafficRecorder() {
+        return _trafficRecorder;
+    }
+
+    /**
+     * Sets the PircBotMetrics that are told about the lines this PircBot
+     * reads and sends, how long it takes to handle them, the outgoing queue
+     * and so on. The default is PircBotMetrics.NONE, which measures nothing.
+     *
+     * @param metrics The PircBotMetrics to use, such as an InMemoryMetrics
+     */
+    public final void setMetrics(PircBotMetrics metrics) {
+        if (metrics == null) {
+            metrics = PircBotMetrics.NONE;
+        }
+        _metrics = metrics;
+        _outQueue.setMetrics(metrics);
+    }
+
+    /**
+     * Returns the PircBotMetrics of this PircBot.
+     *
+     * @return The PircBotMetrics, which is PircBotMetrics.NONE if nothing is
+     * measured
+     */
+    public final PircBotMetrics getMetrics() {
+        return _metrics;
+    }
+
+    /**
+     * Sets the ReconnectSupervisor that reconnects this PircBot when it loses
+     * its connection, and joins its channels again. If set to null, which is
+     * the default, nothing is done beyond calling onDisconnect.
+     *
+     * @param supervisor The ReconnectSupervisor to use, or null to stay
+     * disconnected
+     */
+    public final void setReconnectSupervisor(ReconnectSupervisor supervisor) {
+        ReconnectSupervisor old = _reconnectSupervisor;
+        if (old != null && old != supervisor) {
+            old.cancel(this);
+        }
+        _reconnectSupervisor = supervisor;
+    }
+
+    /**
+     * Returns the ReconnectSupervisor of this PircBot.
+     *
+     * @return The ReconnectSupervisor, or null if this PircBot is not
+     * reconnected automatically
+     */
+    public final ReconnectSupervisor getReconnectSupervisor() {
+        return _reconnectSupervisor;
+    }
+
+    /**
+     * Called by a connection once it has been lost. Tells the metrics and
+     * the ReconnectSupervisor, unless we quit, and then calls onDisconnect.
+     * During a handover, losing either connection does not disconnect us.
+     *
+     * @param connection The connection that was lost
+     */
+    void disconnected(IrcConnection connection) {
+        Handover handover = _handover;
+        if (handover != null && handover.disconnected(connection)) {
+            return;
+        }
+        _handover = null;
+        _metrics.disconnected();
+        ReconnectSupervisor supervisor = _reconnectSupervisor;
+        if (supervisor != null && !_quitting) {
+            supervisor.disconnected(this);
+        }
+        this.onDisconnect();
+    }
+
+    /**
+     * Records a line received from the server if there is a TrafficRecorder.
+     *
+     * @param line The raw line from the server
+     */
+    void recordLine(String line) {
+        TrafficRecorder recorder = _trafficRecorder;
+        if (recorder != null) {
+            recorder.record(line);
+        }
+    }
+
+    /**
+     * Returns the ListenerManager of this PircBot, which is used to register
+     * IrcListeners for the events of this PircBot as an alternative to
+     * overriding the onXxx methods.
+     *
+     * @return The ListenerManager
+     */
+    public final ListenerManager getListenerManager() {
+        return _listeners;
+    }
+
+    /**
+     * Sets the handler for a command that PircBot does not know about, so it
+     * is passed to the handler instead of to onUnknown. For a numeric reply,
+     * such as "421", the handler is called after PircBot has dealt with the
+     * reply itself and before onServerResponse.
+     *
+     * @param command The command, e.g. "CAP" or "421"
+     * @param handler The handler, or null to remove the handler of the
+     * command
+     * @throws IllegalArgumentException if PircBot handles the command itself
+     */
+    public final void setCommandHandler(String command, CommandHandler handler) {
+        command = command.toUpperCase();
+        int code = new IrcMessage(command).getNumeric();
+        if (code != -1) {
+            _numericHandlers.set(code, handler);
+        } else if (command(new IrcMessage(command)) != null) {
+            throw new IllegalArgumentException("PircBot already handles " + command + " commands.");
+        } else if (handler == null) {
+            _commandHandlers.remove(command);
+        } else {
+            _commandHandlers.put(command, handler);
+        }
+    }
+
+    /**
+     * Makes a new, unstarted thread for this PircBot with the ThreadFactory,
+     * if there is one.
+     *
+     * @param task The task to run on the thread
+     * @param name The name to give the thread
+     * @return The new thread
+     */
+    Thread newThread(Runnable task, String name) {
+        ThreadFactory factory = _threadFactory;
+        if (factory == null) {
+            // Not a daemon, even when made on a daemon thread when reconnecting.
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(false);
+            return thread;
+        }
+        Thread thread = factory.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
     /**
      * Checks the output queue for a specified command. This method does not
      * automatically append IRC Commands, so if you want to search for a
@@ -375,10 +814,7 @@ public abstract class PircBot implements ReplyConstants {
         } catch (Exception ex) {
             System.err.println("[EXCEPTION] " + ex.toString());
         }
-        this.sendRawLine("JOIN " + channel);
-        Channel chan = new Channel(channel, this.getServer());
-        this._channels.put(channel, chan);
-        return chan;
+        return this.join(channel, null);
     }
 
     /**
@@ -402,7 +838,27 @@ public abstract class PircBot implements ReplyConstants {
         } catch (Exception ex) {
             System.err.println("[EXCEPTION] " + ex.toString());
         }
-        return this.joinChannel(channel + " " + key);
+        // Kept to join the channel again after a reconnect.
+        _channelKeys.put(channel.toLowerCase(), key);
+        return this.join(channel, key);
+    }
+
+    private Channel join(String channel, String key) {
+        // Known before the JOIN is sent, as the server may answer straight away.
+        Channel chan = new Channel(channel, this.getServer());
+        this._channels.put(chan);
+        this.sendRawLine(key == null ? "JOIN " + channel : "JOIN " + channel + " " + key);
+        return chan;
+    }
+
+    /**
+     * Returns the key a channel was last joined with, until we part it.
+     *
+     * @param channel The name of the channel
+     * @return The key, or null if it was joined without one
+     */
+    String getChannelKey(String channel) {
+        return _channelKeys.get(channel.toLowerCase());
     }
 
     /**
@@ -426,6 +882,7 @@ public abstract class PircBot implements ReplyConstants {
         }
         this.sendRawLine("PART " + channel);
         this._channels.remove(channel);
+        _channelKeys.remove(channel.toLowerCase());
     }
 
     /**
@@ -450,6 +907,7 @@ public abstract class PircBot implements ReplyConstants {
         }
         this.sendRawLine("PART " + channel + " :" + reason);
         this._channels.remove(channel);
+        _channelKeys.remove(channel.toLowerCase());
     }
 
     /**
@@ -470,19 +928,61 @@ public abstract class PircBot implements ReplyConstants {
      * @param reason The reason for quitting the server.
      */
     public final void quitServer(String reason) {
+        _quitting = true;
+        ReconnectSupervisor supervisor = _reconnectSupervisor;
+        if (supervisor != null) {
+            supervisor.cancel(this);
+        }
         this.sendRawLine("QUIT :" + reason);
         this._channels.clear();
+        _channelKeys.clear();
     }
 
     /**
      * Sends a raw line to the IRC server as soon as possible, bypassing the
      * outgoing message queue.
+     * <p>
+     * The OutputThread also calls this method for lines from the outgoing
+     * message queue, but only when it sends them one at a time. When a
+     * RateLimiter is set or the message delay is 0, lines that may all be sent
+     * at once are written together without passing through this method, so a
+     * subclass that overrides it to see every line sent should set the
+     * maximum batch size to 0 with {@link #setMaxBatchBytes(int)}. Either way,
+     * every line sent is passed to {@link PircBotMetrics#lineSent(String)}.
      *
      * @param line The raw line to send to the IRC server.
      */
-    public synchronized void sendRawLine(String line) {
-        if (isConnected()) {
-            _inputThread.sendRawLine(line);
+    public void sendRawLine(String line) {
+        IrcConnection connection = _connection;
+        if (connection != null && connection.isConnected()) {
+            connection.sendRawLine(line);
+            _metrics.lineSent(line);
+            if (line.startsWith("CAP REQ")) {
+                _capRequests.add(line);
+            }
+        }
+    }
+
+    /**
+     * Sends several raw lines to the IRC server in a single write. Used by the
+     * OutputThread for lines from the outgoing message queue that may all be
+     * sent at once, so these lines do not pass through sendRawLine, which
+     * may be overridden. Anything sendRawLine itself does for every line has
+     * to be done here too.
+     *
+     * @param lines The raw lines to send to the IRC server.
+     */
+    void sendRawLines(List<String> lines) {
+        IrcConnection connection = _connection;
+        if (connection != null && connection.isConnected()) {
+            connection.sendRawLines(lines);
+            PircBotMetrics metrics = _metrics;
+            for (String line : lines) {
+                metrics.lineSent(line);
+                if (line.startsWith("CAP REQ")) {
+                    _capRequests.add(line);
+                }
+            }
         }
     }
 
@@ -936,687 +1436,832 @@ public abstract class PircBot implements ReplyConstants {
      * output if the PircBot has had its verbose mode turned on by calling
      * setVerbose(true);
      *
-     * @param line The line to add to the log.
+     * @param line The line to add to the log.
+     */
+    public void log(String line) {
+        if (_verbose) {
+            System.out.println(System.currentTimeMillis() + " " + line);
+        }
+    }
+
+    /**
+     * This method handles events when any line of text arrives from the server,
+     * then calling the appropriate method in the PircBot. This method is
+     * protected and only called by the InputThread for this instance.
+     * <p>
+     * This method may not be overridden!
+     *
+     * @param line The raw line of text from the server.
+     */
+    protected void handleLine(String line) {
+        this.log(line);
+
+        // Check for server pings.
+        if (line.startsWith("PING ")) {
+            // Respond to the ping and return immediately.
+            this.onServerPing(line.substring(5));
+            return;
+        }
+
+        IrcMessage message = new IrcMessage(line);
+
+        int code = message.getNumeric();
+        if (code != -1 && !message.hasUserPrefix()) {
+            this.processServerResponse(message, code, message.getRawParams(0));
+            // Return from the method.
+            return;
+        }
+
+        Command handler = command(message);
+        if (this.canSkip(handler, message)) {
+            // Nothing wants this line, and it does not change any state.
+            return;
+        }
+
+        String target = message.getParam(0);
+        Channel channel = target.startsWith("#") ? _channels.get(target) : null;
+        if (handler != null) {
+            // The handler works out the User that sent the line, if it needs
+            // one.
+            handler.handler.handle(this, message, target, channel);
+            return;
+        }
+        if (!_commandHandlers.isEmpty()) {
+            CommandHandler custom = _commandHandlers.get(message.getCommand().toUpperCase());
+            if (custom != null) {
+                custom.handleCommand(this, message);
+                return;
+            }
+        }
+        // If we reach this point, then we've found something that the PircBot
+        // Doesn't currently deal with.
+        User user = this.wants(EventType.UNKNOWN, target) ? this.sender(message, target, channel) : null;
+        this.dispatch(EventType.UNKNOWN, target, message, channel, user, () -> this.onUnknown(line));
+    }
+
+    /**
+     * Handles a line of a command that PircBot knows about.
+     */
+    private interface LineHandler {
+
+        void handle(PircBot bot, IrcMessage message, String target, Channel channel);
+    }
+
+    /**
+     * An entry of the table of commands that PircBot knows about.
+     */
+    private static final class Command {
+
+        // The command in upper case.
+        final String name;
+        final LineHandler handler;
+
+        Command(String name, LineHandler handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    // The commands that PircBot knows about, in an open addressing table by
+    // IrcMessage.commandHash. Looking a command up ignores its case, costs
+    // the same no matter how many commands there are and creates no Strings.
+    private static final Command[] COMMANDS = new Command[64];
+
+    static {
+        command("PRIVMSG", PircBot::handlePrivmsg);
+        command("WHISPER", PircBot::handleWhisper);
+        command("NOTICE", PircBot::handleNotice);
+        command("USERNOTICE", PircBot::handleUserNotice);
+        command("ROOMSTATE", PircBot::handleRoomState);
+        command("USERSTATE", PircBot::handleUserState);
+        command("GLOBALUSERSTATE", PircBot::handleGlobalUserState);
+        command("CLEARCHAT", PircBot::handleClearChat);
+        command("HOSTTARGET", PircBot::handleHostTarget);
+        command("JOIN", PircBot::handleJoin);
+        command("PART", PircBot::handlePart);
+        command("NICK", PircBot::handleNick);
+        command("QUIT", PircBot::handleQuit);
+        command("KICK", PircBot::handleKick);
+        command("MODE", PircBot::handleMode);
+        command("TOPIC", PircBot::handleTopic);
+        command("INVITE", PircBot::handleInvite);
+        command("RECONNECT", PircBot::handleReconnect);
+    }
+
+    private static void command(String name, LineHandler handler) {
+        int i = IrcMessage.commandHash(name, 0, name.length()) & (COMMANDS.length - 1);
+        while (COMMANDS[i] != null) {
+            i = (i + 1) & (COMMANDS.length - 1);
+        }
+        COMMANDS[i] = new Command(name, handler);
+    }
+
+    /**
+     * Looks up the command of a line.
+     *
+     * @param message The line from the server
+     * @return The Command, or null if PircBot does not know the command
+     */
+    private static Command command(IrcMessage message) {
+        for (int i = message.commandHash() & (COMMANDS.length - 1); COMMANDS[i] != null; i = (i + 1) & (COMMANDS.length - 1)) {
+            if (message.isCommand(COMMANDS[i].name)) {
+                return COMMANDS[i];
+            }
+        }
+        return null;
+    }
+
+    private void handlePrivmsg(IrcMessage message, String target, Channel channel) {
+        String text = message.getParam(1);
+        if (text.length() > 1 && text.charAt(0) == '\u0001' && text.endsWith("\u0001")) {
+            // Check for CTCP requests.
+            this.handleCtcp(message, target, channel, text.substring(1, text.length() - 1));
+        } else if (!target.isEmpty() && _channelPrefixes.indexOf(target.charAt(0)) >= 0) {
+            // This is a normal message to a channel.
+            if (_trackUserActivity) {
+                this.updateUserLastMessage(target, message.getNick(), text);
+                this.updateUserAFK(target, message.getNick(), false);
+            }
+            User user = this.wants(EventType.MESSAGE, target) ? this.sender(message, target, channel) : null;
+            this.dispatch(EventType.MESSAGE, target, message, channel, user, () -> this.onMessage(channel, user, text));
+        } else {
+            // This is a private message to us.
+            User user = this.sender(message, target, channel);
+            this.dispatch(EventType.PRIVATE_MESSAGE, target, message, channel, user, () -> this.onPrivateMessage(user, text));
+        }
+    }
+
+    private void handleCtcp(IrcMessage message, String target, Channel channel, String request) {
+        User user = this.sender(message, target, channel);
+        StringTokenizer tokenizer;
+        if (request.equals("VERSION")) {
+            // VERSION request
+            this.dispatch(EventType.CTCP, target, message, channel, user, () -> this.onVersion(user, target));
+        } else if (request.startsWith("ACTION ")) {
+            // ACTION request
+            // so basically /me
+            if (_trackUserActivity) {
+                this.updateUserLastMessage(target, message.getNick(), request.substring(7));
+                this.updateUserAFK(target, message.getNick(), false);
+            }
+            this.dispatch(EventType.ACTION, target, message, channel, user, () -> this.onAction(user, channel, request.substring(7)));
+        } else if (request.startsWith("PING ")) {
+            // PING request
+            this.dispatch(EventType.CTCP, target, message, channel, user, () -> this.onPing(user, target, request.substring(5)));
+        } else if (request.equals("TIME")) {
+            // TIME request
+            this.dispatch(EventType.CTCP, target, message, channel, user, () -> this.onTime(user, target));
+        } else if (request.equals("FINGER")) {
+            // FINGER request
+            this.dispatch(EventType.CTCP, target, message, channel, user, () -> this.onFinger(user, target));
+        } else if ((tokenizer = new StringTokenizer(request)).countTokens() >= 5 && tokenizer.nextToken().equals("DCC")) {
+            // This is a DCC request.
+            boolean success = _dccManager.processRequest(message.getNick(), message.getLogin(), message.getHostname(), request);
+            if (!success) {
+                // The DccManager didn't know what to do with the line.
+                this.dispatch(EventType.UNKNOWN, target, message, channel, user, () -> this.onUnknown(message.getLine()));
+            }
+        } else {
+            // An unknown CTCP message - ignore it.
+            this.dispatch(EventType.UNKNOWN, target, message, channel, user, () -> this.onUnknown(message.getLine()));
+        }
+    }
+
+    private void handleWhisper(IrcMessage message, String target, Channel channel) {
+        // Whisper to us.
+        User user = this.sender(message, target, channel);
+        String text = message.getParam(1);
+        this.dispatch(EventType.WHISPER, target, message, channel, user, () -> this.onWhisper(user, target, text));
+    }
+
+    private void handleNotice(IrcMessage message, String target, Channel channel) {
+        // Someone is sending a notice.
+        if (!this.wants(EventType.NOTICE, target)) {
+            return;
+        }
+        User user = this.userOf(message.getNick(), target, channel);
+        MessageTags tags = message.getTags();
+        if (!tags.isEmpty()) {
+            user.setSystemMsgId(tags.get("msg-id", user.getSystemMsgId()));
+            user.setTargetUserId(tags.getLong("target-user-id", user.getTargetUserId()));
+        }
+        String text = message.getParam(1);
+        this.dispatch(EventType.NOTICE, target, message, channel, user, () -> this.onNotice(channel, user, target, text));
+    }
+
+    private void handleUserNotice(IrcMessage message, String target, Channel channel) {
+        if (!this.wants(EventType.USER_NOTICE, target)) {
+            return;
+        }
+        User user = this.userOf(message.getNick(), target, channel);
+        MessageTags tags = message.getTags();
+        if (!tags.isEmpty()) {
+            user.setDisplayName(tags.get("display-name", user.getDisplayName()));
+            user.setColor(tags.get("color", user.getColor()));
+            user.setMsgId(tags.get("msg-id", user.getMsgId()));
+            user.setEmotes(tags.get("emotes", user.getEmotes()));
+            user.setConsecutiveMonths(tags.getLong("msg-param-months", user.getConsecutiveMonths()));
+            user.setRoomId(tags.getLong("room-id", user.getRoomId()));
+            user.setWhisperMsgId(tags.getLong("message-id", user.getWhisperMsgId()));
+            user.setWhisperThreadId(tags.get("thread-id", user.getWhisperThreadId()));
+            user.setId(tags.getLong("user-id", user.getId()));
+            user.setSystemMsg(tags.get("system-msg", user.getSystemMsg()));
+            user.setUserLogin(tags.get("login", user.getUserLogin()));
+            user.setSubUser(tags.get("user", user.getSubUser()));
+            user.setSubPlan(tags.get("msg-param-sub-plan", user.getSubPlan()));
+            user.setSubName(tags.get("msg-param-sub-plan-name", user.getSubName()));
+            user.setSubscriber(tags.getFlag("subscriber", user.isSubscriber()));
+            user.setTurbo(tags.getFlag("turbo", user.isTurbo()));
+            user.setMod(tags.getFlag("mod", user.isMod()));
+            user.setBadges(tags.get("badges", user.getBadges()));
+            user.setUserType(tags.get("user-type", user.getUserType()));
+            user.setMessageId(tags.get("id", user.getMessageId()));
+            user.setTmiSentTs(tags.getLong("tmi-sent-ts", user.getTmiSentTs()));
+            user.setSourceDisplayName(tags.get("msg-param-displayName", user.getSourceDisplayName()));
+            user.setSourceName(tags.get("msg-param-login", user.getSourceName()));
+            user.setRecipientDisplayName(tags.get("msg-param-recipient-display-name", user.getRecipientDisplayName()));
+            user.setRecipientUserName(tags.get("msg-param-recipient-user-name", user.getRecipientUserName()));
+            user.setRitualName(tags.get("msg-param-ritual-name", user.getRitualName()));
+            user.setRecipientId(tags.getLong("msg-param-recipient-id", user.getRecipientId()));
+            user.setSourceViewerCount(tags.getLong("msg-param-viewerCount", user.getSourceViewerCount()));
+        }
+        this.dispatch(EventType.USER_NOTICE, target, message, channel, user, () -> this.onUserNotice(channel, user, message.getParam(1)));
+    }
+
+    private void handleRoomState(IrcMessage message, String target, Channel channel) {
+        MessageTags tags = message.getTags();
+        // Twitch only sends the tags that changed once we have joined, so
+        // leave everything else as it was.
+        if (channel != null && !tags.isEmpty()) {
+            channel.setBroadcasterLanguage(tags.get("broadcaster-lang", channel.getBroadcasterLanguage()));
+            channel.setR9k(tags.getFlag("r9k", channel.isR9k()));
+            channel.setSlow(tags.getLong("slow", channel.getSlow()));
+            //  No clue what Mercury is, this tag in undocumented
+            channel.setMercury(tags.getLong("mercury", channel.getMercury()));
+            channel.setRoomId(tags.getLong("room-id", channel.getRoomId()));
+            channel.setFollowersOnly(tags.getLong("followers-only", channel.getFollowersOnly()));
+            channel.setSubsOnly(tags.getFlag("subs-only", channel.isSubsOnly()));
+            channel.setEmoteOnly(tags.getFlag("emote-only", channel.isEmoteOnly()));
+        }
+        User user = this.wants(EventType.ROOM_STATE, target) ? this.userOf(message.getNick(), target, channel) : null;
+        this.dispatch(EventType.ROOM_STATE, target, message, channel, user, () -> this.onRoomState(channel));
+    }
+
+    private void handleUserState(IrcMessage message, String target, Channel channel) {
+        if (!this.wants(EventType.USER_STATE, target)) {
+            return;
+        }
+        User user = this.userOf(message.getNick(), target, channel);
+        user.setTagSnapshot(UserTagSnapshot.fromTags(message.getTags()));
+        this.dispatch(EventType.USER_STATE, target, message, channel, user, () -> this.onUserState(user, channel));
+    }
+
+    private void handleGlobalUserState(IrcMessage message, String target, Channel channel) {
+        if (!this.wants(EventType.GLOBAL_USER_STATE, target)) {
+            return;
+        }
+        User user = this.userOf(message.getNick(), target, channel);
+        user.setTagSnapshot(UserTagSnapshot.fromTags(message.getTags()));
+        this.dispatch(EventType.GLOBAL_USER_STATE, target, message, channel, user, () -> this.onGlobalUserState(user));
+    }
+
+    private void handleClearChat(IrcMessage message, String target, Channel channel) {
+        User user = this.userOf(message.getNick(), target, channel);
+        if (message.getParamCount() < 2) { // Chat was cleared
+            this.dispatch(EventType.CLEAR_CHAT, target, message, channel, user, () -> this.onChatCleared(channel));
+        } else if (channel != null) { // User was timed out
+            MessageTags tags = message.getTags();
+            long duration = tags.getLong("ban-duration", -1);
+            long roomId = tags.getLong("room-id", -1);
+            long targetUserId = tags.getLong("target-user-id", -1);
+            long tmiSentTs = tags.getLong("tmi-sent-ts", -1);
+            User timedOut = channel.getUser(message.getParam(1));
+            this.dispatch(EventType.CLEAR_CHAT, target, message, channel, user, () -> this.onUserTimedOut(timedOut, channel, duration, roomId, targetUserId, tmiSentTs, tags.get("ban-reason")));
+        }
+    }
+
+    private void handleHostTarget(IrcMessage message, String target, Channel channel) {
+        User user = this.sender(message, target, channel);
+        //  Get Hosttarget
+        // The second parameter is "<target channel> <viewers>"; most of the
+        // times, the viewers is a "-", instead of a valid integer
+        String text = message.getParam(1);
+        int space = text.indexOf(' ');
+        String targetChannel = space < 0 ? text : text.substring(0, space);
+        String targetChannelViewers = space < 0 ? "" : text.substring(space + 1);
+        this.dispatch(EventType.HOST_TARGET, target, message, channel, user, () -> this.onHostTarget(target, targetChannel, targetChannelViewers));
+    }
+
+    private void handleJoin(IrcMessage message, String target, Channel channel) {
+        // Someone is joining a channel.
+        User user;
+        if (channel != null) {
+            user = new User(message.getNick(), channel);
+            this.addUser(channel.getChannelName(), user);
+        } else {
+            // A channel we are not keeping track of.
+            user = this.wants(EventType.JOIN, target) ? this.userOf(message.getNick(), target, null) : null;
+        }
+        ReconnectSupervisor supervisor = _reconnectSupervisor;
+        if (supervisor != null && message.getNick().equalsIgnoreCase(this.getNick())) {
+            supervisor.joined(this, target);
+        }
+        if (user != null) {
+            MessageTags tags = message.getTags();
+            if (!tags.isEmpty()) {
+                user.setTagSnapshot(UserTagSnapshot.fromTags(tags));
+            }
+        }
+        this.dispatch(EventType.JOIN, target, message, channel, user, () -> this.onJoin(channel, user));
+    }
+
+    private void handlePart(IrcMessage message, String target, Channel channel) {
+        // Someone is parting from a channel.
+        User user = this.wants(EventType.PART, target) ? this.sender(message, target, channel) : null;
+        String sourceNick = message.getNick();
+        this.removeUser(target, sourceNick);
+        if (sourceNick.equals(this.getNick())) {
+            this.removeChannel(target);
+        }
+        this.dispatch(EventType.PART, target, message, channel, user, () -> this.onPart(channel, user));
+    }
+
+    private void handleNick(IrcMessage message, String target, Channel channel) {
+        // Somebody is changing their nick.
+        User user = this.wants(EventType.NICK, "") ? this.sender(message, target, channel) : null;
+        String sourceNick = message.getNick();
+        String newNick = target;
+        this.renameUser(sourceNick, newNick);
+        if (sourceNick.equals(this.getNick())) {
+            // Update our nick if it was us that changed nick.
+            this.setNick(newNick);
+        }
+        // Not sent to a channel: the target is the new nick.
+        this.dispatch(EventType.NICK, "", message, channel, user, () -> this.onNickChange(sourceNick, message.getLogin(), message.getHostname(), newNick, user));
+    }
+
+    private void handleQuit(IrcMessage message, String target, Channel channel) {
+        // Someone has quit from the IRC server.
+        User user = this.wants(EventType.QUIT, "") ? this.sender(message, target, channel) : null;
+        String sourceNick = message.getNick();
+        if (sourceNick.equals(this.getNick())) {
+            this.removeAllChannels();
+        } else {
+            this.removeUser(sourceNick);
+        }
+        // Not sent to a channel: the target is the reason, which may start
+        // with a channel prefix.
+        this.dispatch(EventType.QUIT, "", message, channel, user, () -> this.onQuit(user, target));
+    }
+
+    private void handleKick(IrcMessage message, String target, Channel channel) {
+        // Somebody has been kicked from a channel.
+        User user = this.wants(EventType.KICK, target) ? this.sender(message, target, channel) : null;
+        String recipient = message.getParam(1);
+        if (recipient.equals(this.getNick())) {
+            this.removeChannel(target);
+        }
+        this.removeUser(target, recipient);
+        this.dispatch(EventType.KICK, target, message, channel, user, () -> this.onKick(channel, user, recipient, message.getParam(2)));
+    }
+
+    private void handleMode(IrcMessage message, String target, Channel channel) {
+        // Somebody is changing the mode on a channel or user.
+        String mode = message.getRawParams(1);
+        if (mode.startsWith(":")) {
+            mode = mode.substring(1);
+        }
+        this.processMode(message, target, message.getNick(), message.getLogin(), message.getHostname(), mode);
+    }
+
+    private void handleTopic(IrcMessage message, String target, Channel channel) {
+        // Someone is changing the topic.
+        User user = this.sender(message, target, channel);
+        String text = message.getParam(1);
+        long date = System.currentTimeMillis();
+        this.dispatch(EventType.TOPIC, target, message, channel, user, () -> this.onTopic(channel, text, target, date, true));
+    }
+
+    private void handleInvite(IrcMessage message, String target, Channel channel) {
+        // Somebody is inviting somebody else into a channel.
+        User user = this.sender(message, target, channel);
+        String text = message.getParam(1);
+        this.dispatch(EventType.INVITE, target, message, channel, user, () -> this.onInvite(target, message.getNick(), message.getLogin(), message.getHostname(), text));
+    }
+
+    private void handleReconnect(IrcMessage message, String target, Channel channel) {
+        // Twitch.tv has sent a RECONNECT request. https://dev.twitch.tv/docs/v5/guides/irc/#reconnect-twitch-commands
+        ReconnectSupervisor supervisor = _reconnectSupervisor;
+        IrcConnection connection = _connection;
+        if (supervisor != null && connection != null) {
+            supervisor.reconnectRequested(this, connection);
+        }
+        User user = this.wants(EventType.RECONNECT, target) ? this.sender(message, target, channel) : null;
+        this.dispatch(EventType.RECONNECT, target, message, channel, user, () -> this.onReconnect());
+    }
+
+    /**
+     * Returns the User that sent a line, as {@link #userOf} does, with the
+     * tags of the line as its tag snapshot. Only the User of the channel this
+     * line was sent to is updated; the other channels catch up when the user
+     * talks there.
+     *
+     * @param message The line from the server
+     * @param target Channel or nick the line was sent to
+     * @param channel Channel the line was sent to, or null if it was not sent
+     * to a channel that we are in
+     * @return The User
+     */
+    private User sender(IrcMessage message, String target, Channel channel) {
+        User user = this.userOf(message.getNick(), target, channel);
+        MessageTags tags = message.getTags();
+        if (!tags.isEmpty()) {
+            user.setTagSnapshot(UserTagSnapshot.fromTags(tags));
+        }
+        return user;
+    }
+
+    /**
+     * Returns the User that sent a line. This is the User of the channel the
+     * line was sent to if the sender is known there, and otherwise a new User
+     * that shares the identity of the sender if they are in any of our other
+     * channels.
+     *
+     * @param nick Nick of the sender
+     * @param target Channel or nick the line was sent to
+     * @param channel Channel the line was sent to, or null if it was not sent
+     * to a channel that we are in
+     * @return The User
+     */
+    private User userOf(String nick, String target, Channel channel) {
+        User user = channel == null ? null : channel.getUser(nick);
+        if (user != null) {
+            return user;
+        }
+        UserIdentity identity = _channels.getIdentity(nick);
+        if (identity != null) {
+            return new User(identity, target);
+        }
+        return channel == null ? new User(nick, target, System.currentTimeMillis()) : new User(nick, channel);
+    }
+
+    /**
+     * Checks if a line can be dropped without even looking at its sender or
+     * tags, because it does not change any channel or user that we keep track
+     * of, and there is neither a listener nor an overridden onXxx method for
+     * it.
+     *
+     * @param command The command of the line, or null if PircBot does not
+     * know it
+     * @param message The line from the server
+     * @return True if the line can be dropped
+     */
+    private boolean canSkip(Command command, IrcMessage message) {
+        if (command == null) {
+            return false;
+        }
+        String target = message.getParam(0);
+        switch (command.name) {
+            case "PRIVMSG":
+                boolean toChannel = !target.isEmpty() && _channelPrefixes.indexOf(target.charAt(0)) >= 0;
+                if (toChannel && _trackUserActivity) {
+                    // Keeps track of when each user last talked.
+                    return false;
+                }
+                if (message.paramStartsWith(1, "\u0001")) {
+                    if (toChannel && message.paramStartsWith(1, "\u0001ACTION ")) {
+                        // Without a closing \u0001 it is a plain message.
+                        return !this.wants(EventType.ACTION, target) && !this.wants(EventType.MESSAGE, target);
+                    }
+                    // CTCP and DCC requests.
+                    return false;
+                }
+                return !this.wants(toChannel ? EventType.MESSAGE : EventType.PRIVATE_MESSAGE, target);
+            case "WHISPER":
+                return !this.wants(EventType.WHISPER, target);
+            case "HOSTTARGET":
+                return !this.wants(EventType.HOST_TARGET, target);
+            case "INVITE":
+                return !this.wants(EventType.INVITE, target);
+            case "TOPIC":
+                return !this.wants(EventType.TOPIC, target);
+            case "RECONNECT":
+                return _reconnectSupervisor == null && !this.wants(EventType.RECONNECT, target);
+            case "CLEARCHAT":
+                return !this.wants(EventType.CLEAR_CHAT, target);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks if a line can be dropped going by its raw bytes alone, before it
+     * is decoded. This is the case for the commands that canSkip drops
+     * whatever their target, when nothing wants their event from any
+     * channel, and nothing else needs the line as a String: it is not logged,
+     * recorded or counted by the metrics.
+     *
+     * @param framer A LineFramer positioned on a complete line
+     * @return True if the line can be dropped
+     */
+    boolean canSkipFrame(LineFramer framer) {
+        if (this.wantsLines()) {
+            return false;
+        }
+        for (int i = 0; i < SKIPPABLE_TYPES.length; i++) {
+            if (framer.isCommand(SKIPPABLE_COMMANDS[i])) {
+                EventType type = SKIPPABLE_TYPES[i];
+                if (type == EventType.RECONNECT && _reconnectSupervisor != null) {
+                    return false;
+                }
+                return !_handled.contains(type) && !_listeners.hasListeners(type);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks if something needs every line read from the server as a String:
+     * logging, an overridden log(), a TrafficRecorder or metrics.
+     */
+    private boolean wantsLines() {
+        return _verbose || _logs || _trafficRecorder != null || _metrics != PircBotMetrics.NONE;
+    }
+
+    /**
+     * Answers a server PING straight from the LineFramer, before the line is
+     * decoded or parsed, by handing the PONG to the connection to be written
+     * ahead of anything else. This is not done if onServerPing is
+     * overridden. The line is still logged, recorded and counted if anything
+     * wants it, but it does not go through handleLine.
+     *
+     * @param framer A LineFramer positioned on a complete line
+     * @param connection The connection the line was read from
+     * @return True if the line was a PING and has been answered
+     */
+    boolean answerPing(LineFramer framer, IrcConnection connection) {
+        if (_pings || !framer.isCommand(PING)) {
+            return false;
+        }
+        long start = System.nanoTime();
+        String ping = framer.fromCommand();
+        connection.sendPong("PONG" + ping.substring(4), framer.getReadTime());
+        this.lineConsumed(framer, start);
+        return true;
+    }
+
+    /**
+     * Logs, records and counts a line that the connection has dealt with
+     * itself, such as a PING it answered or the PONG to a keep alive PING,
+     * if anything wants it. The line does not go through handleLine.
+     *
+     * @param framer A LineFramer positioned on the line
+     * @param start System.nanoTime() when the connection started on the line
+     */
+    void lineConsumed(LineFramer framer, long start) {
+        if (this.wantsLines()) {
+            String line = framer.line();
+            this.recordLine(line);
+            this.log(line);
+            _metrics.lineReceived(line, framer.lineBytes(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Called by the connection once a PONG is on the wire.
+     *
+     * @param line The PONG line
+     * @param nanos Time since its PING was read, in nanoseconds
+     */
+    void pongSent(String line, long nanos) {
+        _pongLatency = nanos;
+        _metrics.lineSent(line);
+        _metrics.pongSent(nanos);
+    }
+
+    /**
+     * Returns how long it took to answer the latest server PING on the
+     * current connection, from reading the PING to writing our PONG to the
+     * socket.
+     *
+     * @param unit Unit of the result
+     * @return The latest PING to PONG latency, or -1 if no PING has been
+     * answered since we logged on
+     */
+    public final long getPongLatency(TimeUnit unit) {
+        long latency = _pongLatency;
+        return latency < 0 ? -1 : unit.convert(latency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets how often we PING the server ourselves, to measure the round trip
+     * time and to find out quickly when the connection has died. Takes effect
+     * from the next connect. The default is 30 seconds.
+     *
+     * @param interval Milliseconds between PINGs, or 0 to not send any, in
+     * which case a dead connection is only noticed once TCP gives up on it
+     */
+    public final void setKeepAliveInterval(long interval) {
+        _keepAliveInterval = interval;
+    }
+
+    /**
+     * Returns how often we PING the server ourselves.
+     *
+     * @return Milliseconds between PINGs, or 0 if none are sent
+     */
+    public final long getKeepAliveInterval() {
+        return _keepAliveInterval;
+    }
+
+    /**
+     * Sets the shortest time that the server may be silent after one of our
+     * PINGs before the connection is declared dead and closed, which leads to
+     * onDisconnect. The timeout is stretched to the smoothed round trip time
+     * plus four times its jitter when that is longer, so a slow connection is
+     * not given up on too soon. Takes effect from the next connect. The
+     * default is 10 seconds.
+     *
+     * @param timeout Timeout in milliseconds
      */
-    public void log(String line) {
-        if (_verbose) {
-            System.out.println(System.currentTimeMillis() + " " + line);
-        }
+    public final void setKeepAliveTimeout(long timeout) {
+        _keepAliveTimeout = timeout;
     }
 
     /**
-     * This method handles events when any line of text arrives from the server,
-     * then calling the appropriate method in the PircBot. This method is
-     * protected and only called by the InputThread for this instance.
-     * <p>
-     * This method may not be overridden!
+     * Returns the shortest time the server may be silent after one of our
+     * PINGs before the connection is declared dead.
      *
-     * @param line The raw line of text from the server.
+     * @return Timeout in milliseconds
      */
-    protected void handleLine(String line) {
-        this.log(line);
+    public final long getKeepAliveTimeout() {
+        return _keepAliveTimeout;
+    }
 
-        // Check for server pings.
-        if (line.startsWith("PING ")) {
-            // Respond to the ping and return immediately.
-            this.onServerPing(line.substring(5));
-            return;
-        }
+    /**
+     * Called by the KeepAlive of the connection when the PONG to one of our
+     * PINGs arrives.
+     *
+     * @param rtt The round trip time of this PING, in nanoseconds
+     * @param smoothed The smoothed round trip time, in nanoseconds
+     * @param jitter The smoothed deviation of the round trip time, in
+     * nanoseconds
+     */
+    void roundTrip(long rtt, long smoothed, long jitter) {
+        _roundTripTime = smoothed;
+        _roundTripJitter = jitter;
+        _metrics.roundTrip(rtt, smoothed, jitter);
+    }
 
-        String sourceNick = "";
-        String sourceLogin = "";
-        String sourceHostname = "";
-        boolean containsIRC3 = false;
-        String ircTags = "";
-
-        StringTokenizer tokenizer = new StringTokenizer(line);
-        String senderInfo = tokenizer.nextToken();
-        //twitch tags fix
-        if (senderInfo.startsWith("@")) {
-            containsIRC3 = true;
-            senderInfo = tokenizer.nextToken();
-            ircTags = line.split(" :", 2)[0].substring(1);
-            line = line.split(" :", 2)[1];
-        }
-        String command = tokenizer.nextToken();
-        String target = null;
-        Channel channel = null;
-
-        int exclamation = senderInfo.indexOf("!");
-        int at = senderInfo.indexOf("@");
-        if (senderInfo.startsWith(":")) {
-            if (exclamation > 0 && at > 0 && exclamation < at) {
-                sourceNick = senderInfo.substring(1, exclamation);
-                sourceLogin = senderInfo.substring(exclamation + 1, at);
-                sourceHostname = senderInfo.substring(at + 1);
-            } else if (tokenizer.hasMoreTokens()) {
-                String token = command;
-
-                int code = -1;
-                try {
-                    code = Integer.parseInt(token);
-                } catch (NumberFormatException e) {
-                    // Keep the existing value.
-                }
+    /**
+     * Returns the smoothed time from sending one of our keep alive PINGs to
+     * reading the PONG, on the current connection.
+     *
+     * @param unit Unit of the result
+     * @return The round trip time, or -1 if not measured yet
+     */
+    public final long getRoundTripTime(TimeUnit unit) {
+        long rtt = _roundTripTime;
+        return rtt < 0 ? -1 : unit.convert(rtt, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Returns how much the round trip time varies, as its smoothed mean
+     * deviation, on the current connection.
+     *
+     * @param unit Unit of the result
+     * @return The jitter, or -1 if not measured yet
+     */
+    public final long getRoundTripJitter(TimeUnit unit) {
+        long jitter = _roundTripJitter;
+        return jitter < 0 ? -1 : unit.convert(jitter, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Checks if a subclass of PircBot overrides a public method.
+     */
+    private static boolean overrides(Class<?> type, String name) {
+        return OVERRIDDEN.get(type).contains(name);
+    }
 
-                if (code != -1) {
-                    String errorStr = token;
-                    String response = line.substring(line.indexOf(errorStr, senderInfo.length()) + 4, line.length());
-                    this.processServerResponse(code, response);
-                    // Return from the method.
-                    return;
-                } else {
-                    // This is not a server response.
-                    // It must be a nick without login and hostname.
-                    // (or maybe a NOTICE or suchlike from the server)
-                    sourceNick = senderInfo;
-                    target = token;
+    private static final ClassValue<Set<String>> OVERRIDDEN = new ClassValue<Set<String>>() {
+        @Override
+        protected Set<String> computeValue(Class<?> type) {
+            Set<String> names = new HashSet<>();
+            for (Class<?> c = type; c != null && c != PircBot.class; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    names.add(method.getName());
                 }
-            } else {
-                // We don't know what this line means.
-                this.onUnknown(line);
-                // Return from the method;
-                return;
             }
+            return names;
         }
-        command = command.toUpperCase();
-        if (sourceNick.startsWith(":")) {
-            sourceNick = sourceNick.substring(1);
-        }
-        if (target == null) {
-            target = tokenizer.nextToken();
-        }
-        if (target.startsWith(":")) {
-            target = target.substring(1);
-        }
-        if (target.contains("ROOMSTATE") && line.contains("#")) {
-            channel = _channels.get("#" + line.split("#", 2)[1]); //Get ROOMSTATE Line
-        }
-        if (target.contains("USERSTATE") && line.contains("#")) {
-            channel = _channels.get("#" + line.split("#", 2)[1]); //Get USERSTATE Line
-        }
-        if (target.contains("USERNOTICE") && line.contains("#")) {
-            channel = _channels.get("#" + line.split("#", 2)[1]); //Get USERNOTICE Line
-        }
-        if (target.contains("NOTICE") && line.contains("#")) {
-            channel = _channels.get("#" + line.split("#", 2)[1].split(" ", 2)[0]); //Get NOTICE Line
-        }
-        if (target.contains("RECONNECT") && line.contains("#")) {
-            // https://dev.twitch.tv/docs/v5/guides/irc/#reconnect-twitch-commands
-        }
-        if (target.contains("GLOBALUSERSTATE")) {
-            // https://dev.twitch.tv/docs/v5/guides/irc/#globaluserstate-twitch-tags
-            // channel = _channels.get("#" + line.split("#", 2)[1]);
-        }
-        if (target.startsWith("#")) {
-            channel = _channels.get(target);
-        }
-        User user;
-        if (channel == null) {
-            user = new User(sourceNick, target, System.currentTimeMillis());
-        } else if (channel.containsUser(sourceNick)) {
-            user = channel.getUser(sourceNick);
-        } else {
-            user = new User(sourceNick, channel);
-        }
-        user.setLastMessage(System.currentTimeMillis());
-        HashMap<String, String> tags = new HashMap<>();
-        if (containsIRC3) {
-            switch (command) {
-                case "NOTICE":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        if (key.equalsIgnoreCase("msg-id")) {
-                            user.setSystemMsgId(value);
-                        }
-                        if (key.equalsIgnoreCase("target-user-id")) {
-                            user.setTargetUserId(Long.parseLong(value));
-                        }
-                    }
-                    break;
-                case "ROOMSTATE":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        channel.setBroadcasterLanguage(tags.get("broadcaster-lang"));
-                        boolean r9k;
-                        try {
-                            r9k = tags.get("r9k").equals("1");
-                        } catch (Exception ex) {
-                            r9k = false;
-                        }
-                        channel.setR9k(r9k);
-                        long slow;
-                        try {
-                            slow = Long.parseLong(tags.get("slow"));
-                        } catch (Exception ex) {
-                            slow = 0;
-                        }
-                        channel.setSlow(slow);
-                        //  No clue what Mercury is, this tag in undocumented
-                        long mercury;
-                        try {
-                            mercury = Long.parseLong(tags.get("mercury"));
-                        } catch (Exception ex) {
-                            mercury = 0;
-                        }
-                        channel.setMercury(mercury);
-                        long roomId;
-                        try {
-                            roomId = Long.parseLong(tags.get("room-id"));
-                        } catch (Exception ex) {
-                            roomId = 0;
-                        }
-                        channel.setRoomId(roomId);
-                        long followersOnly;
-                        try {
-                            followersOnly = Long.parseLong(tags.get("followers-only"));
-                        } catch (Exception ex) {
-                            followersOnly = -1;
-                        }
-                        channel.setFollowersOnly(followersOnly);
-                        boolean subs;
-                        try {
-                            subs = tags.get("subs-only").equals("1");
-                        } catch (Exception ex) {
-                            subs = false;
-                        }
-                        channel.setSubsOnly(subs);
-                        boolean emoteOnly;
-                        try {
-                            emoteOnly = tags.get("emote-only").equals("1");
-                        } catch (Exception ex) {
-                            emoteOnly = false;
-                        }
-                        channel.setEmoteOnly(emoteOnly);
+    };
 
-                    }
-                    this.onRoomState(channel);
-                case "USERSTATE":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        if (key.equalsIgnoreCase("display-name")) {
-                            user.setDisplayName(value);
-                        } else if (key.equalsIgnoreCase("color")) {
-                            user.setColor(value);
-                        } else if (key.equalsIgnoreCase("subscriber")) {
-                            user.setSubscriber(value.equals("1"));
-                            //user.setSubscriber(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("turbo")) {
-                            user.setTurbo(value.equals("1"));
-                            //user.setTurbo(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("mod")) {
-                            user.setMod(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("user-type")) {
-                            user.setUserType(value);
-                            //this.onUserState(user, channel);
-                        } else if (key.equalsIgnoreCase("emote-sets")) {
-                            user.setEmoteSets(value);
-                        } else if (key.equalsIgnoreCase("badges")) {
-                            user.setBadges(value);
-                        }
-                    }
-                    this.onUserState(user, channel);
-                    break;
-                case "GLOBALUSERSTATE":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        if (key.equalsIgnoreCase("display-name")) {
-                            user.setDisplayName(value);
-                        } else if (key.equalsIgnoreCase("color")) {
-                            user.setColor(value);
-                        } else if (key.equalsIgnoreCase("subscriber")) {
-                            user.setSubscriber(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("turbo")) {
-                            user.setTurbo(value.equals("1"));
-                            //user.setTurbo(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("mod")) {
-                            user.setMod(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("user-type")) {
-                            user.setUserType(value);
-                            //this.onGlobalUserState(user);
-                        } else if (key.equalsIgnoreCase("emote-sets")) {
-                            user.setEmoteSets(value);
-                        } else if (key.equalsIgnoreCase("badges")) {
-                            user.setBadges(value);
-                        }
+    private static final byte[] PING = "PING".getBytes(StandardCharsets.US_ASCII);
 
-                    }
-                    this.onGlobalUserState(user);
-                    break;
-                case "USERNOTICE":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else if (key.equalsIgnoreCase("system-msg")) {
-                            value = kv[1].replace("\\s", " ");
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        if (key.equalsIgnoreCase("display-name")) {
-                            user.setDisplayName(value);
-                        } else if (key.equalsIgnoreCase("color")) {
-                            user.setColor(value);
-                        } else if (key.equalsIgnoreCase("msg-id")) {
-                            user.setMsgId(value);
-                        } else if (key.equalsIgnoreCase("emotes")) {
-                            user.setEmotes(value);
-                        } else if (key.equalsIgnoreCase("msg-param-months")) {
-                            user.setConsecutiveMonths(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("room-id")) {
-                            user.setRoomId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("message-id")) {
-                            user.setWhisperMsgId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("thread-id")) {
-                            user.setWhisperThreadId(value);
-                        } else if (key.equalsIgnoreCase("user-id")) {
-                            user.setId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("system-msg")) {
-                            user.setSystemMsg(value);
-                        } else if (key.equalsIgnoreCase("login")) {
-                            user.setUserLogin(value);
-                        } else if (key.equalsIgnoreCase("user")) {
-                            user.setSubUser(value);
-                        } else if (key.equalsIgnoreCase("msg-param-sub-plan")) {
-                            user.setSubPlan(value);
-                        } else if (key.equalsIgnoreCase("msg-param-sub-plan-name")) {
-                            user.setSubName(value);
-                        } else if (key.equalsIgnoreCase("subscriber")) {
-                            user.setSubscriber(value.equals(value));
-                            //user.setSubscriber(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("turbo")) {
-                            user.setTurbo(value.equals("1"));
-                            //user.setTurbo(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("mod")) {
-                            user.setMod(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("badges")) {
-                            user.setBadges(value);
-                        } else if (key.equalsIgnoreCase("user-type")) {
-                            user.setUserType(value);
-                        } else if (key.equalsIgnoreCase("id")) {
-                            user.setMessageId(value);
-                        } else if (key.equalsIgnoreCase("tmi-sent-ts")) {
-                            user.setTmiSentTs(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("msg-param-displayName")) {
-                            try {
-                                user.setSourceDisplayName(value);
-                            } catch (Exception ex) {
-                                user.setSourceDisplayName("");
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-login")) {
-                            try {
-                                user.setSourceName(value);
-                            } catch (Exception ex) {
-                                user.setSourceName("");
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-recipient-display-name")) {
-                            try {
-                                user.setRecipientDisplayName(value);
-                            } catch (Exception ex) {
-                                user.setRecipientDisplayName("");
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-recipient-user-name")) {
-                            try {
-                                user.setRecipientUserName(value);
-                            } catch (Exception ex) {
-                                user.setRecipientUserName("");
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-ritual-name")) {
-                            try {
-                                user.setRitualName(value);
-                            } catch (Exception ex) {
-                                user.setRitualName("");
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-recipient-id")) {
-                            try {
-                                user.setRecipientId(Long.parseLong(value));
-                            } catch (Exception ex) {
-                                user.setRecipientId(-1);
-                            }
-                        } else if (key.equalsIgnoreCase("msg-param-viewerCount")) {
-                            try {
-                                user.setSourceViewerCount(Long.parseLong(value));
-                            } catch (Exception ex) {
-                                user.setSourceViewerCount(-1);
-                            }
-                        }
-                    }
-                    String resubMessage = "";
-                    try {
-                        resubMessage = line.split(channel + " ", 2)[1];
-                    } catch (Exception ex) {
-                        resubMessage = "";
-                    }
-                    this.onUserNotice(channel, user, resubMessage);
-                    break;
-                case "CLEARCHAT":
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else if (key.equalsIgnoreCase("ban-reason")) {
-                            value = kv[1].replace("\\s", " ");
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                    }
-                    break;
-                default:
-                    for (String tag : ircTags.split(";")) {
-                        String[] kv = tag.split("=");
-                        String key = kv[0];
-                        String value;
-                        if (kv.length == 1) {
-                            value = "";
-                        } else {
-                            value = kv[1];
-                        }
-                        tags.put(key, value);
-                        if (key.equalsIgnoreCase("display-name")) {
-                            user.setDisplayName(value);
-                        } else if (key.equalsIgnoreCase("color")) {
-                            user.setColor(value);
-                        } else if (key.equalsIgnoreCase("subscriber")) {
-                            user.setSubscriber(value.equals("1"));
-                            //user.setSubscriber(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("turbo")) {
-                            user.setTurbo(value.equals("1"));
-                            //user.setTurbo(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("noisy")) {
-                            user.setNoisy(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("emote-only")) {
-                            user.setEmoteOnly(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("mod")) {
-                            user.setMod(value.equals("1"));
-                        } else if (key.equalsIgnoreCase("user-type")) {
-                            user.setUserType(value);
-                        } else if (key.equalsIgnoreCase("user-id")) {
-                            user.setId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("sent-ts")) {
-                            user.setSentTs(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("tmi-sent-ts")) {
-                            user.setTmiSentTs(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("room-id")) {
-                            user.setRoomId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("message-id")) {
-                            user.setWhisperMsgId(Long.parseLong(value));
-                        } else if (key.equalsIgnoreCase("thread-id")) {
-                            user.setWhisperThreadId(value);
-                        } else if (key.equalsIgnoreCase("emotes")) {
-                            user.setEmotes(value);
-                        } else if (key.equalsIgnoreCase("badges")) {
-                            user.setBadges(value);
-                        } else if (key.equalsIgnoreCase("id")) {
-                            user.setMessageId(value);
-                        } else if (key.equalsIgnoreCase("bits")) {
-                            user.setBits(Long.parseLong(value));
-                        }
-                    }
-                    boolean noisy;
-                    try {
-                        noisy = tags.get("noisy").equals("1");
-                    } catch (Exception ex) {
-                        noisy = false;
-                    }
-                    user.setNoisy(noisy);
-                    boolean emoteOnly;
-                    try {
-                        emoteOnly = tags.get("emote-only").equals("1");
-                    } catch (Exception ex) {
-                        emoteOnly = false;
-                    }
-                    user.setEmoteOnly(emoteOnly);
-                    long userID;
-                    try {
-                        userID = Long.parseLong(tags.get("user-id"));
-                    } catch (Exception ex) {
-                        userID = -1;
-                    }
-                    long sentTs;
-                    try {
-                        sentTs = Long.parseLong(tags.get("sent-ts"));
-                    } catch (Exception ex) {
-                        sentTs = -1;
-                    }
-                    long tmiSentTs;
-                    try {
-                        tmiSentTs = Long.parseLong(tags.get("tmi-sent-ts"));
-                    } catch (Exception ex) {
-                        tmiSentTs = -1;
-                    }
-                    long roomId;
-                    try {
-                        roomId = Long.parseLong(tags.get("room-id"));
-                    } catch (Exception ex) {
-                        roomId = -1;
-                    }
-                    long whisperMsgId;
-                    try {
-                        whisperMsgId = Long.parseLong(tags.get("message-id"));
-                    } catch (Exception ex) {
-                        whisperMsgId = -1;
-                    }
-                    long consecutiveMonths;
-                    try {
-                        consecutiveMonths = Long.parseLong(tags.get("msg-param-months"));
-                    } catch (Exception ex) {
-                        consecutiveMonths = -1;
-                    }
-                    long bits;
-                    try {
-                        bits = Long.parseLong(tags.get("bits"));
-                    } catch (Exception ex) {
-                        bits = -1;
-                    }
-                    boolean sub;
-                    try {
-                        sub = tags.get("subscriber").equals("1");
-                    } catch (Exception ex) {
-                        sub = false;
-                    }
-                    boolean turbo;
-                    try {
-                        turbo = tags.get("turbo").equals("1");
-                        //turbo = Long.parseLong(tags.get("turbo"));
-                    } catch (Exception ex) {
-                        turbo = false;
-                    }
-                    long targetUserId;
-                    try {
-                        targetUserId = Long.parseLong(tags.get("target-user-id"));
-                    } catch (Exception ex) {
-                        targetUserId = -1;
-                    }
-                    long sourceViewerCount;
-                    try {
-                        sourceViewerCount = Long.parseLong(tags.get("msg-param-viewerCount"));
-                    } catch (Exception ex) {
-                        sourceViewerCount = -1;
-                    }
-                    long recipientId;
-                    try {
-                        recipientId = Long.parseLong(tags.get("msg-param-recipient-id"));
-                    } catch (Exception ex) {
-                        recipientId = -1;
-                    }
-                    boolean mod;
-                    try {
-                        mod = tags.get("mod").equals("1");
-                        //mod = Long.parseLong(tags.get("mod"));
-                    } catch (Exception ex) {
-                        mod = false;
-                    }
-                    updateUser(tags.get("display-name"), tags.get("color"), sub, turbo, noisy, emoteOnly, mod, tags.get("user-type"), userID, roomId, whisperMsgId, consecutiveMonths, tags.get("emotes"), tags.get("badges"), tags.get("thread-id"), tags.get("id"), bits, tags.get("emote-sets"), tags.get("msg-id"), tags.get("msg-id"), tags.get("system-msg"), tags.get("login"), tags.get("user"), tags.get("msg-param-sub-plan"), tags.get("msg-param-sub-plan-name"), sentTs, tmiSentTs, targetUserId, tags.get("msg-param-displayName"), tags.get("msg-param-login"), sourceViewerCount, tags.get("msg-param-recipient-display-name"), tags.get("msg-param-recipient-user-name"), recipientId, tags.get("msg-param-ritual-name"));
-                    break;
+    // The commands canSkipFrame may drop, as ASCII, and their events.
+    private static final byte[][] SKIPPABLE_COMMANDS = {
+        "WHISPER".getBytes(StandardCharsets.US_ASCII), "HOSTTARGET".getBytes(StandardCharsets.US_ASCII),
+        "INVITE".getBytes(StandardCharsets.US_ASCII), "TOPIC".getBytes(StandardCharsets.US_ASCII),
+        "RECONNECT".getBytes(StandardCharsets.US_ASCII), "CLEARCHAT".getBytes(StandardCharsets.US_ASCII)};
+    private static final EventType[] SKIPPABLE_TYPES = {
+        EventType.WHISPER, EventType.HOST_TARGET, EventType.INVITE, EventType.TOPIC,
+        EventType.RECONNECT, EventType.CLEAR_CHAT};
+
+    /**
+     * Checks if an event has either a listener or an overridden onXxx method.
+     *
+     * @param type Type of the event
+     * @param target The channel or nick the line was sent to
+     * @return True if something wants the event
+     */
+    private boolean wants(EventType type, String target) {
+        return _handled.contains(type) || _listeners.hasListeners(type, target);
+    }
+
+    /**
+     * Calls an onXxx method and the listeners of an event, unless neither
+     * wants it.
+     *
+     * @param type Type of the event
+     * @param target The channel or nick the line was sent to
+     * @param message The line that caused the event
+     * @param channel The Channel the event is about, if any
+     * @param user The User that sent the line, if any
+     * @param event Calls the onXxx method
+     */
+    private void dispatch(EventType type, String target, IrcMessage message, Channel channel, User user, Runnable event) {
+        boolean handled = _handled.contains(type);
+        boolean listened = _listeners.hasListeners(type, target);
+        if (!listened) {
+            if (handled) {
+                this.dispatch(target, message.getLine(), timed(type, event));
             }
+            return;
         }
-        // Check for CTCP requests.           
-        if (command.equals("PRIVMSG") && line.indexOf(":\u0001") > 0 && line.endsWith("\u0001")) {
-            String request = line.substring(line.indexOf(":\u0001") + 2, line.length() - 1);
-            if (request.equals("VERSION")) {
-                // VERSION request
-                this.onVersion(user, target);
-            } else if (request.startsWith("ACTION ")) {
-                // ACTION request
-                // so basically /me
-                this.updateUserLastMessage(target, sourceNick, request.substring(7));
-                this.updateUserAFK(target, sourceNick, false);
-                this.onAction(user, channel, request.substring(7));
-            } else if (request.startsWith("PING ")) {
-                // PING request
-                this.onPing(user, target, request.substring(5));
-            } else if (request.equals("TIME")) {
-                // TIME request
-                this.onTime(user, target);
-            } else if (request.equals("FINGER")) {
-                // FINGER request
-                this.onFinger(user, target);
-            } else if ((tokenizer = new StringTokenizer(request)).countTokens() >= 5 && tokenizer.nextToken().equals("DCC")) {
-                // This is a DCC request.
-                boolean success = _dccManager.processRequest(sourceNick, sourceLogin, sourceHostname, request);
-                if (!success) {
-                    // The DccManager didn't know what to do with the line.
-                    this.onUnknown(line);
-                }
-            } else {
-                // An unknown CTCP message - ignore it.
-                this.onUnknown(line);
+        this.dispatch(target, message.getLine(), timed(type, () -> {
+            if (handled) {
+                event.run();
             }
-        } else if (command.equals("PRIVMSG") && _channelPrefixes.indexOf(target.charAt(0)) >= 0) {
-            // This is a normal message to a channel.
-            this.updateUserLastMessage(target, sourceNick, line.substring(line.indexOf(" :") + 2));
-            this.updateUserAFK(target, sourceNick, false);
-            this.onMessage(channel, user, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("PRIVMSG")) {
-            // This is a private message to us.
-            this.onPrivateMessage(user, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("WHISPER")) {
-            // Whisper to us.
-            this.onWhisper(user, line.split("WHISPER ", 2)[1].split(" :", 2)[0], line.split(" :", 2)[1]);
-
-        } else if (command.equals("HOSTTARGET")) {
-            //  Get Hosttarget
-            String hostingChannel = line.split("HOSTTARGET ", 2)[1].split(" :", 2)[0];
-            String targetChannel = line.split(" :", 2)[1].split(" ", 2)[0];
-            String targetChannelViewers = line.split(targetChannel + " ", 2)[1]; // Most of the times, it returns a "-", instead of a valid integer
-            this.onHostTarget(hostingChannel, targetChannel, targetChannelViewers);
-
-        } else if (command.equals("JOIN")) {
-            // Someone is joining a channel.
-            //String channel = target;
-            this.addUser(channel.getChannelName(), new User(sourceNick, channel));
-            this.onJoin(channel, user);
-        } else if (command.equals("PART")) {
-            // Someone is parting from a channel.
-            this.removeUser(target, sourceNick);
-            if (sourceNick.equals(this.getNick())) {
-                this.removeChannel(target);
-            }
-            this.onPart(channel, user);
-        } else if (command.equals("NICK")) {
-            // Somebody is changing their nick.
-            String newNick = target;
-            this.renameUser(sourceNick, newNick);
-            if (sourceNick.equals(this.getNick())) {
-                // Update our nick if it was us that changed nick.
-                this.setNick(newNick);
-            }
-            this.onNickChange(sourceNick, sourceLogin, sourceHostname, newNick, user);
-        } else if (command.equals("NOTICE")) {
-            // Someone is sending a notice.
-            channel = _channels.get("#" + line.split("#", 2)[1].split(" ", 2)[0]);
-            this.onNotice(channel, user, target, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("RECONNECT")) {
-            // Twitch.tv has sent a RECONNECT request. https://dev.twitch.tv/docs/v5/guides/irc/#reconnect-twitch-commands
-            this.onReconnect();
-        } else if (command.equals("QUIT")) {
-            // Someone has quit from the IRC server.
-            if (sourceNick.equals(this.getNick())) {
-                this.removeAllChannels();
-            } else {
-                this.removeUser(sourceNick);
-            }
-            this.onQuit(user, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("KICK")) {
-            // Somebody has been kicked from a channel.
-            String recipient = tokenizer.nextToken();
-            if (recipient.equals(this.getNick())) {
-                this.removeChannel(target);
-            }
-            this.removeUser(target, recipient);
-            this.onKick(channel, user, recipient, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("MODE")) {
-            // Somebody is changing the mode on a channel or user.
-            String mode = line.substring(line.indexOf(target, 2) + target.length() + 1);
-            if (mode.startsWith(":")) {
-                mode = mode.substring(1);
-            }
-            this.processMode(target, sourceNick, sourceLogin, sourceHostname, mode);
-        } else if (command.equals("TOPIC")) {
-            // Someone is changing the topic.
-            this.onTopic(channel, line.substring(line.indexOf(" :") + 2), target, System.currentTimeMillis(), true);
-        } else if (command.equals("INVITE")) {
-            // Somebody is inviting somebody else into a channel.
-            this.onInvite(target, sourceNick, sourceLogin, sourceHostname, line.substring(line.indexOf(" :") + 2));
-        } else if (command.equals("CLEARCHAT")) {
-            String[] l = line.substring(line.indexOf("#")).split(" ");
-            Channel ch = this._channels.get(l[0]);
-            if (l.length == 1) { // Chat was cleared
-                this.onChatCleared(ch);
-            } else { // User was timed out
-                try {
-                    long duration = (tags.get("ban-duration") == null || tags.get("ban-duration").isEmpty() ? -1 : Long.parseLong(tags.get("ban-duration")));
-                    long roomId = (tags.get("room-id") == null || tags.get("room-id").isEmpty() ? -1 : Long.parseLong(tags.get("room-id")));
-                    long targetUserId = (tags.get("target-user-id") == null || tags.get("target-user-id").isEmpty() ? -1 : Long.parseLong(tags.get("target-user-id")));
-                    long tmiSentTs = (tags.get("tmi-sent-ts") == null || tags.get("tmi-sent-ts").isEmpty() ? -1 : Long.parseLong(tags.get("tmi-sent-ts")));
-                    this.onUserTimedOut(ch.getUser(l[1].substring(1)), ch, duration, roomId, targetUserId, tmiSentTs, tags.get("ban-reason"));
-                } catch (NullPointerException npe) {
-                }
-            }
-        } else {
-            // If we reach this point, then we've found something that the PircBot
-            // Doesn't currently deal with.
-            this.onUnknown(line);
+            _listeners.fire(new IrcEvent(type, this, message, channel, user), target);
+        }));
+    }
+
+    /**
+     * Calls an onXxx method that has no event of its own, such as onOp for a
+     * MODE, if the onXxx methods of its event type are overridden.
+     *
+     * @param type Type of the event
+     * @param target The channel or nick the line was sent to
+     * @param message The line that caused the event
+     * @param event Calls the onXxx method
+     */
+    private void dispatchHandler(EventType type, String target, IrcMessage message, Runnable event) {
+        if (_handled.contains(type)) {
+            this.dispatch(target, message.getLine(), timed(type, event));
         }
+    }
+
+    /**
+     * Wraps an event so that the time its handlers take is passed to the
+     * PircBotMetrics, unless nothing is measured.
+     *
+     * @param type Type of the event
+     * @param event Calls the handlers
+     * @return The event to dispatch
+     */
+    private Runnable timed(EventType type, Runnable event) {
+        PircBotMetrics metrics = _metrics;
+        if (metrics == PircBotMetrics.NONE) {
+            return event;
+        }
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                event.run();
+            } finally {
+                metrics.eventHandled(type, System.nanoTime() - start);
+            }
+        };
+    }
 
+    /**
+     * Calls an onXxx method, either right away or through the
+     * EventDispatcher if there is one.
+     *
+     * @param target The channel or nick the line was sent to, which decides
+     * what the event is kept in order with
+     * @param line The line that caused the event
+     * @param event Calls the onXxx method
+     */
+    private void dispatch(String target, String line, Runnable event) {
+        EventDispatcher dispatcher = _eventDispatcher;
+        if (dispatcher == null) {
+            event.run();
+            return;
+        }
+        boolean isChannel = !target.isEmpty() && _channelPrefixes.indexOf(target.charAt(0)) >= 0;
+        dispatcher.dispatch(this, isChannel ? target.toLowerCase() : "", line, event);
     }
 
     /**
@@ -1645,6 +2290,8 @@ public abstract class PircBot implements ReplyConstants {
      * If you wish to get your IRC bot to automatically rejoin a server after
      * the connection has been lost, then this is probably the ideal method to
      * override to implement such functionality.
+     * Alternatively, a ReconnectSupervisor set with setReconnectSupervisor
+     * does this with a backoff, and joins our channels again.
      * <p>
      * The implementation of this method in the PircBot abstract class performs
      * no actions and may be overridden as required.
@@ -1661,84 +2308,122 @@ public abstract class PircBot implements ReplyConstants {
      * Note that this method is private and should not appear in any of the
      * javadoc generated documenation.
      *
+     * @param message The line from the server.
      * @param code The three-digit numerical code for the response.
      * @param response The full response from the IRC server.
      */
-    private void processServerResponse(int code, String response) {
-
-        if (code == RPL_LIST) {
-            // This is a bit of information about a channel.
-            int firstSpace = response.indexOf(' ');
-            int secondSpace = response.indexOf(' ', firstSpace + 1);
-            int thirdSpace = response.indexOf(' ', secondSpace + 1);
-            int colon = response.indexOf(':');
-            String channel = response.substring(firstSpace + 1, secondSpace);
-            Channel channelObj = _channels.get(channel);
-            int userCount = 0;
-            try {
-                userCount = Integer.parseInt(response.substring(secondSpace + 1, thirdSpace));
-            } catch (NumberFormatException e) {
-                // Stick with the value of zero.
-            }
-            String topic = response.substring(colon + 1);
-            this.onChannelInfo(channelObj, userCount, topic);
-        } else if (code == RPL_TOPIC) {
-            // This is topic information about a channel we've just joined.
-            int firstSpace = response.indexOf(' ');
-            int secondSpace = response.indexOf(' ', firstSpace + 1);
-            int colon = response.indexOf(':');
-            String channel = response.substring(firstSpace + 1, secondSpace);
-            String topic = response.substring(colon + 1);
-
-            _topics.put(channel, topic);
-        } else if (code == RPL_TOPICINFO) {
-            StringTokenizer tokenizer = new StringTokenizer(response);
-            tokenizer.nextToken();
-            String channel = tokenizer.nextToken();
-            Channel channelObj = _channels.get(channel);
-            String setBy = tokenizer.nextToken();
-            long date = 0;
-            try {
-                date = Long.parseLong(tokenizer.nextToken()) * 1000;
-            } catch (NumberFormatException e) {
-                // Stick with the default value of zero.
-            }
+    private void processServerResponse(IrcMessage message, int code, String response) {
+        NumericHandler handler = NUMERICS[code];
+        if (handler != null) {
+            handler.handle(this, message, response);
+        }
+        CommandHandler custom = _numericHandlers.get(code);
+        if (custom != null) {
+            custom.handleCommand(this, message);
+        }
 
-            String topic = _topics.get(channel);
-            _topics.remove(channel);
-
-            this.onTopic(channelObj, topic, setBy, date, false);
-        } else if (code == RPL_NAMREPLY) {
-            // This is a list of nicks in a channel that we've just joined.
-            int channelEndIndex = response.indexOf(" :");
-            String channel = response.substring(response.lastIndexOf(' ', channelEndIndex - 1) + 1, channelEndIndex);
-
-            StringTokenizer tokenizer = new StringTokenizer(response.substring(response.indexOf(" :") + 2));
-            while (tokenizer.hasMoreTokens()) {
-                String nick = tokenizer.nextToken();
-                String prefix = "";
-                if (nick.startsWith("@")) {
-                    // User is an operator in this channel.
-                    prefix = "@";
-                } else if (nick.startsWith("+")) {
-                    // User is voiced in this channel.
-                    prefix = "+";
-                } else if (nick.startsWith(".")) {
-                    // Some wibbly status I've never seen before...
-                    prefix = ".";
-                }
-                nick = nick.substring(prefix.length());
-                this.addUser(channel, new User(nick, channel));
+        this.dispatch(EventType.SERVER_RESPONSE, "", message, null, null, () -> this.onServerResponse(code, response));
+    }
+
+    /**
+     * Handles a numeric reply that PircBot knows about.
+     */
+    private interface NumericHandler {
+
+        void handle(PircBot bot, IrcMessage message, String response);
+    }
+
+    // The numeric replies that PircBot knows about, indexed by code.
+    private static final NumericHandler[] NUMERICS = new NumericHandler[1000];
+
+    static {
+        NUMERICS[RPL_LIST] = PircBot::processChannelInfo;
+        NUMERICS[RPL_TOPIC] = PircBot::processTopic;
+        NUMERICS[RPL_TOPICINFO] = PircBot::processTopicInfo;
+        NUMERICS[RPL_NAMREPLY] = PircBot::processNames;
+        NUMERICS[RPL_ENDOFNAMES] = PircBot::processEndOfNames;
+    }
+
+    private void processChannelInfo(IrcMessage message, String response) {
+        // This is a bit of information about a channel.
+        int firstSpace = response.indexOf(' ');
+        int secondSpace = response.indexOf(' ', firstSpace + 1);
+        int thirdSpace = response.indexOf(' ', secondSpace + 1);
+        int colon = response.indexOf(':');
+        String channel = response.substring(firstSpace + 1, secondSpace);
+        Channel channelObj = _channels.get(channel);
+        int userCount = 0;
+        try {
+            userCount = Integer.parseInt(response.substring(secondSpace + 1, thirdSpace));
+        } catch (NumberFormatException e) {
+            // Stick with the value of zero.
+        }
+        String topic = response.substring(colon + 1);
+        int users = userCount;
+        this.dispatch(EventType.CHANNEL_INFO, channel, message, channelObj, null, () -> this.onChannelInfo(channelObj, users, topic));
+    }
+
+    private void processTopic(IrcMessage message, String response) {
+        // This is topic information about a channel we've just joined.
+        int firstSpace = response.indexOf(' ');
+        int secondSpace = response.indexOf(' ', firstSpace + 1);
+        int colon = response.indexOf(':');
+        String channel = response.substring(firstSpace + 1, secondSpace);
+        String topic = response.substring(colon + 1);
+
+        _topics.put(channel, topic);
+    }
+
+    private void processTopicInfo(IrcMessage message, String response) {
+        StringTokenizer tokenizer = new StringTokenizer(response);
+        tokenizer.nextToken();
+        String channel = tokenizer.nextToken();
+        Channel channelObj = _channels.get(channel);
+        String setBy = tokenizer.nextToken();
+        long date = 0;
+        try {
+            date = Long.parseLong(tokenizer.nextToken()) * 1000;
+        } catch (NumberFormatException e) {
+            // Stick with the default value of zero.
+        }
+
+        String topic = _topics.get(channel);
+        _topics.remove(channel);
+
+        long setAt = date;
+        this.dispatch(EventType.TOPIC, channel, message, channelObj, null, () -> this.onTopic(channelObj, topic, setBy, setAt, false));
+    }
+
+    private void processNames(IrcMessage message, String response) {
+        // This is a list of nicks in a channel that we've just joined.
+        int channelEndIndex = response.indexOf(" :");
+        String channel = response.substring(response.lastIndexOf(' ', channelEndIndex - 1) + 1, channelEndIndex);
+
+        StringTokenizer tokenizer = new StringTokenizer(response.substring(response.indexOf(" :") + 2));
+        while (tokenizer.hasMoreTokens()) {
+            String nick = tokenizer.nextToken();
+            String prefix = "";
+            if (nick.startsWith("@")) {
+                // User is an operator in this channel.
+                prefix = "@";
+            } else if (nick.startsWith("+")) {
+                // User is voiced in this channel.
+                prefix = "+";
+            } else if (nick.startsWith(".")) {
+                // Some wibbly status I've never seen before...
+                prefix = ".";
             }
-        } else if (code == RPL_ENDOFNAMES) {
-            // This is the end of a NAMES list, so we know that we've got
-            // the full list of users in the channel that we just joined. 
-            String channel = response.substring(response.indexOf(' ') + 1, response.indexOf(" :"));
-            ArrayList<User> users = this.getUsers(channel);
-            this.onUserList(channel, users);
+            nick = nick.substring(prefix.length());
+            this.addUser(channel, new User(nick, channel));
         }
+    }
 
-        this.onServerResponse(code, response);
+    private void processEndOfNames(IrcMessage message, String response) {
+        // This is the end of a NAMES list, so we know that we've got
+        // the full list of users in the channel that we just joined. 
+        String channel = response.substring(response.indexOf(' ') + 1, response.indexOf(" :"));
+        ArrayList<User> users = this.getUsers(channel);
+        this.dispatch(EventType.USER_LIST, channel, message, _channels.get(channel), null, () -> this.onUserList(channel, users));
     }
 
     /**
@@ -2008,13 +2693,14 @@ public abstract class PircBot implements ReplyConstants {
      * Note that this method is private and is not intended to appear in the
      * javadoc generated documentation.
      *
+     * @param message The line from the server.
      * @param target The channel or nick that the mode operation applies to.
      * @param sourceNick The nick of the user that set the mode.
      * @param sourceLogin The login of the user that set the mode.
      * @param sourceHostname The hostname of the user that set the mode.
      * @param mode The mode that has been set.
      */
-    private void processMode(String target, String sourceNick, String sourceLogin, String sourceHostname, String mode) {
+    private void processMode(IrcMessage message, String target, String sourceNick, String sourceLogin, String sourceHostname, String mode) {
 
         if (_channelPrefixes.indexOf(target.charAt(0)) >= 0) {
             // The mode of a channel is being changed.
@@ -2038,89 +2724,94 @@ public abstract class PircBot implements ReplyConstants {
 
                 if (atPos == '+' || atPos == '-') {
                     pn = atPos;
-                } else if (atPos == 'o') {
+                    continue;
+                }
+                // Only some modes take a parameter, so there may be none left.
+                String param = p < params.length ? params[p] : null;
+                if (atPos == 'o') {
                     if (pn == '+') {
-                        this.updateUser(channel.getChannelName(), OP_ADD, params[p]);
-                        onOp(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.updateUser(channel.getChannelName(), OP_ADD, param);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onOp(channel, sourceNick, sourceLogin, sourceHostname, param));
                     } else {
-                        this.updateUser(channel.getChannelName(), OP_REMOVE, params[p]);
-                        onDeop(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.updateUser(channel.getChannelName(), OP_REMOVE, param);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onDeop(channel, sourceNick, sourceLogin, sourceHostname, param));
                     }
                     p++;
                 } else if (atPos == 'v') {
                     if (pn == '+') {
-                        this.updateUser(channel.getChannelName(), VOICE_ADD, params[p]);
-                        onVoice(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.updateUser(channel.getChannelName(), VOICE_ADD, param);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onVoice(channel, sourceNick, sourceLogin, sourceHostname, param));
                     } else {
-                        this.updateUser(channel.getChannelName(), VOICE_REMOVE, params[p]);
-                        onDeVoice(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.updateUser(channel.getChannelName(), VOICE_REMOVE, param);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onDeVoice(channel, sourceNick, sourceLogin, sourceHostname, param));
                     }
                     p++;
                 } else if (atPos == 'k') {
                     if (pn == '+') {
-                        onSetChannelKey(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetChannelKey(channel, sourceNick, sourceLogin, sourceHostname, param));
                     } else {
-                        onRemoveChannelKey(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveChannelKey(channel, sourceNick, sourceLogin, sourceHostname, param));
                     }
                     p++;
                 } else if (atPos == 'l') {
                     if (pn == '+') {
-                        onSetChannelLimit(channel, sourceNick, sourceLogin, sourceHostname, Integer.parseInt(params[p]));
+                        int limit = Integer.parseInt(param);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetChannelLimit(channel, sourceNick, sourceLogin, sourceHostname, limit));
                         p++;
                     } else {
-                        onRemoveChannelLimit(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveChannelLimit(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 'b') {
                     if (pn == '+') {
-                        onSetChannelBan(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetChannelBan(channel, sourceNick, sourceLogin, sourceHostname, param));
                     } else {
-                        onRemoveChannelBan(channel, sourceNick, sourceLogin, sourceHostname, params[p]);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveChannelBan(channel, sourceNick, sourceLogin, sourceHostname, param));
                     }
                     p++;
                 } else if (atPos == 't') {
                     if (pn == '+') {
-                        onSetTopicProtection(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetTopicProtection(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemoveTopicProtection(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveTopicProtection(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 'n') {
                     if (pn == '+') {
-                        onSetNoExternalMessages(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetNoExternalMessages(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemoveNoExternalMessages(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveNoExternalMessages(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 'i') {
                     if (pn == '+') {
-                        onSetInviteOnly(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetInviteOnly(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemoveInviteOnly(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveInviteOnly(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 'm') {
                     if (pn == '+') {
-                        onSetModerated(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetModerated(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemoveModerated(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveModerated(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 'p') {
                     if (pn == '+') {
-                        onSetPrivate(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetPrivate(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemovePrivate(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemovePrivate(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 } else if (atPos == 's') {
                     if (pn == '+') {
-                        onSetSecret(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onSetSecret(channel, sourceNick, sourceLogin, sourceHostname));
                     } else {
-                        onRemoveSecret(channel, sourceNick, sourceLogin, sourceHostname);
+                        this.dispatchHandler(EventType.MODE, target, message, () -> this.onRemoveSecret(channel, sourceNick, sourceLogin, sourceHostname));
                     }
                 }
             }
 
-            this.onMode(channel, sourceNick, sourceLogin, sourceHostname, mode);
+            this.dispatch(EventType.MODE, target, message, channel, null, () -> this.onMode(channel, sourceNick, sourceLogin, sourceHostname, mode));
         } else {
             // The mode of a user is being changed.
             String nick = target;
-            this.onUserMode(nick, sourceNick, sourceLogin, sourceHostname, mode);
+            this.dispatch(EventType.MODE, target, message, null, null, () -> this.onUserMode(nick, sourceNick, sourceLogin, sourceHostname, mode));
         }
     }
 
@@ -2953,6 +3644,32 @@ public abstract class PircBot implements ReplyConstants {
         _verbose = verbose;
     }
 
+    /**
+     * Sets whether the last message time, previous message and AFK state of
+     * the users in our channels are kept up to date, as returned by
+     * {@link User#getLastMessage()}, {@link User#getPreviousMessage()} and
+     * {@link User#isAFK()}. This has to look up the sender of every message
+     * to a channel, so with it, such messages are handled even when nothing
+     * wants them. The default is false: a channel message or action that has
+     * neither a listener nor an overridden onMessage or onAction method is
+     * dropped without looking at its sender.
+     *
+     * @param track True to keep track of when users last talked
+     */
+    public final void setTrackUserActivity(boolean track) {
+        _trackUserActivity = track;
+    }
+
+    /**
+     * Returns whether the last message time, previous message and AFK state
+     * of users are kept up to date.
+     *
+     * @return True if user activity is tracked
+     */
+    public final boolean isTrackingUserActivity() {
+        return _trackUserActivity;
+    }
+
     /**
      * Sets the name of the bot, which will be used as its nick when it tries to
      * join an IRC server. This should be set before joining any servers,
@@ -3070,8 +3787,9 @@ public abstract class PircBot implements ReplyConstants {
      * @return True if and only if the PircBot is currently connected to a
      * server.
      */
-    public final synchronized boolean isConnected() {
-        return _inputThread != null && _inputThread.isConnected();
+    public final boolean isConnected() {
+        IrcConnection connection = _connection;
+        return connection != null && connection.isConnected();
     }
 
     /**
@@ -3092,6 +3810,79 @@ public abstract class PircBot implements ReplyConstants {
         _messageDelay = delay;
     }
 
+    /**
+     * Sets the RateLimiter that decides when the next line from the outgoing
+     * message queue may be sent, e.g. a TokenBucketRateLimiter to send as
+     * fast as the Twitch limits allow. If set to null, which is the default,
+     * the message delay is used between every line instead.
+     *
+     * @param rateLimiter The RateLimiter to use, or null to use the message
+     * delay
+     */
+    public final void setRateLimiter(RateLimiter rateLimiter) {
+        _rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the RateLimiter used for the outgoing message queue.
+     *
+     * @return The RateLimiter, or null if the message delay is used
+     */
+    public final RateLimiter getRateLimiter() {
+        return _rateLimiter;
+    }
+
+    /**
+     * Sets the maximum size of a batch of lines from the outgoing message
+     * queue. When a RateLimiter is set, all queued lines that it allows to be
+     * sent straight away are written to the socket together, up to this many
+     * bytes. Without a RateLimiter, the same is done for all queued lines when
+     * the message delay is 0. The default is 8192. With 0, every line is sent
+     * on its own through {@link #sendRawLine(String)}.
+     *
+     * @param bytes Maximum number of bytes per batch, counting "\r\n".
+     */
+    public final void setMaxBatchBytes(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Cannot have a negative batch size.");
+        }
+        _maxBatchBytes = bytes;
+    }
+
+    /**
+     * Returns the maximum size of a batch of lines from the outgoing message
+     * queue.
+     *
+     * @return Maximum number of bytes per batch.
+     */
+    public final int getMaxBatchBytes() {
+        return _maxBatchBytes;
+    }
+
+    /**
+     * Sets how long a batch of lines from the outgoing message queue may wait
+     * for more lines to be queued before it is sent. The default of 0 only
+     * batches lines that are already queued, and so never delays a line.
+     *
+     * @param delay Maximum delay in milliseconds.
+     */
+    public final void setMaxBatchDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Cannot have a negative time.");
+        }
+        _maxBatchDelay = delay;
+    }
+
+    /**
+     * Returns how long a batch of lines from the outgoing message queue may
+     * wait for more lines.
+     *
+     * @return Maximum delay in milliseconds.
+     */
+    public final long getMaxBatchDelay() {
+        return _maxBatchDelay;
+    }
+
     /**
      * Sets the OutQueue PRIVMSG max length. Default value is unlimited. If set
      * to an amount (e.g. 10), and more than 10 messages are added to the Queue
@@ -3148,6 +3939,19 @@ public abstract class PircBot implements ReplyConstants {
         return _outQueue.size();
     }
 
+    /**
+     * Gets the number of lines currently waiting in one lane of the outgoing
+     * message Queue. Lines in Queue.LANE_CONTROL are sent before those in
+     * Queue.LANE_COMMAND, which are sent before those in Queue.LANE_MESSAGE.
+     *
+     * @param lane One of Queue.LANE_CONTROL, Queue.LANE_COMMAND or
+     * Queue.LANE_MESSAGE
+     * @return The number of lines in that lane of the outgoing message Queue.
+     */
+    public final int getOutgoingQueueSize(int lane) {
+        return _outQueue.size(lane);
+    }
+
     /**
      * Returns the name of the last IRC server the PircBot tried to connect to.
      * This does not imply that the connection attempt to the server was
@@ -3371,7 +4175,7 @@ public abstract class PircBot implements ReplyConstants {
             return false;
         }
         final PircBot other = (PircBot) obj;
-        if (!Objects.equals(this._inputThread, other._inputThread)) {
+        if (!Objects.equals(this._connection, other._connection)) {
             return false;
         }
         if (!Objects.equals(this._outputThread, other._outputThread)) {
@@ -3449,7 +4253,7 @@ public abstract class PircBot implements ReplyConstants {
     @Override
     public int hashCode() {
         int hash = 5;
-        hash = 67 * hash + Objects.hashCode(this._inputThread);
+        hash = 67 * hash + Objects.hashCode(this._connection);
         hash = 67 * hash + Objects.hashCode(this._outputThread);
         hash = 67 * hash + Objects.hashCode(this._charset);
         hash = 67 * hash + Objects.hashCode(this._inetAddress);
@@ -3543,13 +4347,11 @@ public abstract class PircBot implements ReplyConstants {
         } catch (Exception ex) {
             System.err.println("[EXCEPTION] " + ex.toString());
         }
-        channel = channel.toLowerCase();
-        synchronized (_channels) {
-            if (_channels.get(channel) == null) {
-                return null;
-            }
-            return _channels.get(channel).getUserlist();
+        Channel chan = _channels.get(channel);
+        if (chan == null) {
+            return null;
         }
+        return chan.getUserlist();
     }
 
     /**
@@ -3564,13 +4366,7 @@ public abstract class PircBot implements ReplyConstants {
      * in.
      */
     public final String[] getChannels() {
-        synchronized (_channels) {
-            ArrayList<String> channels = new ArrayList<>();
-            _channels.keySet().stream().forEach((el) -> {
-                channels.add(el);
-            });
-            return channels.toArray(new String[channels.size()]);
-        }
+        return _channels.getNames();
     }
 
     /**
@@ -3581,9 +4377,7 @@ public abstract class PircBot implements ReplyConstants {
      * @return Channel object
      */
     public Channel getChannel(String channel) {
-        synchronized (_channels) {
-            return this._channels.get(channel);
-        }
+        return this._channels.get(channel);
     }
 
     /**
@@ -3606,8 +4400,12 @@ public abstract class PircBot implements ReplyConstants {
      */
     public synchronized void dispose() {
         //System.out.println("disposing...");
+        ReconnectSupervisor supervisor = _reconnectSupervisor;
+        if (supervisor != null) {
+            supervisor.cancel(this);
+        }
         _outputThread.interrupt();
-        _inputThread.dispose();
+        _connection.dispose();
     }
 
     /**
@@ -3615,213 +4413,74 @@ public abstract class PircBot implements ReplyConstants {
      * entry if it exists.
      */
     private void addUser(String channel, User user) {
-        channel = channel.toLowerCase();
-        synchronized (_channels) {
-            Channel chan = _channels.get(channel);
-            if (chan == null) {
-                return;
-            }
-            chan.addUser(user);
-        }
+        _channels.addUser(channel, user);
     }
 
     /**
      * Remove a user from the specified channel in our memory.
      */
     private boolean removeUser(String channel, String nick) {
-        channel = channel.toLowerCase();
-        synchronized (_channels) {
-            Channel chan = _channels.get(channel);
-            if (chan == null) {
-                return false;
-            }
-            try {
-                chan.removeUser(nick);
-                return true;
-            } catch (Exception ex) {
-                return false;
-            }
-        }
+        return _channels.removeUser(channel, nick);
     }
 
     /**
      * Remove a user from all channels in our memory.
      */
     private void removeUser(String nick) {
-        synchronized (_channels) {
-            _channels.values().stream().forEach((el) -> {
-                el.removeUser(nick);
-            });
-        }
+        _channels.removeUser(nick);
     }
 
     /**
      * Rename a user if they appear in any of the channels we know about.
      */
     private void renameUser(String oldNick, String newNick) {
-        oldNick = oldNick.toLowerCase();
-        synchronized (_channels) {
-            for (Channel el : _channels.values()) {
-                User user = el.getUser(oldNick);
-                if (user == null) {
-                    continue;
-                }
-                user.changeName(newNick);
-            }
-        }
+        _channels.renameUser(oldNick, newNick);
     }
 
     /**
      * Removes an entire channel from our memory of users.
      */
     private void removeChannel(String channel) {
-        channel = channel.toLowerCase();
-        synchronized (_channels) {
-            _channels.remove(channel);
-        }
+        _channels.remove(channel);
     }
 
     /**
      * Removes all channels from our memory of users.
      */
     private void removeAllChannels() {
-        synchronized (_channels) {
-            _channels.clear();
-        }
+        _channels.clear();
     }
 
     protected void updateUserAFK(String channel, String username, boolean afk) {
-        synchronized (_channels) {
-            User user = _channels.get(channel).getUser(username);
-            if (user == null) {
-                return;
-            }
-            user.setAFK(afk);
+        User user = _channels.getUser(channel, username);
+        if (user == null) {
+            return;
         }
+        user.setAFK(afk);
     }
 
     protected void updateUserLastMessage(String channel, String username, String lastMessage) {
-        synchronized (_channels) {
-            User user = _channels.get(channel).getUser(username);
-            if (user == null) {
-                return;
-            }
-            user.setPreviousMessage(lastMessage);
-        }
-    }
-
-    /**
-     * Updates a user with Twitch IRC3 tags in all known channels we're
-     * connected to and returns the User Object.
-     *
-     * @param username Username to look for
-     * @param color User color info
-     * @param subscriber User subscriber
-     * @param turbo User turbo
-     * @param targetUserId Used in some NOTICE lines on Twitch.tv
-     * @param mod User moderator
-     * @param noisy If a message is detected as spam by Twitch.tv IRCv3 tags
-     * @param emoteOnly If a message is contains only emotes, as detected by
-     * Twitch.tv IRCv3 tags
-     * @param userType Usertype
-     * @param emotes emote String
-     * @param badges Badges string
-     * @param whisperThreadId Whisper Thread-id string
-     * @param systemMsg Resubscription System string
-     * @param userLogin Lowercase username name
-     * @param subUser Lowercase username name
-     * @param subPlan Subscription plan (The type of subscription plan being
-     * used. Valid values: Prime, 1000, 2000, 3000. 1000, 2000, and 3000 refer
-     * to the first, second, and third levels of paid subscriptions,
-     * respectively (currently $4.99, $9.99, and $24.99).)
-     * @param subName Subscription name (The display name of the subscription
-     * plan. This may be a default name or one created by the channel owner.)
-     * @param emoteSets Emoticon Sets string
-     * @param messageId Unique identifier for a message.
-     * @param roomId ID of the channel.
-     * @param whisperMsgId Message ID for a whisper message.
-     * @param consecutiveMonths number of consecutive months the user has
-     * subscribed for in a resub notice.
-     * @param bits Amount of Bits user has used.
-     * @param msgId Twitch's type of notice
-     * @param systemMsgId Twitch's Notice Message ID
-     * @param sentTs Unix timestamp of a message
-     * @param sourceViewerCount Viewer count of a raiding channel
-     * @param sourceDisplayName DisplayName with proper capitalization of
-     * raiding channel
-     * @param sourceName Lowercase name of raiding channel
-     * @param recipientDisplayName DisplayName of a user receiving a Gift
-     * Subscription
-     * @param recipientUserName Lowercase name of a user receiving a Gift
-     * Subscription
-     * @param recipientId User ID of a user recLeiving a Gift Subscription
-     * @param ritualName Ritual name. Many channels have special rituals to
-     * celebrate viewer milestones when they are shared. The rituals notice
-     * extends the sharing of these messages to other viewer milestones
-     * (initially, a new viewer chatting for the first time).
-     * @param tmiSentTs Unix timestamp of a message (Again?)
-     */
-    private void updateUser(String username, String color, boolean subscriber, boolean turbo, boolean noisy, boolean emoteOnly, boolean mod, String userType, long id, long roomId, long whisperMsgId, long consecutiveMonths, String emotes, String badges, String whisperThreadId, String messageId, long bits, String emoteSets, String msgId, String sytemMsgId, String systemMsg, String userLogin, String subUser, String subPlan, String subName, long sentTs, long tmiSentTs, long targetUserId, String sourceDisplayName, String sourceName, long sourceViewerCount, String recipientDisplayName, String recipientUserName, long recipientId, String ritualName) {
-        synchronized (_channels) {
-            for (Channel el : _channels.values()) {
-                User user = el.getUser(username);
-                if (user == null) {
-                    return;
-                }
-                user.setColor(color);
-                user.setSubscriber(subscriber);
-                user.setTurbo(turbo);
-                user.setTargetUserId(targetUserId);
-                user.setNoisy(noisy);
-                user.setEmoteOnly(emoteOnly);
-                user.setMod(mod);
-                user.setUserType(userType);
-                user.setId(id);
-                user.setEmotes(emotes);
-                user.setMsgId(msgId);
-                user.setSystemMsgId(sytemMsgId);
-                user.setBadges(badges);
-                user.setSystemMsg(systemMsg);
-                user.setUserLogin(userLogin);
-                user.setSubUser(subUser);
-                user.setSubPlan(subPlan);
-                user.setSubName(subName);
-                user.setEmoteSets(emoteSets);
-                user.setMessageId(messageId);
-                user.setRoomId(roomId);
-                user.setWhisperMsgId(whisperMsgId);
-                user.setWhisperThreadId(whisperThreadId);
-                user.setConsecutiveMonths(consecutiveMonths);
-                user.setBits(bits);
-                user.setSentTs(sentTs);
-                user.setTmiSentTs(tmiSentTs);
-                user.setSourceDisplayName(sourceDisplayName);
-                user.setRecipientDisplayName(recipientDisplayName);
-                user.setRecipientUserName(recipientUserName);
-                user.setRecipientId(recipientId);
-                user.setRitualName(ritualName);
-                user.setSourceName(sourceName);
-                user.setSourceViewerCount(sourceViewerCount);
-            }
+        User user = _channels.getUser(channel, username);
+        if (user == null) {
+            return;
         }
+        user.setLastMessage(System.currentTimeMillis());
+        user.setPreviousMessage(lastMessage);
     }
 
     private void updateUser(String channel, int userMode, String nick) {
-        channel = channel.toLowerCase();
-        synchronized (_channels) {
-            User user = _channels.get(channel).getUser(nick);
-            if (user == null) {
-                return;
-            }
-            if (userMode == OP_ADD) {
-                user.setOP(true);
-            } else if (userMode == OP_REMOVE) {
-                user.setOP(false);
-            } else if (userMode == VOICE_ADD) {
-                user.setVoice(true);
-            } else if (userMode == VOICE_REMOVE) {
-                user.setVoice(false);
-            }
+        User user = _channels.getUser(channel, nick);
+        if (user == null) {
+            return;
+        }
+        if (userMode == OP_ADD) {
+            user.setOP(true);
+        } else if (userMode == OP_REMOVE) {
+            user.setOP(false);
+        } else if (userMode == VOICE_ADD) {
+            user.setVoice(true);
+        } else if (userMode == VOICE_REMOVE) {
+            user.setVoice(false);
         }
     }
 }
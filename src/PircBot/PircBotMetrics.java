@@ -0,0 +1,172 @@
+package PircBot;
+
+/**
+ * Receives measurements of what a PircBot is doing, such as the lines it
+ * reads and sends, how long it takes to handle them, and how long lines wait
+ * in the outgoing queue. It is given to a PircBot with
+ * {@link PircBot#setMetrics(PircBotMetrics)}.
+ * <p>
+ * Every method does nothing by default, so an implementation only needs to
+ * override the measurements it is interested in. {@link #NONE} is used when
+ * no metrics are wanted, and {@link InMemoryMetrics} keeps simple counters and
+ * histograms that can be watched through JMX.
+ * <p>
+ * The methods are called from the threads that read from and write to the
+ * server, the threads that call the handlers and the DCC threads, some of
+ * them while holding the lock of the outgoing queue. Implementations must be
+ * thread safe and return quickly, and should never block.
+ */
+public interface PircBotMetrics {
+
+    /**
+     * Metrics that measure nothing. This is the default of a PircBot, and
+     * costs nothing beyond the calls to its empty methods.
+     */
+    PircBotMetrics NONE = new PircBotMetrics() {
+    };
+
+    /**
+     * Called for every line read from the server, once it has been handled.
+     * When there is no EventDispatcher, the time includes calling the onXxx
+     * methods and the listeners. By default, this calls
+     * {@link #lineReceived(String, long)}.
+     *
+     * @param line The line, without the "\r\n"
+     * @param bytes Size of the line as it was received, in bytes, counting
+     * its line ending
+     * @param nanos Time taken by handleLine, in nanoseconds
+     */
+    default void lineReceived(String line, int bytes, long nanos) {
+        lineReceived(line, nanos);
+    }
+
+    /**
+     * Called for every line read from the server, once it has been handled,
+     * by the default {@link #lineReceived(String, int, long)}.
+     *
+     * @param line The line, without the "\r\n"
+     * @param nanos Time taken by handleLine, in nanoseconds
+     */
+    default void lineReceived(String line, long nanos) {
+    }
+
+    /**
+     * Called for every line written to the server, apart from those sent
+     * while logging in.
+     *
+     * @param line The line, without the "\r\n"
+     */
+    default void lineSent(String line) {
+    }
+
+    /**
+     * Called when the onXxx methods and listeners of an event have returned.
+     *
+     * @param type Type of the event
+     * @param nanos Time taken by the handlers, in nanoseconds
+     */
+    default void eventHandled(EventType type, long nanos) {
+    }
+
+    /**
+     * Called when the PONG to a server PING has been written to the socket.
+     *
+     * @param nanos Time from reading the PING to writing the PONG, in
+     * nanoseconds
+     */
+    default void pongSent(long nanos) {
+    }
+
+    /**
+     * Called when the PONG to one of our keep alive PINGs arrives.
+     *
+     * @param rtt Round trip time of this PING, in nanoseconds
+     * @param smoothed Smoothed round trip time of the connection, in
+     * nanoseconds
+     * @param jitter Smoothed deviation of the round trip time, in nanoseconds
+     */
+    default void roundTrip(long rtt, long smoothed, long jitter) {
+    }
+
+    /**
+     * Called when a line is added to the outgoing queue.
+     *
+     * @param depth Number of lines in the queue, including this one
+     */
+    default void lineQueued(int depth) {
+    }
+
+    /**
+     * Called when a line is taken from the outgoing queue to be sent.
+     *
+     * @param waitNanos Time the line spent in the queue, in nanoseconds
+     * @param depth Number of lines left in the queue
+     */
+    default void lineDequeued(long waitNanos, int depth) {
+    }
+
+    /**
+     * Called when the RateLimiter held up a line before it could be sent.
+     *
+     * @param nanos Time the line was held up, in nanoseconds
+     */
+    default void rateLimited(long nanos) {
+    }
+
+    /**
+     * Called when the PircBot has logged onto a server.
+     */
+    default void connected() {
+    }
+
+    /**
+     * Called right after {@link #connected()} when the PircBot had been
+     * logged onto a server before, including when it moved to a new
+     * connection on a Twitch RECONNECT.
+     */
+    default void reconnected() {
+    }
+
+    /**
+     * Called when the PircBot has lost its connection to a server.
+     */
+    default void disconnected() {
+    }
+
+    /**
+     * Called when a ReconnectSupervisor has finished joining the channels
+     * that the PircBot was in before it lost its connection.
+     *
+     * @param channels Number of channels that the server confirmed we joined
+     * @param nanos Time from losing the connection to the last of those
+     * channels being joined, in nanoseconds
+     */
+    default void rejoined(int channels, long nanos) {
+    }
+
+    /**
+     * Called when the PircBot has moved onto a new connection without
+     * dropping the old one first, after the server asked it to reconnect.
+     *
+     * @param channels Number of channels that the server confirmed we joined
+     * on the new connection
+     * @param nanos Time from the server asking us to reconnect to the swap,
+     * in nanoseconds
+     * @param duplicates Number of lines that arrived on both connections and
+     * were only handled once
+     */
+    default void handedOver(int channels, long nanos, long duplicates) {
+    }
+
+    /**
+     * Called when a DCC file transfer has finished, successfully or not.
+     *
+     * @param incoming True if the file was received, false if it was sent
+     * @param bytes Number of bytes transferred, not counting any part of the
+     * file that was there before the transfer was resumed
+     * @param millis Duration of the transfer in milliseconds
+     */
+    default void dccTransferFinished(boolean incoming, long bytes, long millis) {
+    }
+
+}
@@ -12,9 +12,14 @@
  */
 package PircBot;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
 
 /**
  * Queue is a definition of a data structure that may act as a queue - that is,
@@ -22,11 +27,26 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * head end of the queue. This class is thread safe for multiple producers and a
  * single consumer. The next() method will block until there is data in the
  * queue.
- *
- * This has now been modified so that it is compatible with the earlier JDK1.1
- * in order to be suitable for running on mobile appliances. This means
- * replacing the LinkedList with a Vector, which is hardly ideal, but this Queue
- * is typically only polled every second before dispatching messages.
+ * <p>
+ * Lines are sorted into lanes by their command, and next() always takes from
+ * the most urgent lane that is not empty. PONG and the login commands go
+ * first, so that a long backlog of messages can never get us disconnected,
+ * followed by JOIN and MODE, followed by everything else. Lines within a lane
+ * keep the order in which they were added, and PART, QUIT and other commands
+ * that must not overtake the messages before them share the lane of PRIVMSG.
+ * <p>
+ * The message lane is shared fairly between targets, so that a flood of
+ * messages to one busy channel does not hold up the replies to every other
+ * channel. Each target has its own queue, and the targets with lines waiting
+ * take turns in deficit round robin: on its turn a target may send as many
+ * lines as its weight (see {@link Channel#setWeight(int)}) before the next
+ * target gets a turn. Lines without a target, such as QUIT, share a single
+ * queue of their own, and each of them waits until every line with a target
+ * that was added before it has been sent, so it never overtakes them.
+ * <p>
+ * Every operation except toArray() takes constant time: the number of PRIVMSG
+ * lines and of each distinct line are counted as lines come and go rather than
+ * by walking the queue.
  *
  * @author Paul James Mutton,
  * <a href="http://www.jibble.org/">http://www.jibble.org/</a>
@@ -34,15 +54,49 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class Queue {
 
-    private final ConcurrentLinkedQueue<String> _queue;
-    private int size;
+    /**
+     * Lane for PONG, PING and the commands used while logging in.
+     */
+    public static final int LANE_CONTROL = 0;
+    /**
+     * Lane for JOIN and MODE.
+     */
+    public static final int LANE_COMMAND = 1;
+    /**
+     * Lane for PRIVMSG, NOTICE and every other command.
+     */
+    public static final int LANE_MESSAGE = 2;
+    /**
+     * The number of lanes.
+     */
+    public static final int LANES = 3;
+
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _notEmpty = _lock.newCondition();
+    private final ArrayDeque<Entry>[] _lanes;
+    // The message lane, by lowercased target.
+    private final HashMap<String, Target> _targets = new HashMap<>();
+    // Targets with lines waiting, in the order of their turns.
+    private final ArrayDeque<Target> _turns = new ArrayDeque<>();
+    // Lines of the message lane without a target.
+    private final ArrayDeque<Entry> _untargeted = new ArrayDeque<>();
+    // The Epoch that lines with a target are added to; each line without a
+    // target closes it and starts a new one.
+    private Epoch _epoch = new Epoch();
+    private int _messageLaneSize = 0;
+    private volatile ToIntFunction<String> _weights = target -> 1;
+    // Number of times each line is in the queue, for contains().
+    private final HashMap<String, Integer> _counts = new HashMap<>();
+    private volatile int _size = 0;
+    private volatile int _messageCount = 0;
+    private volatile int size;
+    private volatile PircBotMetrics _metrics = PircBotMetrics.NONE;
 
     /**
      * Constructs a Queue object of unlimited size.
      */
     public Queue() {
-        _queue = new ConcurrentLinkedQueue<>();
-        size = Integer.MAX_VALUE;
+        this(Integer.MAX_VALUE);
     }
 
     /**
@@ -51,11 +105,70 @@ public class Queue {
      *
      * @param size Message Limit
      */
+    @SuppressWarnings({"unchecked", "rawtypes"})
     public Queue(int size) {
-        _queue = new ConcurrentLinkedQueue();
+        _lanes = new ArrayDeque[LANE_MESSAGE];
+        for (int i = 0; i < LANE_MESSAGE; i++) {
+            _lanes[i] = new ArrayDeque<>();
+        }
         this.size = size;
     }
 
+    /**
+     * Returns the lane that a line belongs in, going by its command.
+     *
+     * @param line Raw line to be sent to the server
+     * @return One of LANE_CONTROL, LANE_COMMAND or LANE_MESSAGE
+     */
+    static int laneOf(String line) {
+        int end = line.indexOf(' ');
+        if (end < 0) {
+            end = line.length();
+        }
+        switch (end) {
+            case 3:
+                if (isCommand(line, end, "CAP")) {
+                    return LANE_CONTROL;
+                }
+                break;
+            case 4:
+                if (isCommand(line, end, "PONG") || isCommand(line, end, "PING")
+                        || isCommand(line, end, "PASS") || isCommand(line, end, "NICK")
+                        || isCommand(line, end, "USER")) {
+                    return LANE_CONTROL;
+                }
+                if (isCommand(line, end, "JOIN") || isCommand(line, end, "MODE")) {
+                    return LANE_COMMAND;
+                }
+                break;
+            default:
+                break;
+        }
+        return LANE_MESSAGE;
+    }
+
+    /**
+     * Returns the lowercased target of a line in the message lane, that is its
+     * first parameter if it is a PRIVMSG, NOTICE or PART.
+     */
+    static String targetOf(String line) {
+        int end = line.indexOf(' ');
+        if (end < 0 || !(isCommand(line, end, "PRIVMSG") || isCommand(line, end, "NOTICE") || isCommand(line, end, "PART"))) {
+            return "";
+        }
+        int start = end + 1;
+        end = line.indexOf(' ', start);
+        return (end < 0 ? line.substring(start) : line.substring(start, end)).toLowerCase();
+    }
+
+    private static boolean isCommand(String line, int end, String command) {
+        return end == command.length() && line.regionMatches(true, 0, command, 0, end);
+    }
+
+    private static boolean isMessage(String line) {
+        return line.startsWith("PRIVMSG ");
+    }
+
     /**
      * Checks the Queue to see if it contains the parameter.
      *
@@ -63,60 +176,83 @@ public class Queue {
      * @return True if contained in queue, false otherwise
      */
     public boolean contains(Object o) {
-        synchronized (_queue) {
-            Object[] array = _queue.toArray();
-            for (Object el : array) {
-                if (el.equals(o)) {
-                    return true;
-                }
-            }
-            return false;
+        _lock.lock();
+        try {
+            return _counts.containsKey(o);
+        } finally {
+            _lock.unlock();
         }
     }
 
-
+    /**
+     * Returns a copy of the lines in the Queue, in the order in which they
+     * would currently be sent.
+     *
+     * @return List of the queued lines
+     */
     public ArrayList<String> toArray() {
-        Object[] arr = _queue.toArray();
-        String[] arrOther = new String[arr.length];
-        for (int i = 0; i < arr.length; i++) {
-            if (arr[i] instanceof String) {
-                String t = (String) arr[i];
-                arrOther[i] = t;
+        _lock.lock();
+        try {
+            ArrayList<String> lines = new ArrayList<>(_size);
+            for (ArrayDeque<Entry> lane : _lanes) {
+                for (Entry entry : lane) {
+                    lines.add(entry.line);
+                }
             }
+            for (Target target : _turns) {
+                for (Entry entry : target.lines) {
+                    lines.add(entry.line);
+                }
+            }
+            for (Entry entry : _untargeted) {
+                lines.add(entry.line);
+            }
+            return lines;
+        } finally {
+            _lock.unlock();
         }
-        return new ArrayList<>(Arrays.asList(arrOther));
     }
 
     /**
-     * Adds an Object to the end of the Queue.
+     * Adds an Object to the end of its lane of the Queue. A PRIVMSG is silently
+     * dropped if the Queue already holds as many PRIVMSG lines as set by
+     * setMessageSize.
      *
      * @param o The Object to be added to the Queue.
      */
     public void add(String o) {
-        synchronized (_queue) {
-            if (o.startsWith("PRIVMSG")) {
-                if (messageCount() >= this.size) {
-                    _queue.notify();
+        boolean message = isMessage(o);
+        _lock.lock();
+        try {
+            if (message) {
+                if (_messageCount >= this.size) {
                     return;
                 }
+                _messageCount++;
             }
-            _queue.add(o);
-            _queue.notify();
-
+            Entry entry = new Entry(o);
+            int lane = laneOf(o);
+            if (lane == LANE_MESSAGE) {
+                addMessage(entry);
+            } else {
+                _lanes[lane].addLast(entry);
+            }
+            _counts.merge(o, 1, Integer::sum);
+            _size++;
+            _metrics.lineQueued(_size);
+            _notEmpty.signal();
+        } finally {
+            _lock.unlock();
         }
     }
 
+    /**
+     * Returns the number of PRIVMSG lines in the Queue.
+     *
+     * @return Number of PRIVMSG lines
+     */
     public int messageCount() {
-        int count = 0;
-        synchronized (_queue) {
-            for (Object el : _queue.toArray()) {
-                String a = el.toString();
-                if (a.startsWith("PRIVMSG ")) {
-                    count++;
-                }
-            }
-        }
-        return count;
+        return _messageCount;
     }
 
     /**
@@ -124,30 +260,212 @@ public class Queue {
      * from the Queue. If the Queue is empty, then this method shall block until
      * there is an Object in the Queue to return.
      *
-     * @return The next item from the front of the queue.
+     * @return The next item from the front of the queue, or null if the thread
+     * was interrupted while waiting.
      */
     public String next() {
-
-        String o = null;
-
-        // Block if the Queue is empty.
-        synchronized (_queue) {
-            if (_queue.isEmpty()) {
+        _lock.lock();
+        try {
+            while (_size == 0) {
                 try {
-                    _queue.wait();
+                    _notEmpty.await();
                 } catch (InterruptedException e) {
                     return null;
                 }
             }
+            return take();
+        } finally {
+            _lock.unlock();
+        }
+    }
 
-            // Return the Object.
-            try {
-                o = _queue.poll();
-            } catch (ArrayIndexOutOfBoundsException e) {
-                throw new InternalError("Race hazard in Queue object.");
+    /**
+     * Returns the Object at the front of the Queue, waiting at most the given
+     * time for one to be added if the Queue is empty.
+     *
+     * @param timeout Maximum time to wait in milliseconds, 0 to not wait at
+     * all.
+     * @return The next item from the front of the queue, or null if the Queue
+     * stayed empty.
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public String poll(long timeout) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        _lock.lock();
+        try {
+            while (_size == 0) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = _notEmpty.awaitNanos(nanos);
+            }
+            return take();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the line at the front of the most urgent lane whose front line
+     * may be sent now, as decided by a RateLimiter, and removes it from the
+     * Queue. If there is no such line, this method blocks until there is one.
+     * A line that has to wait stays in the Queue, so that lines in other
+     * lanes can go first in the meantime.
+     *
+     * @param delay Function from a line to the time until it may be sent, in
+     * nanoseconds, such as {@link RateLimiter#delay(String)}
+     * @return The line, or null if the thread was interrupted while waiting.
+     */
+    public String next(ToLongFunction<String> delay) {
+        try {
+            return poll(Long.MAX_VALUE, delay);
+        } catch (InterruptedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Like {@link #next(ToLongFunction)}, but waits at most the given time for
+     * a line that may be sent.
+     *
+     * @param timeout Maximum time to wait in nanoseconds, 0 to not wait at
+     * all.
+     * @param delay Function from a line to the time until it may be sent, in
+     * nanoseconds
+     * @return The line, or null if there was none that could be sent in time.
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public String poll(long timeout, ToLongFunction<String> delay) throws InterruptedException {
+        long nanos = timeout;
+        _lock.lock();
+        try {
+            while (true) {
+                long wait = Long.MAX_VALUE;
+                for (int lane = 0; lane < LANES && _size > 0; lane++) {
+                    Entry head = lane == LANE_MESSAGE ? peekMessage() : _lanes[lane].peekFirst();
+                    if (head == null) {
+                        continue;
+                    }
+                    long d = delay.applyAsLong(head.line);
+                    if (d <= 0) {
+                        return removed(lane == LANE_MESSAGE ? nextMessage() : _lanes[lane].pollFirst());
+                    }
+                    wait = Math.min(wait, d);
+                }
+                if (nanos <= 0) {
+                    return null;
+                }
+                // Woken early when a line is added, as it may be allowed.
+                long slept = Math.min(wait, nanos);
+                nanos -= slept - _notEmpty.awaitNanos(slept);
             }
+        } finally {
+            _lock.unlock();
         }
+    }
 
+    /**
+     * Removes the line that is to be sent next. Must be called while holding
+     * the lock, and only if the Queue is not empty.
+     */
+    private String take() {
+        for (ArrayDeque<Entry> lane : _lanes) {
+            Entry entry = lane.pollFirst();
+            if (entry != null) {
+                return removed(entry);
+            }
+        }
+        Entry entry = nextMessage();
+        if (entry == null) {
+            throw new InternalError("Race hazard in Queue object.");
+        }
+        return removed(entry);
+    }
+
+    /**
+     * Adds a line to the queue of its target, giving the target a turn if it
+     * did not have lines waiting. Must be called while holding the lock.
+     */
+    private void addMessage(Entry entry) {
+        String key = targetOf(entry.line);
+        entry.epoch = _epoch;
+        _messageLaneSize++;
+        if (key.isEmpty()) {
+            _untargeted.addLast(entry);
+            _epoch = new Epoch();
+            return;
+        }
+        _epoch.pending++;
+        Target target = _targets.get(key);
+        if (target == null) {
+            target = new Target(key);
+            _targets.put(key, target);
+            _turns.addLast(target);
+        }
+        target.lines.addLast(entry);
+    }
+
+    /**
+     * Returns the line that nextMessage() would take, without taking it.
+     * Must be called while holding the lock.
+     */
+    private Entry peekMessage() {
+        Entry entry = _untargeted.peekFirst();
+        if (entry != null && entry.epoch.pending == 0) {
+            return entry;
+        }
+        Target target = _turns.peekFirst();
+        return target == null ? null : target.lines.peekFirst();
+    }
+
+    /**
+     * Takes the next line of the message lane: the first line without a
+     * target once all lines added before it are gone, and otherwise the next
+     * line with a target in deficit round robin order. Must be called while
+     * holding the lock.
+     */
+    private Entry nextMessage() {
+        Entry first = _untargeted.peekFirst();
+        if (first != null && first.epoch.pending == 0) {
+            _messageLaneSize--;
+            return _untargeted.pollFirst();
+        }
+        Target target = _turns.peekFirst();
+        if (target == null) {
+            return null;
+        }
+        if (target.deficit <= 0) {
+            // Start of the turn of this target.
+            target.deficit = Math.max(1, _weights.applyAsInt(target.key));
+        }
+        Entry entry = target.lines.pollFirst();
+        entry.epoch.pending--;
+        target.deficit--;
+        _messageLaneSize--;
+        if (target.lines.isEmpty()) {
+            _turns.pollFirst();
+            _targets.remove(target.key);
+        } else if (target.deficit <= 0) {
+            _turns.pollFirst();
+            _turns.addLast(target);
+        }
+        return entry;
+    }
+
+    /**
+     * Updates the counters for a line that has left the Queue. Must be called
+     * while holding the lock.
+     *
+     * @return The line
+     */
+    private String removed(Entry entry) {
+        String o = entry.line;
+        _size--;
+        if (isMessage(o)) {
+            _messageCount--;
+        }
+        _counts.computeIfPresent(o, (line, count) -> count == 1 ? null : count - 1);
+        _metrics.lineDequeued(System.nanoTime() - entry.queued, _size);
         return o;
     }
 
@@ -166,8 +484,21 @@ public class Queue {
      * Clears the contents of the Queue.
      */
     public void clear() {
-        synchronized (_queue) {
-            _queue.clear();
+        _lock.lock();
+        try {
+            for (ArrayDeque<Entry> lane : _lanes) {
+                lane.clear();
+            }
+            _targets.clear();
+            _turns.clear();
+            _untargeted.clear();
+            _epoch = new Epoch();
+            _messageLaneSize = 0;
+            _counts.clear();
+            _size = 0;
+            _messageCount = 0;
+        } finally {
+            _lock.unlock();
         }
     }
 
@@ -177,7 +508,62 @@ public class Queue {
      * @return The current size of the queue.
      */
     public int size() {
-        return _queue.size();
+        return _size;
+    }
+
+    /**
+     * Returns the number of lines waiting in one lane of the Queue.
+     *
+     * @param lane One of LANE_CONTROL, LANE_COMMAND or LANE_MESSAGE
+     * @return The current size of the lane.
+     */
+    public int size(int lane) {
+        _lock.lock();
+        try {
+            return lane == LANE_MESSAGE ? _messageLaneSize : _lanes[lane].size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of lines waiting for one target in the message lane.
+     *
+     * @param target Target of the lines, e.g. a channel, or "" for the lines
+     * without a target
+     * @return The number of lines waiting for that target.
+     */
+    public int size(String target) {
+        _lock.lock();
+        try {
+            if (target.isEmpty()) {
+                return _untargeted.size();
+            }
+            Target queue = _targets.get(target.toLowerCase());
+            return queue == null ? 0 : queue.lines.size();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many lines each target of the message lane may send per turn.
+     * PircBot uses the weight of the Channel.
+     *
+     * @param weights Function from lowercased target to its weight
+     */
+    public void setWeights(ToIntFunction<String> weights) {
+        _weights = weights;
+    }
+
+    /**
+     * Sets the PircBotMetrics that are told about lines entering and leaving
+     * the Queue. PircBot passes on its own.
+     *
+     * @param metrics The PircBotMetrics to use
+     */
+    void setMetrics(PircBotMetrics metrics) {
+        _metrics = metrics;
     }
 
     /**
@@ -189,4 +575,43 @@ public class Queue {
         this.size = size;
     }
 
+    /**
+     * The lines waiting for a single target in the message lane.
+     */
+    private static final class Target {
+
+        final String key;
+        final ArrayDeque<Entry> lines = new ArrayDeque<>();
+        int deficit = 0;
+
+        Target(String key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * The lines with a target that were added between two lines without one.
+     */
+    private static final class Epoch {
+
+        // Lines of this Epoch that are still in the Queue.
+        int pending = 0;
+    }
+
+    /**
+     * A line in the Queue, along with the time it was added.
+     */
+    private static final class Entry {
+
+        final String line;
+        final long queued = System.nanoTime();
+        // The Epoch of a line in the message lane. A line without a target
+        // waits for the Epoch that it closes.
+        Epoch epoch;
+
+        Entry(String line) {
+            this.line = line;
+        }
+    }
+
 }
@@ -0,0 +1,56 @@
+package PircBot;
+
+/**
+ * Decides when the OutputThread may send the next line from the outgoing
+ * message queue, so that we never send faster than the server allows.
+ * <p>
+ * A RateLimiter is set with {@link PircBot#setRateLimiter(RateLimiter)}. If
+ * none is set, the OutputThread simply waits for the message delay before
+ * every line, as set by {@link PircBot#setMessageDelay(long)}.
+ * <p>
+ * The OutputThread is the only caller of a RateLimiter, so implementations
+ * do not have to be thread safe with regard to acquire itself.
+ */
+public interface RateLimiter {
+
+    /**
+     * Blocks until a line may be sent without exceeding the limits of the
+     * server, and then counts it as sent.
+     *
+     * @param line The raw line that is about to be sent
+     * @throws InterruptedException if the OutputThread is interrupted while
+     * waiting
+     */
+    void acquire(String line) throws InterruptedException;
+
+    /**
+     * Counts a line as sent if it may be sent right now, without waiting.
+     * This lets the OutputThread send every line that is already allowed in a
+     * single write. Implementations that do not support this may keep the
+     * default, which never allows a line straight away.
+     *
+     * @param line The raw line that is about to be sent
+     * @return True if the line may be sent now, false if acquire has to be
+     * called for it
+     */
+    default boolean tryAcquire(String line) {
+        return false;
+    }
+
+    /**
+     * Returns how long it is until a line may be sent, without counting it
+     * as sent. The OutputThread asks this before it takes a line off the
+     * queue, so that it never sits on a line while waiting, and so that it
+     * can send a line from another lane whose limit has not been reached
+     * yet. Implementations that do not support this may keep the default,
+     * which allows every line straight away and leaves the waiting to
+     * acquire.
+     *
+     * @param line The raw line that is waiting to be sent
+     * @return The time to wait in nanoseconds, 0 if the line may be sent now
+     */
+    default long delay(String line) {
+        return 0;
+    }
+
+}
@@ -0,0 +1,455 @@
+package PircBot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconnects PircBots that have lost their connection, and joins the
+ * channels that they were in again.
+ * <p>
+ * When a supervised PircBot is disconnected, other than by quitting the
+ * server, the supervisor remembers the channels it was in and reconnects it
+ * after a random delay. The delay is drawn between zero and a ceiling that
+ * doubles after every failed attempt, from the initial delay up to the
+ * maximum delay. Drawing it at random spreads out the reconnects of many
+ * PircBots that lost their connection at the same moment, such as when a
+ * server restarts, rather than having them all come back at once. Twitch's
+ * RECONNECT command is treated the same way: the connection is closed and
+ * reconnected after a random delay, unless seamless reconnects are turned on
+ * with {@link #setSeamless(boolean)}.
+ * <p>
+ * Once logged on, the channels are joined again in batches, at most a given
+ * number per period, so that a PircBot in thousands of channels does not go
+ * over the JOIN limit of the server. The default is the Twitch limit of 20
+ * JOINs per 10 seconds. The time from losing the connection until the server
+ * has confirmed every JOIN is reported to the PircBotMetrics of the PircBot.
+ * Channels that were joined with a key are joined again with the same key.
+ * <p>
+ * A ReconnectSupervisor is given to a PircBot with
+ * {@link PircBot#setReconnectSupervisor(ReconnectSupervisor)}, and may be
+ * shared by many PircBots. A PircBot that has one should not reconnect by
+ * itself in onDisconnect.
+ * <pre>
+ * ReconnectSupervisor supervisor = new ReconnectSupervisor();
+ * for (MyBot bot : bots) {
+ *     bot.setReconnectSupervisor(supervisor);
+ *     bot.connect("irc.chat.twitch.tv");
+ * }
+ * </pre>
+ */
+public final class ReconnectSupervisor {
+
+    /**
+     * The default delay before the first attempt to reconnect, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+    /**
+     * The default longest delay between attempts to reconnect, in
+     * milliseconds.
+     */
+    public static final long DEFAULT_MAX_DELAY = 60000;
+
+    private final ScheduledThreadPoolExecutor _executor;
+    // By identity, as the hash code of a PircBot changes with its connection.
+    private final Map<PircBot, Session> _sessions = new IdentityHashMap<>();
+    private volatile long _initialDelay = DEFAULT_INITIAL_DELAY;
+    private volatile long _maxDelay = DEFAULT_MAX_DELAY;
+    private volatile int _joins = TokenBucketRateLimiter.DEFAULT_JOINS;
+    private volatile long _joinPeriod = TokenBucketRateLimiter.DEFAULT_JOIN_PERIOD;
+    private volatile boolean _seamless = false;
+    private final AtomicLong _attempts = new AtomicLong();
+    private final AtomicLong _failures = new AtomicLong();
+
+    /**
+     * Constructs a ReconnectSupervisor with a single thread, so that
+     * PircBots reconnect one at a time.
+     */
+    public ReconnectSupervisor() {
+        this(1);
+    }
+
+    /**
+     * Constructs a ReconnectSupervisor.
+     *
+     * @param threads Number of threads, which is the number of PircBots that
+     * may be logging onto a server at the same time
+     */
+    public ReconnectSupervisor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("A ReconnectSupervisor needs at least one thread.");
+        }
+        AtomicInteger count = new AtomicInteger();
+        _executor = new ScheduledThreadPoolExecutor(threads, task -> {
+            Thread thread = new Thread(task, "Pirc-Reconnect-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        _executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Sets the delays between attempts to reconnect. The delay before each
+     * attempt is random, between zero and a ceiling that starts at the
+     * initial delay and doubles after every failed attempt, up to the
+     * maximum delay. The ceiling goes back to the initial delay once a
+     * PircBot is back in all of its channels.
+     *
+     * @param initialDelay Ceiling of the delay before the first attempt, in
+     * milliseconds
+     * @param maxDelay Highest ceiling of the delay, in milliseconds
+     */
+    public void setBackoff(long initialDelay, long maxDelay) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("The delays must be positive, and the maximum at least the initial delay.");
+        }
+        _initialDelay = initialDelay;
+        _maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets how fast channels are joined again after reconnecting.
+     *
+     * @param joins Number of JOINs sent per period
+     * @param period Length of the period in milliseconds
+     */
+    public void setJoinRate(int joins, long period) {
+        if (joins < 1 || period < 1) {
+            throw new IllegalArgumentException("The number of JOINs and the period must be positive.");
+        }
+        _joins = joins;
+        _joinPeriod = period;
+    }
+
+    /**
+     * Turns seamless reconnects on or off. They are off by default.
+     * <p>
+     * When on, a PircBot that is asked to reconnect by the server opens a
+     * second connection, logs on and joins all of its channels, at the JOIN
+     * rate, while the old connection keeps delivering events. Lines that
+     * arrive on both connections are told apart by their id tag and handled
+     * once. When the new connection is in every channel, or after waiting
+     * for the server long enough, it replaces the old one, which is closed
+     * without onDisconnect being called. Nothing is lost in between, as long
+     * as the server keeps the old connection open until then, which Twitch
+     * does for a while after sending RECONNECT. If the second connection
+     * cannot be opened, the PircBot reconnects the ordinary way.
+     * <p>
+     * Any CAP REQ lines that were sent since connecting are sent again on the
+     * new connection.
+     *
+     * @param seamless True to switch connections without a gap
+     */
+    public void setSeamless(boolean seamless) {
+        _seamless = seamless;
+    }
+
+    /**
+     * Returns true if seamless reconnects are turned on.
+     *
+     * @return True if seamless
+     */
+    public boolean isSeamless() {
+        return _seamless;
+    }
+
+    /**
+     * Returns the number of times a supervised PircBot tried to reconnect.
+     *
+     * @return Number of attempts
+     */
+    public long getAttemptCount() {
+        return _attempts.get();
+    }
+
+    /**
+     * Returns the number of attempts to reconnect that failed.
+     *
+     * @return Number of failed attempts
+     */
+    public long getFailureCount() {
+        return _failures.get();
+    }
+
+    /**
+     * Returns the number of PircBots that are waiting to reconnect or are
+     * joining their channels again.
+     *
+     * @return Number of PircBots
+     */
+    public int getRecoveringCount() {
+        synchronized (_sessions) {
+            return _sessions.size();
+        }
+    }
+
+    /**
+     * Stops the threads of this ReconnectSupervisor. PircBots that are
+     * waiting to reconnect stay disconnected.
+     */
+    public void shutdown() {
+        _executor.shutdownNow();
+        synchronized (_sessions) {
+            _sessions.clear();
+        }
+    }
+
+    /**
+     * Called by a supervised PircBot when it has lost its connection, before
+     * onDisconnect is called.
+     *
+     * @param bot The PircBot
+     */
+    void disconnected(PircBot bot) {
+        Session session;
+        synchronized (_sessions) {
+            session = _sessions.computeIfAbsent(bot, Session::new);
+        }
+        synchronized (session) {
+            Collections.addAll(session._channels, bot.getChannels());
+            session._generation++;
+            schedule(session);
+        }
+    }
+
+    /**
+     * Called by a supervised PircBot when the server asks it to reconnect.
+     * After a random delay, either a second connection is opened, or the
+     * connection is closed, unless the server closes it first.
+     *
+     * @param bot The PircBot
+     * @param connection The connection the request came from
+     */
+    void reconnectRequested(PircBot bot, IrcConnection connection) {
+        if (_seamless) {
+            long since = System.nanoTime();
+            _executor.schedule(() -> handOver(bot, connection, since), random(_initialDelay), TimeUnit.MILLISECONDS);
+        } else {
+            _executor.schedule(connection::close, random(_initialDelay), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Opens the second connection of a seamless reconnect, and starts joining
+     * the channels on it.
+     */
+    private void handOver(PircBot bot, IrcConnection connection, long since) {
+        Handover handover;
+        _attempts.incrementAndGet();
+        try {
+            handover = bot.openStandby(connection, since);
+        } catch (Exception e) {
+            _failures.incrementAndGet();
+            bot.log("*** Could not open a new connection: " + e.getMessage());
+            connection.close();
+            return;
+        }
+        if (handover != null) {
+            joinNext(handover);
+        }
+    }
+
+    /**
+     * Joins the next batch of channels on the new connection of a Handover,
+     * and schedules the batch after it.
+     */
+    private void joinNext(Handover handover) {
+        if (handover.joinNext(_joins)) {
+            _executor.schedule(() -> joinNext(handover), _joinPeriod, TimeUnit.MILLISECONDS);
+        } else if (!handover.isAborted()) {
+            // Do not wait forever for channels that cannot be joined.
+            _executor.schedule(handover::finish, Math.max(_joinPeriod, 10000), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by a supervised PircBot when the server confirms that it has
+     * joined a channel.
+     *
+     * @param bot The PircBot
+     * @param channel Name of the channel
+     */
+    void joined(PircBot bot, String channel) {
+        Session session;
+        synchronized (_sessions) {
+            session = _sessions.get(bot);
+        }
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session._pending.remove(channel.toLowerCase()) && session._pending.isEmpty() && session._sent == session._channels.size()) {
+                finish(session);
+            }
+        }
+    }
+
+    /**
+     * Forgets about a PircBot that has quit, so that it is not reconnected.
+     *
+     * @param bot The PircBot
+     */
+    void cancel(PircBot bot) {
+        Session session;
+        synchronized (_sessions) {
+            session = _sessions.remove(bot);
+        }
+        if (session != null) {
+            synchronized (session) {
+                session._generation++;
+            }
+        }
+    }
+
+    /**
+     * Schedules the next attempt to reconnect. Must hold the lock of the
+     * session.
+     */
+    private void schedule(Session session) {
+        long ceiling = _initialDelay << Math.min(session._attempt, 30);
+        long delay = random(ceiling <= 0 ? _maxDelay : Math.min(ceiling, _maxDelay));
+        int generation = session._generation;
+        _executor.schedule(() -> attempt(session, generation), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tries to reconnect, and starts joining the channels again if that
+     * worked.
+     */
+    private void attempt(Session session, int generation) {
+        PircBot bot = session._bot;
+        synchronized (session) {
+            if (session._generation != generation) {
+                return;
+            }
+        }
+        if (!bot.isConnected()) {
+            _attempts.incrementAndGet();
+            try {
+                bot.log("*** Reconnecting to " + bot.getServer() + " (attempt " + (session._attempt + 1) + ").");
+                bot.reconnect();
+            } catch (Exception e) {
+                _failures.incrementAndGet();
+                bot.log("*** Could not reconnect: " + e.getMessage());
+                synchronized (session) {
+                    if (session._generation == generation) {
+                        session._attempt++;
+                        schedule(session);
+                    }
+                }
+                return;
+            }
+        }
+        synchronized (session) {
+            if (session._generation != generation) {
+                return;
+            }
+            session._attempt++;
+            session._pending.clear();
+            session._sent = 0;
+            if (session._channels.isEmpty()) {
+                finish(session);
+            } else {
+                rejoin(session, generation);
+            }
+        }
+    }
+
+    /**
+     * Joins the next batch of channels, and schedules the batch after it.
+     */
+    private void rejoin(Session session, int generation) {
+        List<String> batch = new ArrayList<>(_joins);
+        synchronized (session) {
+            if (session._generation != generation) {
+                return;
+            }
+            List<String> channels = new ArrayList<>(session._channels);
+            int end = Math.min(session._sent + _joins, channels.size());
+            for (String channel : channels.subList(session._sent, end)) {
+                batch.add(channel);
+                session._pending.add(channel.toLowerCase());
+            }
+            session._sent = end;
+            if (end < channels.size()) {
+                _executor.schedule(() -> rejoin(session, generation), _joinPeriod, TimeUnit.MILLISECONDS);
+            } else {
+                // Do not wait forever for channels that cannot be joined.
+                _executor.schedule(() -> {
+                    synchronized (session) {
+                        if (session._generation == generation) {
+                            finish(session);
+                        }
+                    }
+                }, Math.max(_joinPeriod, 10000), TimeUnit.MILLISECONDS);
+            }
+        }
+        for (String channel : batch) {
+            String key = session._bot.getChannelKey(channel);
+            if (key == null) {
+                session._bot.joinChannel(channel);
+            } else {
+                session._bot.joinChannel(channel, key);
+            }
+        }
+    }
+
+    /**
+     * Reports how long it took to get back into the channels, and forgets
+     * the session. Must hold the lock of the session.
+     */
+    private void finish(Session session) {
+        PircBot bot = session._bot;
+        synchronized (_sessions) {
+            if (!_sessions.remove(bot, session)) {
+                return;
+            }
+        }
+        session._generation++;
+        long nanos = System.nanoTime() - session._since;
+        int joined = session._channels.size() - session._pending.size();
+        bot.log("*** Rejoined " + joined + " of " + session._channels.size() + " channels in " + nanos / 1000000 + "ms.");
+        bot.getMetrics().rejoined(joined, nanos);
+    }
+
+    /**
+     * Returns a random delay between zero and the ceiling.
+     */
+    private static long random(long ceiling) {
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * What we know about a PircBot that is recovering from a lost
+     * connection.
+     */
+    private static final class Session {
+
+        private final PircBot _bot;
+        private final long _since = System.nanoTime();
+        // The channels to join again, in the order they were joined.
+        private final Set<String> _channels = new LinkedHashSet<>();
+        // Channels that were joined again but not confirmed yet, in lower case.
+        private final Set<String> _pending = new LinkedHashSet<>();
+        private int _sent = 0;
+        private int _attempt = 0;
+        // Changes whenever the tasks scheduled so far should do nothing.
+        private int _generation = 0;
+
+        Session(PircBot bot) {
+            _bot = bot;
+        }
+    }
+
+}
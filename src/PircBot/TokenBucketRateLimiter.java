@@ -0,0 +1,215 @@
+package PircBot;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A RateLimiter that sends as fast as the Twitch chat limits allow, and no
+ * faster.
+ * <p>
+ * Each budget is a bucket of tokens. Sending a line takes a token, and every
+ * token is put back exactly one period after it was taken, so that no window
+ * of that period ever holds more lines than the bucket has tokens. A full
+ * bucket may be spent at once. The budgets are:
+ * <ul>
+ * <li>PRIVMSG and NOTICE to channels where we are neither broadcaster,
+ * operator nor moderator: 20 per 30 seconds.</li>
+ * <li>PRIVMSG and NOTICE to any channel: 100 per 30 seconds. Lines to
+ * channels where we are not a moderator take from both budgets.</li>
+ * <li>JOIN: 20 per 10 seconds.</li>
+ * </ul>
+ * In addition, lines to a channel in slow mode (see {@link Channel#getSlow()})
+ * are spaced out by the slow mode delay, unless we are a moderator there.
+ * Every other command is sent straight away.
+ */
+public class TokenBucketRateLimiter implements RateLimiter {
+
+    public static final int DEFAULT_MESSAGES = 20;
+    public static final int DEFAULT_MODERATED_MESSAGES = 100;
+    public static final long DEFAULT_MESSAGE_PERIOD = 30000;
+    public static final int DEFAULT_JOINS = 20;
+    public static final long DEFAULT_JOIN_PERIOD = 10000;
+
+    private final PircBot _bot;
+    private final Bucket _messages;
+    private final Bucket _moderated;
+    private final Bucket _joins;
+    // Lowercased channel name to the System.nanoTime() we last sent a line to
+    // it.
+    private final ConcurrentHashMap<String, Long> _lastSent = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a TokenBucketRateLimiter with the default Twitch limits.
+     *
+     * @param bot The PircBot whose channels are checked for moderator status
+     * and slow mode
+     */
+    public TokenBucketRateLimiter(PircBot bot) {
+        this(bot, DEFAULT_MESSAGES, DEFAULT_MODERATED_MESSAGES, DEFAULT_MESSAGE_PERIOD, DEFAULT_JOINS, DEFAULT_JOIN_PERIOD);
+    }
+
+    /**
+     * Constructs a TokenBucketRateLimiter with custom limits, e.g. for a
+     * known or verified bot.
+     *
+     * @param bot The PircBot whose channels are checked for moderator status
+     * and slow mode
+     * @param messages Lines per period to channels where we are not a
+     * moderator
+     * @param moderatedMessages Lines per period to all channels
+     * @param messagePeriod Length of the message period in milliseconds
+     * @param joins JOINs per join period
+     * @param joinPeriod Length of the join period in milliseconds
+     */
+    public TokenBucketRateLimiter(PircBot bot, int messages, int moderatedMessages, long messagePeriod, int joins, long joinPeriod) {
+        if (messages < 1 || moderatedMessages < 1 || joins < 1 || messagePeriod < 0 || joinPeriod < 0) {
+            throw new IllegalArgumentException("Rate limits must allow at least one line per period.");
+        }
+        _bot = bot;
+        _messages = new Bucket(messages, messagePeriod);
+        _moderated = new Bucket(moderatedMessages, messagePeriod);
+        _joins = new Bucket(joins, joinPeriod);
+    }
+
+    @Override
+    public void acquire(String line) throws InterruptedException {
+        String target = targetOf(line);
+        boolean moderated = target != null && isModerated(target);
+        long wait = delay(line, target, moderated, System.nanoTime());
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        take(line, target, moderated, System.nanoTime());
+    }
+
+    @Override
+    public boolean tryAcquire(String line) {
+        String target = targetOf(line);
+        boolean moderated = target != null && isModerated(target);
+        long now = System.nanoTime();
+        if (delay(line, target, moderated, now) > 0) {
+            return false;
+        }
+        take(line, target, moderated, now);
+        return true;
+    }
+
+    @Override
+    public long delay(String line) {
+        String target = targetOf(line);
+        return delay(line, target, target != null && isModerated(target), System.nanoTime());
+    }
+
+    /**
+     * Returns the time until a line may be sent, in nanoseconds.
+     */
+    private long delay(String line, String target, boolean moderated, long now) {
+        if (target == null) {
+            return isJoin(line) ? _joins.delay(now) : 0;
+        }
+        long delay = _moderated.delay(now);
+        if (!moderated) {
+            delay = Math.max(delay, _messages.delay(now));
+            delay = Math.max(delay, slowModeDelay(target.toLowerCase(), now));
+        }
+        return delay;
+    }
+
+    private void take(String line, String target, boolean moderated, long now) {
+        if (target == null) {
+            if (isJoin(line)) {
+                _joins.take(now);
+            }
+            return;
+        }
+        _moderated.take(now);
+        if (!moderated) {
+            _messages.take(now);
+        }
+        if (target.startsWith("#")) {
+            _lastSent.put(target.toLowerCase(), now);
+        }
+    }
+
+    private static boolean isJoin(String line) {
+        return line.regionMatches(true, 0, "JOIN ", 0, 5);
+    }
+
+    /**
+     * Returns the target of a PRIVMSG or NOTICE, or null for any other line.
+     */
+    private static String targetOf(String line) {
+        if (line.regionMatches(true, 0, "PRIVMSG ", 0, 8)) {
+            return targetOf(line, 8);
+        } else if (line.regionMatches(true, 0, "NOTICE ", 0, 7)) {
+            return targetOf(line, 7);
+        }
+        return null;
+    }
+
+    private static String targetOf(String line, int start) {
+        int end = line.indexOf(' ', start);
+        return end < 0 ? line.substring(start) : line.substring(start, end);
+    }
+
+    /**
+     * Checks if the higher moderator limits apply to a target, that is, if it
+     * is our own channel or we have been given operator or moderator status
+     * in it.
+     */
+    private boolean isModerated(String target) {
+        if (!target.startsWith("#")) {
+            return false;
+        }
+        String nick = _bot.getNick();
+        if (target.length() == nick.length() + 1 && target.regionMatches(true, 1, nick, 0, nick.length())) {
+            return true;
+        }
+        Channel channel = _bot.getChannel(target);
+        User self = channel == null ? null : channel.getUser(nick);
+        return self != null && (self.isOP() || self.isMod());
+    }
+
+    private long slowModeDelay(String channel, long now) {
+        Channel chan = _bot.getChannel(channel);
+        Long last = _lastSent.get(channel);
+        if (chan == null || last == null || chan.getSlow() <= 0) {
+            return 0;
+        }
+        return Math.max(0, last + TimeUnit.SECONDS.toNanos(chan.getSlow()) - now);
+    }
+
+    /**
+     * A bucket of tokens, each of which is put back one period after it was
+     * taken. The System.nanoTime() values at which the tokens were taken are
+     * kept in a ring, so the oldest one is always the next to come back.
+     */
+    private static final class Bucket {
+
+        private final long[] _taken;
+        private final long _period;
+        private int _oldest = 0;
+
+        Bucket(int tokens, long period) {
+            _taken = new long[tokens];
+            _period = TimeUnit.MILLISECONDS.toNanos(period);
+            long never = System.nanoTime() - _period;
+            for (int i = 0; i < tokens; i++) {
+                _taken[i] = never;
+            }
+        }
+
+        /**
+         * Returns the time until a token is free, in nanoseconds.
+         */
+        long delay(long now) {
+            return Math.max(0, _taken[_oldest] + _period - now);
+        }
+
+        void take(long now) {
+            _taken[_oldest] = now;
+            _oldest = (_oldest + 1) % _taken.length;
+        }
+    }
+
+}
@@ -0,0 +1,130 @@
+package PircBot;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Records every line a PircBot receives from the server to a file, along with
+ * the time it arrived, so that the traffic can later be fed back into a
+ * PircBot with {@link TrafficReplay}.
+ * <p>
+ * A TrafficRecorder is given to a PircBot with
+ * {@link PircBot#setTrafficRecorder(TrafficRecorder)}, and may be shared by
+ * several PircBots, in which case their lines are recorded in the order they
+ * arrived. Recording stops once the recorder is closed.
+ * <p>
+ * The file starts with the eight bytes "PIRCCAP1". Every line that follows
+ * is stored as the number of nanoseconds since the previous line, the number
+ * of bytes of the line and the line itself in UTF-8, without the "\r\n". Both
+ * numbers are written as unsigned variable-length integers, seven bits per
+ * byte with the lowest bits first, so a line of chat costs only a few bytes
+ * more than its text. Lines are only ever appended.
+ */
+public final class TrafficRecorder implements Closeable {
+
+    static final byte[] MAGIC = "PIRCCAP1".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream _out;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private long _last = System.nanoTime();
+    private long _lines = 0;
+    private boolean _closed = false;
+
+    /**
+     * Creates a recording file, replacing any file of the same name.
+     *
+     * @param file The file to record to
+     * @throws IOException if the file could not be created.
+     */
+    public TrafficRecorder(File file) throws IOException {
+        _out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        _out.write(MAGIC);
+    }
+
+    /**
+     * Records a line, stamped with the current time.
+     *
+     * @param line The line, without the "\r\n"
+     */
+    void record(String line) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        _lock.lock();
+        try {
+            if (_closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            writeVarLong(Math.max(0, now - _last));
+            writeVarLong(bytes.length);
+            _out.write(bytes);
+            _last = now;
+            _lines++;
+        } catch (IOException e) {
+            // Stop recording rather than hold up the PircBot.
+            _closed = true;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            _out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        _out.write((int) value);
+    }
+
+    /**
+     * Returns the number of lines recorded so far.
+     *
+     * @return Number of lines
+     */
+    public long getLineCount() {
+        _lock.lock();
+        try {
+            return _lines;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Writes any buffered lines to the file.
+     *
+     * @throws IOException if the lines could not be written.
+     */
+    public void flush() throws IOException {
+        _lock.lock();
+        try {
+            if (!_closed) {
+                _out.flush();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Stops recording and closes the file.
+     *
+     * @throws IOException if the file could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        _lock.lock();
+        try {
+            _closed = true;
+            _out.close();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+}
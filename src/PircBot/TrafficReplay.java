@@ -0,0 +1,169 @@
+package PircBot;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feeds the lines of a file made by a TrafficRecorder into a PircBot, as if
+ * they had just been read from the server. No connection is needed, so a
+ * recording of real traffic can be used to find out how fast a PircBot and
+ * its handlers get through it, or to reproduce a problem exactly.
+ * <p>
+ * Lines are passed to the handleLine method of the PircBot on the calling
+ * thread, one after another. The gaps between the lines can be kept as they
+ * were recorded, shortened by a factor, or left out entirely.
+ * <pre>
+ * TrafficReplay.Result result = TrafficReplay.replay(new File("twitch.cap"), bot, TrafficReplay.AS_FAST_AS_POSSIBLE);
+ * System.out.println(result.getLinesPerSecond() + " lines/s");
+ * </pre>
+ * Note that a PircBot that is not connected drops anything it tries to send,
+ * such as the PONG to a PING, so replies do not go anywhere.
+ */
+public final class TrafficReplay {
+
+    /**
+     * The speed at which lines are replayed without any gaps between them.
+     */
+    public static final double AS_FAST_AS_POSSIBLE = Double.POSITIVE_INFINITY;
+
+    /**
+     * The outcome of a replay.
+     */
+    public static final class Result {
+
+        private final long _lines;
+        private final long _nanos;
+
+        Result(long lines, long nanos) {
+            _lines = lines;
+            _nanos = nanos;
+        }
+
+        /**
+         * Returns the number of lines that were replayed.
+         *
+         * @return Number of lines
+         */
+        public long getLineCount() {
+            return _lines;
+        }
+
+        /**
+         * Returns how long the replay took.
+         *
+         * @param unit Unit of the result
+         * @return Duration of the replay
+         */
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(_nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the number of lines handled per second.
+         *
+         * @return Lines per second
+         */
+        public double getLinesPerSecond() {
+            return _nanos == 0 ? 0 : _lines * 1e9 / _nanos;
+        }
+
+        @Override
+        public String toString() {
+            return _lines + " lines in " + getDuration(TimeUnit.MILLISECONDS) + " ms";
+        }
+    }
+
+    private TrafficReplay() {
+    }
+
+    /**
+     * Replays a recording into a PircBot.
+     *
+     * @param file The recording
+     * @param bot The PircBot to pass the lines to
+     * @param speed 1 to keep the recorded gaps between lines, 2 to halve
+     * them and so on, or AS_FAST_AS_POSSIBLE to leave them out
+     * @return How many lines were replayed, and how long it took
+     * @throws IOException if the file could not be read or is not a
+     * recording.
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * for the next line.
+     */
+    public static Result replay(File file, PircBot bot, double speed) throws IOException, InterruptedException {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("The speed must be more than zero.");
+        }
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 65536)) {
+            byte[] magic = new byte[TrafficRecorder.MAGIC.length];
+            if (in.readNBytes(magic, 0, magic.length) != magic.length || !Arrays.equals(magic, TrafficRecorder.MAGIC)) {
+                throw new IOException(file + " is not a traffic recording.");
+            }
+            byte[] buffer = new byte[512];
+            long lines = 0;
+            long start = System.nanoTime();
+            long due = start;
+            while (true) {
+                long gap = readVarLong(in);
+                if (gap < 0) {
+                    break;
+                }
+                int length = (int) readVarLong(in);
+                if (length < 0) {
+                    throw new EOFException("Truncated recording.");
+                }
+                if (length > buffer.length) {
+                    buffer = new byte[Math.max(length, buffer.length * 2)];
+                }
+                if (in.readNBytes(buffer, 0, length) != length) {
+                    throw new EOFException("Truncated recording.");
+                }
+                if (speed != AS_FAST_AS_POSSIBLE) {
+                    due += (long) (gap / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                String line = new String(buffer, 0, length, StandardCharsets.UTF_8);
+                try {
+                    bot.handleLine(line);
+                } catch (Exception e) {
+                    InputThread.logException(bot, line, e);
+                }
+                lines++;
+            }
+            return new Result(lines, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Reads an unsigned variable-length integer.
+     *
+     * @return The integer, or -1 at the end of the file.
+     */
+    private static long readVarLong(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) {
+                    return -1;
+                }
+                throw new EOFException("Truncated recording.");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed recording.");
+    }
+
+}
@@ -18,6 +18,13 @@ import java.util.Objects;
  * This class is used to represent a user on an IRC server. Instances of this
  * class are returned by the getUsers method in the PircBot class.
  * <p>
+ * A User is the membership of a user in one channel, and only keeps what is
+ * specific to that channel: op, voice and mod status, badges, subscriber
+ * status, room ID and user type. The nick, display name and user wide tag
+ * values live in a {@link UserIdentity} that is shared by the User objects of
+ * every channel the user is in, so the setters for those values affect all of
+ * them.
+ * <p>
  * Note that this class no longer implements the Comparable interface for Java
  * 1.1 compatibility reasons.
  *
@@ -28,50 +35,21 @@ import java.util.Objects;
  */
 public class User implements Comparable {
 
-    private String _nick;
-    private String displayName;
+    private UserIdentity identity;
     private long lastMessage;
     private boolean isAFK;
     private boolean isOP;
     private boolean isVoice;
     private boolean isMod;
+    // Twitch sends these per channel, so they are not part of the identity.
+    private String badges = "";
+    private boolean subscriber;
+    private long roomId;
+    private String userType = "";
     private String _channel;
     private static String[] bots = {"wow_deku_onehand", "lavasbot", "facts_bot", "totally_not_facts_bot", "23forces", "twitchplaysleaderboard", "recordingbot", "twitchnotify", "io_ol7bot", "tppstatbot", "tppstatsbot", "pikalaxbot", "wowitsbot", "wallbot303", "frunky5", "wow_statsbot_onehand", "tppbankbot", "tppmodbot", "tppinfobot", "kmsbot", "trainertimmybot", "wow_battlebot_onehand", "groudonger"};
     private String previousMessage;
-    private String color;
-    private boolean subscriber;
-    private boolean turbo;
-    private long targetUserId;
-    private String emotes;
-    private String msgId;
-    private String systemMsgId;
-    private String badges;
-    private String systemMsg;
-    private String userLogin;
-    private String subUser;
-    private String subPlan;
-    private String subName;
-    private String emoteSets;
-    private String userType;
-    private String messageId;
-    private long id;
-    private long roomId;
-    private long whisperMsgId;
-    private String whisperThreadId;
-    private long consecutiveMonths;
-    private long bits;
-    private long sentTs;
-    private long tmiSentTs;
-    private long sourceViewerCount;
-    private long recipientId;
-    private String sourceDisplayName;
-    private String recipientDisplayName;
-    private String recipientUserName;
-    private String ritualName;
-    private String sourceName;
-    private long mod; //DO NOT USE - Will be removed in next version
-    private boolean noisy;
-    private boolean emoteOnly;
+    private UserTagSnapshot tagSnapshot = UserTagSnapshot.EMPTY;
 
     public static boolean isBot(String username) {
         username = username.toLowerCase();
@@ -90,48 +68,25 @@ public class User implements Comparable {
      * @param channel Channel user is in
      */
     public User(String name, String channel) {
-        this._nick = name;
-        this.displayName = name;
+        this(new UserIdentity(name), channel);
+    }
+
+    /**
+     * Constructs a new user object for a user whose identity we already know,
+     * e.g. because they are in another one of our channels.
+     *
+     * @param identity Shared identity of the user
+     * @param channel Channel user is in
+     */
+    public User(UserIdentity identity, String channel) {
+        this.identity = identity;
         this._channel = channel;
         this.lastMessage = System.currentTimeMillis();
         this.isAFK = false;
         this.isOP = false;
         this.isVoice = false;
-        this.previousMessage = "";
-        this.color = "";
-        this.subscriber = false;
         this.isMod = false;
-        this.noisy = false;
-        this.emoteOnly = false;
-        this.turbo = false;
-        this.targetUserId = 0;
-        this.emotes = "";
-        this.msgId = "";
-        this.systemMsgId = "";
-        this.badges = "";
-        this.systemMsg = "";
-        this.userLogin = "";
-        this.subUser = "";
-        this.subPlan = "";
-        this.subName = "";
-        this.emoteSets = "";
-        this.userType = "";
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
-        this.messageId = "";
-        this.sourceViewerCount = 0;
-        this.recipientId = 0;
-        this.sourceDisplayName = "";
-        this.recipientDisplayName = "";
-        this.recipientUserName = "";
-        this.ritualName = "";
-        this.sourceName = "";
+        this.previousMessage = "";
     }
 
     /**
@@ -152,48 +107,8 @@ public class User implements Comparable {
      * @param lastMessage Last Message received time
      */
     public User(String name, String channel, long lastMessage) {
-        this._nick = name;
-        this.displayName = name;
-        this._channel = channel;
+        this(name, channel);
         this.lastMessage = lastMessage;
-        this.isAFK = false;
-        this.isOP = false;
-        this.isVoice = false;
-        this.previousMessage = "";
-        this.color = "";
-        this.subscriber = false;
-        this.isMod = false;
-        this.noisy = false;
-        this.emoteOnly = false;
-        this.turbo = false;
-        this.targetUserId = 0;
-        this.emotes = "";
-        this.msgId = "";
-        this.systemMsgId = "";
-        this.badges = "";
-        this.systemMsg = "";
-        this.userLogin = "";
-        this.subUser = "";
-        this.subPlan = "";
-        this.subName = "";
-        this.emoteSets = "";
-        this.userType = "";
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
-        this.messageId = "";
-        this.sourceViewerCount = 0;
-        this.sourceDisplayName = "";
-        this.sourceName = "";
-        this.recipientId = 0;
-        this.recipientDisplayName = "";
-        this.recipientUserName = "";
-        this.ritualName = "";
     }
 
     /**
@@ -205,48 +120,8 @@ public class User implements Comparable {
      * @param afk Is user AFK?
      */
     public User(String name, String channel, long lastMessage, boolean afk) {
-        this._nick = name;
-        this.displayName = name;
-        this._channel = channel;
-        this.lastMessage = System.currentTimeMillis();
+        this(name, channel);
         this.isAFK = afk;
-        this.isOP = false;
-        this.isVoice = false;
-        this.previousMessage = "";
-        this.color = "";
-        this.subscriber = false;
-        this.isMod = false;
-        this.noisy = false;
-        this.emoteOnly = false;
-        this.turbo = false;
-        this.targetUserId = 0;
-        this.emotes = "";
-        this.msgId = "";
-        this.systemMsgId = "";
-        this.badges = "";
-        this.systemMsg = "";
-        this.userLogin = "";
-        this.subUser = "";
-        this.subPlan = "";
-        this.subName = "";
-        this.emoteSets = "";
-        this.userType = "";
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
-        this.messageId = "";
-        this.sourceViewerCount = 0;
-        this.sourceDisplayName = "";
-        this.sourceName = "";
-        this.recipientId = 0;
-        this.recipientDisplayName = "";
-        this.recipientUserName = "";
-        this.ritualName = "";
     }
 
     /**
@@ -261,48 +136,11 @@ public class User implements Comparable {
      * @param isMod Is user a moderator?
      */
     public User(String _nick, String _channel, long lastMessage, boolean isAFK, boolean isOP, boolean isVoice, boolean isMod) {
-        this._nick = _nick;
-        this.displayName = _nick;
-        this.lastMessage = lastMessage;
+        this(_nick, _channel, lastMessage);
         this.isAFK = isAFK;
         this.isOP = isOP;
         this.isVoice = isVoice;
-        this._channel = _channel;
-        this.previousMessage = "";
-        this.color = "";
-        this.subscriber = false;
         this.isMod = isMod;
-        this.noisy = false;
-        this.emoteOnly = false;
-        this.turbo = false;
-        this.targetUserId = 0;
-        this.emotes = "";
-        this.msgId = "";
-        this.systemMsgId = "";
-        this.badges = "";
-        this.systemMsg = "";
-        this.userLogin = "";
-        this.subUser = "";
-        this.subPlan = "";
-        this.subName = "";
-        this.emoteSets = "";
-        this.userType = "";
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
-        this.messageId = "";
-        this.sourceViewerCount = 0;
-        this.sourceDisplayName = "";
-        this.sourceName = "";
-        this.recipientId = 0;
-        this.recipientDisplayName = "";
-        this.recipientUserName = "";
-        this.ritualName = "";
     }
 
     /**
@@ -362,100 +200,46 @@ public class User implements Comparable {
      * (initially, a new viewer chatting for the first time).
      */
     public User(String _nick, String _channel, long lastMessage, boolean isAFK, boolean isOP, boolean isVoice, String color, boolean sub, boolean isMod, boolean noisy, boolean emoteOnly, boolean isTurbo, String userType, String emotes, String badges, String systemMsg, String userLogin, String subUser, String subPlan, String subName, String messageId, String emoteSets, String msgId, String systemMsgId, long roomId, long whisperMsgId, String whisperThreadId, long bits, long consecutiveMonths, long sentTs, long tmiSentTs, long getTargetUserId, String sourceDisplayName, String sourceName, long sourceViewerCount, String recipientDisplayName, String recipientUserName, long recipientId, String ritualName) {
-        this._nick = _nick;
-        this.displayName = _nick;
-        this.lastMessage = lastMessage;
-        this.isAFK = isAFK;
-        this.isOP = isOP;
-        this.isVoice = isVoice;
-        this._channel = _channel;
-        this.previousMessage = "";
-        this.color = color;
+        this(_nick, _channel, lastMessage, isAFK, isOP, isVoice, isMod);
+        identity.color = color;
         this.subscriber = sub;
-        this.isMod = isMod;
-        //this.mod = getMod;
-        this.noisy = noisy;
-        this.emoteOnly = emoteOnly;
-        this.turbo = isTurbo;
-        this.targetUserId = getTargetUserId;
-        this.emotes = emotes;
-        this.msgId = msgId;
-        this.systemMsgId = systemMsgId;
+        identity.noisy = noisy;
+        identity.emoteOnly = emoteOnly;
+        identity.turbo = isTurbo;
+        identity.targetUserId = getTargetUserId;
+        identity.emotes = emotes;
+        identity.msgId = msgId;
+        identity.systemMsgId = systemMsgId;
         this.userType = userType;
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
         this.badges = badges;
-        this.systemMsg = systemMsg;
-        this.userLogin = userLogin;
-        this.subUser = subUser;
-        this.subPlan = subPlan;
-        this.subName = subName;
-        this.emoteSets = emoteSets;
-        this.messageId = messageId;
-        this.sourceViewerCount = sourceViewerCount;
-        this.sourceDisplayName = sourceDisplayName;
-        this.sourceName = sourceName;
-        this.recipientId = recipientId;
-        this.recipientDisplayName = recipientDisplayName;
-        this.recipientUserName = recipientUserName;
-        this.ritualName = ritualName;
-    }
-
-    /**
-     * Constructs a new user object from an existing user object.
+        identity.systemMsg = systemMsg;
+        identity.userLogin = userLogin;
+        identity.subUser = subUser;
+        identity.subPlan = subPlan;
+        identity.subName = subName;
+        identity.emoteSets = emoteSets;
+        identity.messageId = messageId;
+        identity.sourceViewerCount = sourceViewerCount;
+        identity.sourceDisplayName = sourceDisplayName;
+        identity.sourceName = sourceName;
+        identity.recipientId = recipientId;
+        identity.recipientDisplayName = recipientDisplayName;
+        identity.recipientUserName = recipientUserName;
+        identity.ritualName = ritualName;
+    }
+
+    /**
+     * Constructs a new user object from an existing user object. Both share
+     * the same identity, so a change of nick or tags shows up in both.
      *
      * @param user User object to use
      * @param channel Channel user is in
      */
     public User(User user, String channel) {
-        _nick = user.getNick();
-        this.displayName = user.getNick();
-        _channel = channel;
-        this.lastMessage = System.currentTimeMillis();
+        this(user.identity, channel);
         this.isAFK = user.isAFK;
         this.isOP = user.isOP;
         this.isVoice = user.isVoice;
-        this.previousMessage = "";
-        this.color = "";
-        this.subscriber = false;
-        this.isMod = false;
-        this.noisy = false;
-        this.emoteOnly = false;
-        this.turbo = false;
-        this.targetUserId = 0;
-        this.emotes = "";
-        this.msgId = "";
-        this.systemMsgId = "";
-        this.userType = "";
-        this.id = 0;
-        this.roomId = 0;
-        this.whisperMsgId = 0;
-        this.whisperThreadId = "";
-        this.consecutiveMonths = 0;
-        this.bits = 0;
-        this.sentTs = 0;
-        this.tmiSentTs = 0;
-        this.badges = "";
-        this.systemMsg = "";
-        this.userLogin = "";
-        this.subUser = "";
-        this.subPlan = "";
-        this.subName = "";
-        this.emoteSets = "";
-        this.messageId = "";
-        this.sourceViewerCount = 0;
-        this.sourceDisplayName = "";
-        this.sourceName = "";
-        this.recipientId = 0;
-        this.recipientDisplayName = "";
-        this.recipientUserName = "";
-        this.ritualName = "";
     }
 
     /**
@@ -464,7 +248,7 @@ public class User implements Comparable {
      * @param name New name of the user
      */
     public void changeName(String name) {
-        _nick = name;
+        identity.nick = name;
     }
 
     /**
@@ -473,7 +257,7 @@ public class User implements Comparable {
      * @param name New Display Name for the user
      */
     public void setDisplayName(String name) {
-        displayName = name;
+        identity.displayName = name;
     }
 
     /**
@@ -482,7 +266,7 @@ public class User implements Comparable {
      * @return String containing the display name for the user.
      */
     public String getDisplayName() {
-        return displayName;
+        return identity.displayName;
     }
 
     /**
@@ -527,7 +311,7 @@ public class User implements Comparable {
      * @return The user's nick.
      */
     public String getNick() {
-        return _nick;
+        return identity.nick;
     }
 
     /**
@@ -616,7 +400,7 @@ public class User implements Comparable {
      * @return user-id
      */
     public long getId() {
-        return this.id;
+        return identity.id;
     }
 
     /**
@@ -625,7 +409,7 @@ public class User implements Comparable {
      * @param id User-id
      */
     public void setId(long id) {
-        this.id = id;
+        identity.id = id;
     }
 
     /**
@@ -634,7 +418,7 @@ public class User implements Comparable {
      * @return roomId
      */
     public long getRoomId() {
-        return this.roomId;
+        return roomId;
     }
 
     /**
@@ -653,7 +437,7 @@ public class User implements Comparable {
      * @return whisperMsgId
      */
     public long getWhisperMsgId() {
-        return this.whisperMsgId;
+        return identity.whisperMsgId;
     }
 
     /**
@@ -662,7 +446,7 @@ public class User implements Comparable {
      * @param whisperMsgId message-id
      */
     public void setWhisperMsgId(long whisperMsgId) {
-        this.whisperMsgId = whisperMsgId;
+        identity.whisperMsgId = whisperMsgId;
     }
 
     /**
@@ -672,7 +456,7 @@ public class User implements Comparable {
      * @return whisperThreadId
      */
     public String getWhisperThreadId() {
-        return this.whisperThreadId;
+        return identity.whisperThreadId;
     }
 
     /**
@@ -681,7 +465,7 @@ public class User implements Comparable {
      * @param whisperThreadId thread-id
      */
     public void setWhisperThreadId(String whisperThreadId) {
-        this.whisperThreadId = whisperThreadId;
+        identity.whisperThreadId = whisperThreadId;
     }
 
     /**
@@ -691,7 +475,7 @@ public class User implements Comparable {
      * @return consecutiveMonths
      */
     public long getConsecutiveMonths() {
-        return this.consecutiveMonths;
+        return identity.consecutiveMonths;
     }
 
     /**
@@ -700,7 +484,7 @@ public class User implements Comparable {
      * @param consecutiveMonths msg-param-months
      */
     public void setConsecutiveMonths(long consecutiveMonths) {
-        this.consecutiveMonths = consecutiveMonths;
+        identity.consecutiveMonths = consecutiveMonths;
     }
 
     /**
@@ -709,7 +493,7 @@ public class User implements Comparable {
      * @return bits
      */
     public long getBits() {
-        return this.bits;
+        return identity.bits;
     }
 
     /**
@@ -718,7 +502,7 @@ public class User implements Comparable {
      * @param bits bits
      */
     public void setBits(long bits) {
-        this.bits = bits;
+        identity.bits = bits;
     }
 
     /**
@@ -727,7 +511,7 @@ public class User implements Comparable {
      * @return sentTs
      */
     public long getSentTs() {
-        return this.sentTs;
+        return identity.sentTs;
     }
 
     /**
@@ -736,7 +520,7 @@ public class User implements Comparable {
      * @param sentTs sent-ts
      */
     public void setSentTs(long sentTs) {
-        this.sentTs = sentTs;
+        identity.sentTs = sentTs;
     }
 
     /**
@@ -745,7 +529,7 @@ public class User implements Comparable {
      * @return sourceViewerCount
      */
     public long getSourceViewerCount() {
-        return this.sourceViewerCount;
+        return identity.sourceViewerCount;
     }
 
     /**
@@ -754,7 +538,7 @@ public class User implements Comparable {
      * @param sourceViewerCount msg-param-viewerCount
      */
     public void setSourceViewerCount(long sourceViewerCount) {
-        this.sourceViewerCount = sourceViewerCount;
+        identity.sourceViewerCount = sourceViewerCount;
     }
 
     /**
@@ -763,7 +547,7 @@ public class User implements Comparable {
      * @return recipientId
      */
     public long getRecipientId() {
-        return this.recipientId;
+        return identity.recipientId;
     }
 
     /**
@@ -772,7 +556,7 @@ public class User implements Comparable {
      * @param recipientId msg-param-recipient-id
      */
     public void setRecipientId(long recipientId) {
-        this.recipientId = recipientId;
+        identity.recipientId = recipientId;
     }
 
     /**
@@ -781,7 +565,7 @@ public class User implements Comparable {
      * @return tmiSentTs
      */
     public long getTmiSentTs() {
-        return this.tmiSentTs;
+        return identity.tmiSentTs;
     }
 
     /**
@@ -790,39 +574,39 @@ public class User implements Comparable {
      * @param tmiSentTs tmi-sent-ts
      */
     public void setTmiSentTs(long tmiSentTs) {
-        this.tmiSentTs = tmiSentTs;
+        identity.tmiSentTs = tmiSentTs;
     }
 
     public String getColor() {
-        return color;
+        return identity.color;
     }
 
     public void setColor(String color) {
-        this.color = color;
+        identity.color = color;
     }
 
     public String getEmotes() {
-        return emotes;
+        return identity.emotes;
     }
 
     public void setEmotes(String emotes) {
-        this.emotes = emotes;
+        identity.emotes = emotes;
     }
 
     public String getMsgId() {
-        return msgId;
+        return identity.msgId;
     }
 
     public void setMsgId(String msgId) {
-        this.msgId = msgId;
+        identity.msgId = msgId;
     }
 
     public String getSystemMsgId() {
-        return systemMsgId;
+        return identity.systemMsgId;
     }
 
     public void setSystemMsgId(String systemMsgId) {
-        this.systemMsgId = systemMsgId;
+        identity.systemMsgId = systemMsgId;
     }
 
     public String getBadges() {
@@ -834,99 +618,99 @@ public class User implements Comparable {
     }
 
     public String getSystemMsg() {
-        return systemMsg;
+        return identity.systemMsg;
     }
 
     public void setSystemMsg(String systemMsg) {
-        this.systemMsg = systemMsg;
+        identity.systemMsg = systemMsg;
     }
 
     public String getUserLogin() {
-        return userLogin;
+        return identity.userLogin;
     }
 
     public void setUserLogin(String userLogin) {
-        this.userLogin = userLogin;
+        identity.userLogin = userLogin;
     }
 
     public String getSubUser() {
-        return subUser;
+        return identity.subUser;
     }
 
     public void setSubUser(String subUser) {
-        this.subUser = subUser;
+        identity.subUser = subUser;
     }
 
     public String getSubPlan() {
-        return subPlan;
+        return identity.subPlan;
     }
 
     public void setSubPlan(String subPlan) {
-        this.subPlan = subPlan;
+        identity.subPlan = subPlan;
     }
 
     public String getSubName() {
-        return subName;
+        return identity.subName;
     }
 
     public void setSubName(String subName) {
-        this.subName = subName;
+        identity.subName = subName;
     }
 
     public String getEmoteSets() {
-        return emoteSets;
+        return identity.emoteSets;
     }
 
     public void setEmoteSets(String emoteSets) {
-        this.emoteSets = emoteSets;
+        identity.emoteSets = emoteSets;
     }
 
     public String getMessageId() {
-        return messageId;
+        return identity.messageId;
     }
 
     public void setMessageId(String messageId) {
-        this.messageId = messageId;
+        identity.messageId = messageId;
     }
 
     public String getSourceDisplayName() {
-        return sourceDisplayName;
+        return identity.sourceDisplayName;
     }
 
     public void setSourceDisplayName(String sourceDisplayName) {
-        this.sourceDisplayName = sourceDisplayName;
+        identity.sourceDisplayName = sourceDisplayName;
     }
 
     public String getSourceName() {
-        return sourceName;
+        return identity.sourceName;
     }
 
     public void setSourceName(String sourceName) {
-        this.sourceName = sourceName;
+        identity.sourceName = sourceName;
     }
 
     public String getRecipientDisplayName() {
-        return recipientDisplayName;
+        return identity.recipientDisplayName;
     }
 
     public void setRecipientDisplayName(String recipientDisplayName) {
-        this.recipientDisplayName = recipientDisplayName;
+        identity.recipientDisplayName = recipientDisplayName;
     }
 
     public String getRecipientUserName() {
-        return recipientUserName;
+        return identity.recipientUserName;
     }
 
     public void setRecipientUserName(String recipientUserName) {
-        this.recipientUserName = recipientUserName;
+        identity.recipientUserName = recipientUserName;
     }
 
     public String getRitualName() {
-        return ritualName;
+        return identity.ritualName;
     }
 
     public void setRitualName(String ritualName) {
-        this.ritualName = ritualName;
+        identity.ritualName = ritualName;
     }
 
     public boolean isSubscriber() {
@@ -951,7 +735,7 @@ public class User implements Comparable {
      * @return True if a message is spam, false if not
      */
     public boolean getNoisy() {
-        return noisy;
+        return identity.noisy;
     }
 
     /**
@@ -960,7 +744,7 @@ public class User implements Comparable {
      * @param noisy Noisy status
      */
     public void setNoisy(boolean noisy) {
-        this.noisy = noisy;
+        identity.noisy = noisy;
     }
 
     /**
@@ -969,7 +753,7 @@ public class User implements Comparable {
      * @return True if a message contains only emotes, false if not
      */
     public boolean getEmoteOnly() {
-        return emoteOnly;
+        return identity.emoteOnly;
     }
 
     /**
@@ -978,23 +762,23 @@ public class User implements Comparable {
      * @param emoteOnly emoteOnly status
      */
     public void setEmoteOnly(boolean emoteOnly) {
-        this.emoteOnly = emoteOnly;
+        identity.emoteOnly = emoteOnly;
     }
 
     public boolean isTurbo() {
-        return turbo;
+        return identity.turbo;
     }
 
     public void setTurbo(boolean turbo) {
-        this.turbo = turbo;
+        identity.turbo = turbo;
     }
 
     public long getTargetUserId() {
-        return targetUserId;
+        return identity.targetUserId;
     }
 
     public void setTargetUserId(long targetUserId) {
-        this.targetUserId = targetUserId;
+        identity.targetUserId = targetUserId;
     }
 
     public String getUserType() {
@@ -1005,12 +789,62 @@ public class User implements Comparable {
         this.userType = userType;
     }
 
+    /**
+     * Returns the tags of the last line this user sent to this channel. Unlike
+     * the User itself, the snapshot never changes, so it can be kept or handed
+     * to another thread.
+     *
+     * @return Tag snapshot, which is empty if we have not seen any tags
+     */
+    public UserTagSnapshot getTagSnapshot() {
+        return tagSnapshot;
+    }
+
+    /**
+     * Attaches the tags of the latest line from this user to this channel, and
+     * updates the mod status, badges, subscriber status, room ID and user type
+     * of this channel as well as the color and other user wide values of the
+     * shared identity from it.
+     *
+     * @param tags Tag snapshot of the latest line from this user
+     */
+    public void setTagSnapshot(UserTagSnapshot tags) {
+        this.tagSnapshot = tags;
+        this.isMod = tags.isMod();
+        this.badges = tags.getBadges();
+        this.subscriber = tags.isSubscriber();
+        this.roomId = tags.getRoomId();
+        this.userType = tags.getUserType();
+        identity.update(tags);
+    }
+
+    /**
+     * Returns the identity of this user, which is shared with the User objects
+     * of every other channel this user is in.
+     *
+     * @return Shared identity of the user
+     */
+    public UserIdentity getIdentity() {
+        return identity;
+    }
+
+    /**
+     * Makes this user share an identity that is already known, dropping its
+     * own. Only called by the ChannelRegistry before the user is added to a
+     * channel.
+     *
+     * @param identity Shared identity of the user
+     */
+    void setIdentity(UserIdentity identity) {
+        this.identity = identity;
+    }
+
     @Override
     public String toString() {
         String afk = isAFK ? "(AFK)" : "";
         String op = isOP ? "@" : "";
         String voice = isVoice ? "+" : "";
-        return op + "" + voice + "" + _nick + " " + afk + " (" + _channel + ")";
+        return op + "" + voice + "" + identity.nick + " " + afk + " (" + _channel + ")";
     }
 
     @Override
@@ -1022,7 +856,7 @@ public class User implements Comparable {
             return false;
         }
         final User other = (User) obj;
-        if (!Objects.equals(this._nick, other._nick)) {
+        if (!Objects.equals(this.identity.nick, other.identity.nick)) {
             return false;
         }
         if (this.lastMessage != other.lastMessage) {
@@ -1041,7 +875,7 @@ public class User implements Comparable {
      */
     @Override
     public int hashCode() {
-        return _nick.toLowerCase().hashCode();
+        return identity.nick.toLowerCase().hashCode();
     }
 
     /**
@@ -1054,7 +888,7 @@ public class User implements Comparable {
     public int compareTo(Object o) {
         if (o instanceof User) {
             User other = (User) o;
-            return other._nick.toLowerCase().compareTo(_nick.toLowerCase());
+            return other.identity.nick.toLowerCase().compareTo(identity.nick.toLowerCase());
         }
         return -1;
     }
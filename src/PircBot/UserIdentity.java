@@ -0,0 +1,135 @@
+package PircBot;
+
+/**
+ * Everything we know about a user that does not depend on the channel we see
+ * them in: the nick, display name, Twitch user ID and the values taken from
+ * their IRCv3 tags.
+ * <p>
+ * A user who is in several of our channels has a single UserIdentity, shared
+ * by the User object of each channel, so a change of nick or color only has
+ * to be made once and the tag Strings are only kept once. The User objects
+ * themselves keep what really is per channel, such as op, voice and mod
+ * status, badges, subscriber status, room ID, user type and the time of the
+ * last message.
+ * <p>
+ * Per-line values such as the emotes or bits always come from the most recent
+ * line of the user, whatever channel it was sent to. Use
+ * {@link User#getTagSnapshot()} for the tags of the last line sent to one
+ * particular channel.
+ */
+public final class UserIdentity {
+
+    String nick;
+    String displayName;
+    String color = "";
+    boolean turbo;
+    boolean noisy;
+    boolean emoteOnly;
+    long targetUserId;
+    String emotes = "";
+    String msgId = "";
+    String systemMsgId = "";
+    String systemMsg = "";
+    String userLogin = "";
+    String subUser = "";
+    String subPlan = "";
+    String subName = "";
+    String emoteSets = "";
+    String messageId = "";
+    long id;
+    long whisperMsgId;
+    String whisperThreadId = "";
+    long consecutiveMonths;
+    long bits;
+    long sentTs;
+    long tmiSentTs;
+    long sourceViewerCount;
+    long recipientId;
+    String sourceDisplayName = "";
+    String recipientDisplayName = "";
+    String recipientUserName = "";
+    String ritualName = "";
+    String sourceName = "";
+
+    /**
+     * Constructs a new identity with no tag values.
+     *
+     * @param nick Nick of the user, also used as the display name until the
+     * server tells us otherwise
+     */
+    UserIdentity(String nick) {
+        this.nick = nick;
+        this.displayName = nick;
+    }
+
+    /**
+     * Copies the user wide values of a tag snapshot. The mod status, badges,
+     * subscriber status, room ID and user type are left alone, as they are
+     * specific to a channel.
+     *
+     * @param tags Tag snapshot of the latest line from this user
+     */
+    void update(UserTagSnapshot tags) {
+        if (!tags.getDisplayName().isEmpty()) {
+            displayName = tags.getDisplayName();
+        }
+        color = tags.getColor();
+        emoteSets = tags.getEmoteSets();
+        emotes = tags.getEmotes();
+        messageId = tags.getMessageId();
+        whisperThreadId = tags.getWhisperThreadId();
+        turbo = tags.isTurbo();
+        noisy = tags.isNoisy();
+        emoteOnly = tags.isEmoteOnly();
+        id = tags.getId();
+        whisperMsgId = tags.getWhisperMsgId();
+        bits = tags.getBits();
+        sentTs = tags.getSentTs();
+        tmiSentTs = tags.getTmiSentTs();
+    }
+
+    /**
+     * Returns the nick of the user.
+     *
+     * @return The user's nick.
+     */
+    public String getNick() {
+        return nick;
+    }
+
+    /**
+     * Returns the current Display name for the user.
+     *
+     * @return String containing the display name for the user.
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Get the twitch user-id tag for this user (if tags are enabled)
+     *
+     * @return user-id
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getColor() {
+        return color;
+    }
+
+    public String getEmoteSets() {
+        return emoteSets;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    @Override
+    public String toString() {
+        return nick;
+    }
+
+}
@@ -0,0 +1,251 @@
+package PircBot;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable copy of the Twitch IRCv3 tags that describe a user, taken
+ * from a single line such as a PRIVMSG, WHISPER or USERSTATE.
+ * <p>
+ * A snapshot is attached to the User of the channel the line was sent to, so
+ * handling a line costs the same no matter how many channels we are in. As
+ * it never changes, a snapshot may safely be kept or handed to other threads.
+ * <p>
+ * Tag values that repeat across many users and lines (color, badges,
+ * user-type and emote-sets) are deduplicated, so that users sharing the same
+ * value also share the same String.
+ */
+public final class UserTagSnapshot {
+
+    /**
+     * A snapshot with no tags, used for users that we have not seen any tags
+     * for yet.
+     */
+    public static final UserTagSnapshot EMPTY = new UserTagSnapshot();
+
+    private static final int MAX_POOL_SIZE = 16384;
+    private static final ConcurrentHashMap<String, String> _pool = new ConcurrentHashMap<>();
+
+    private final String displayName;
+    private final String color;
+    private final String badges;
+    private final String userType;
+    private final String emoteSets;
+    private final String emotes;
+    private final String messageId;
+    private final String whisperThreadId;
+    private final boolean subscriber;
+    private final boolean turbo;
+    private final boolean mod;
+    private final boolean noisy;
+    private final boolean emoteOnly;
+    private final long id;
+    private final long roomId;
+    private final long whisperMsgId;
+    private final long bits;
+    private final long sentTs;
+    private final long tmiSentTs;
+
+    private UserTagSnapshot() {
+        displayName = "";
+        color = "";
+        badges = "";
+        userType = "";
+        emoteSets = "";
+        emotes = "";
+        messageId = "";
+        whisperThreadId = "";
+        subscriber = false;
+        turbo = false;
+        mod = false;
+        noisy = false;
+        emoteOnly = false;
+        id = 0;
+        roomId = 0;
+        whisperMsgId = 0;
+        bits = 0;
+        sentTs = 0;
+        tmiSentTs = 0;
+    }
+
+    private UserTagSnapshot(MessageTags tags) {
+        displayName = tags.get("display-name", "");
+        color = dedupe(tags.get("color", ""));
+        badges = dedupe(tags.get("badges", ""));
+        userType = dedupe(tags.get("user-type", ""));
+        emoteSets = dedupe(tags.get("emote-sets", ""));
+        emotes = tags.get("emotes", "");
+        messageId = tags.get("id", "");
+        whisperThreadId = tags.get("thread-id", "");
+        subscriber = tags.getFlag("subscriber");
+        turbo = tags.getFlag("turbo");
+        mod = tags.getFlag("mod");
+        noisy = tags.getFlag("noisy");
+        emoteOnly = tags.getFlag("emote-only");
+        id = tags.getLong("user-id", 0);
+        roomId = tags.getLong("room-id", 0);
+        whisperMsgId = tags.getLong("message-id", 0);
+        bits = tags.getLong("bits", 0);
+        sentTs = tags.getLong("sent-ts", 0);
+        tmiSentTs = tags.getLong("tmi-sent-ts", 0);
+    }
+
+    /**
+     * Takes a snapshot of the user related tags of a line.
+     *
+     * @param tags Tags of the line
+     * @return Snapshot of the tags, or EMPTY if there are no tags.
+     */
+    public static UserTagSnapshot fromTags(MessageTags tags) {
+        if (tags.isEmpty()) {
+            return EMPTY;
+        }
+        return new UserTagSnapshot(tags);
+    }
+
+    /**
+     * Returns a shared copy of a commonly repeated tag value. The pool is
+     * simply emptied if it ever grows too large, which only costs us some
+     * duplicates until it fills up again.
+     */
+    private static String dedupe(String value) {
+        if (value.isEmpty()) {
+            return "";
+        }
+        String pooled = _pool.get(value);
+        if (pooled != null) {
+            return pooled;
+        }
+        if (_pool.size() >= MAX_POOL_SIZE) {
+            _pool.clear();
+        }
+        pooled = _pool.putIfAbsent(value, value);
+        return pooled == null ? value : pooled;
+    }
+
+    /**
+     * Returns the display name, with proper capitalization.
+     *
+     * @return Display name, or an empty String if not sent
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Returns the chat color, e.g. "#FF0000".
+     *
+     * @return Color, or an empty String if the user has not set one
+     */
+    public String getColor() {
+        return color;
+    }
+
+    /**
+     * Returns the badges string, e.g. "moderator/1,subscriber/12".
+     *
+     * @return Badges string
+     */
+    public String getBadges() {
+        return badges;
+    }
+
+    /**
+     * Returns the user type, e.g. "mod", "global_mod", "admin" or "staff".
+     *
+     * @return User type, or an empty String for normal users
+     */
+    public String getUserType() {
+        return userType;
+    }
+
+    /**
+     * Returns the emote sets string.
+     *
+     * @return Emote sets string
+     */
+    public String getEmoteSets() {
+        return emoteSets;
+    }
+
+    /**
+     * Returns the emotes string of the line.
+     *
+     * @return Emotes string
+     */
+    public String getEmotes() {
+        return emotes;
+    }
+
+    /**
+     * Returns the unique identifier of the line.
+     *
+     * @return Message ID
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    /**
+     * Returns the thread ID of a whisper.
+     *
+     * @return Whisper thread ID
+     */
+    public String getWhisperThreadId() {
+        return whisperThreadId;
+    }
+
+    public boolean isSubscriber() {
+        return subscriber;
+    }
+
+    public boolean isTurbo() {
+        return turbo;
+    }
+
+    public boolean isMod() {
+        return mod;
+    }
+
+    public boolean isNoisy() {
+        return noisy;
+    }
+
+    public boolean isEmoteOnly() {
+        return emoteOnly;
+    }
+
+    /**
+     * Returns the Twitch user ID.
+     *
+     * @return User ID, or 0 if not sent
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Returns the ID of the channel the line was sent to.
+     *
+     * @return Room ID, or 0 if not sent
+     */
+    public long getRoomId() {
+        return roomId;
+    }
+
+    public long getWhisperMsgId() {
+        return whisperMsgId;
+    }
+
+    public long getBits() {
+        return bits;
+    }
+
+    public long getSentTs() {
+        return sentTs;
+    }
+
+    public long getTmiSentTs() {
+        return tmiSentTs;
+    }
+
+}
@@ -0,0 +1,127 @@
+package PircBot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Changes the users of a ChannelRegistry from many threads at once, and
+ * checks that the channels and the nick index still agree afterwards.
+ */
+class ChannelRegistryTest {
+
+    private static final int CHANNELS = 8;
+    private static final int THREADS = 8;
+    private static final int NICKS = 20;
+    private static final int OPERATIONS = 20000;
+
+    @Test
+    void concurrentChangesKeepTheIndexConsistent() throws Exception {
+        ChannelRegistry registry = new ChannelRegistry();
+        for (int i = 0; i < CHANNELS; i++) {
+            registry.put(new Channel("#c" + i, "test"));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> results = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                Random random = new Random(t);
+                // All threads share the nicks and the channels, so a JOIN of
+                // one thread races with a NICK or QUIT of the same nick in
+                // another.
+                results.add(pool.submit(() -> {
+                    start.await();
+                    change(registry, random);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> result : results) {
+                result.get(60, TimeUnit.SECONDS);
+            }
+            check(registry);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Joins, parts, quits and renames nicks at random.
+     */
+    private static void change(ChannelRegistry registry, Random random) {
+        for (int i = 0; i < OPERATIONS; i++) {
+            String nick = "u" + random.nextInt(NICKS);
+            String channel = "#c" + random.nextInt(CHANNELS);
+            int operation = random.nextInt(10);
+            if (operation < 5) {
+                registry.addUser(channel, new User(nick, registry.get(channel)));
+            } else if (operation < 8) {
+                registry.removeUser(channel, nick);
+            } else if (operation < 9) {
+                registry.removeUser(nick);
+            } else {
+                registry.renameUser(nick, "u" + random.nextInt(NICKS));
+            }
+        }
+    }
+
+    /**
+     * Checks that every user of a channel is indexed under their nick with
+     * the identity they share, and that the nick index lists exactly the
+     * channels each nick is in.
+     */
+    private static void check(ChannelRegistry registry) {
+        Map<String, Set<String>> actual = new HashMap<>();
+        for (Channel channel : registry.getChannels()) {
+            for (User user : channel.getUserlist()) {
+                assertSame(user, channel.getUser(user.getNick()), user.getNick() + " is filed under another nick");
+                actual.computeIfAbsent(user.getNick().toLowerCase(), key -> new HashSet<>()).add(channel.getChannelName());
+                UserIdentity identity = registry.getIdentity(user.getNick());
+                assertNotNull(identity, user.getNick() + " is in " + channel.getChannelName() + " but not indexed");
+                assertSame(identity, user.getIdentity(), user.getNick() + " does not share its identity");
+            }
+        }
+        for (int i = 0; i < NICKS; i++) {
+            String nick = "u" + i;
+            Set<String> indexed = new HashSet<>();
+            for (Channel channel : registry.getChannelsOf(nick)) {
+                indexed.add(channel.getChannelName());
+            }
+            assertEquals(actual.getOrDefault(nick, new HashSet<>()), indexed, "Channels indexed for " + nick);
+        }
+    }
+
+    @Test
+    void applicationLockOnChannelDoesNotBlockChanges() throws Exception {
+        ChannelRegistry registry = new ChannelRegistry();
+        Channel channel = new Channel("#c", "test");
+        registry.put(channel);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            synchronized (channel) {
+                Future<Boolean> added = pool.submit(() -> registry.addUser("#c", new User("nick", channel)));
+                assertTrue(added.get(5, TimeUnit.SECONDS));
+            }
+            assertNotNull(registry.getUser("#c", "nick"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
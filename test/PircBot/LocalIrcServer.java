@@ -0,0 +1,494 @@
+package PircBot;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A small IRC server that speaks the part of the Twitch flavour of IRC that
+ * PircBot uses, for testing bots without a network.
+ * <p>
+ * It listens on a free port of the loopback address, logs clients in with
+ * 001 to 004 (or 433 for a nick set with setNickInUse), answers PING and CAP,
+ * and handles JOIN with a NAMES list, ROOMSTATE and USERSTATE, as well as
+ * PART and PRIVMSG, which it passes on to the other clients in the channel.
+ * Lines such as PING, RECONNECT, CLEARCHAT and ROOMSTATE can be sent to every
+ * client at any time.
+ * <p>
+ * Messages from clients are held to a flood limit, 20 per 30 seconds by
+ * default. A message over the limit is dropped and answered with a
+ * msg_ratelimit NOTICE, as Twitch does.
+ * <p>
+ * It can also generate chat load: a number of messages per second, spread
+ * over a number of channels and users. Every generated message carries a
+ * pirc-sent-ns tag holding the System.nanoTime() at which it was written, so
+ * a bot in the same JVM can measure the latency of every line.
+ * <pre>
+ * try (LocalIrcServer server = new LocalIrcServer()) {
+ *     bot.connect("127.0.0.1", server.getPort());
+ *     bot.joinChannel("#load0");
+ *     server.startLoad(10, 1000, 5000);
+ *     ...
+ * }
+ * </pre>
+ */
+public final class LocalIrcServer implements Closeable {
+
+    private static final String HOST = "tmi.twitch.tv";
+
+    private final ServerSocket _serverSocket;
+    private final Set<Client> _clients = ConcurrentHashMap.newKeySet();
+    private final Set<String> _nicksInUse = ConcurrentHashMap.newKeySet();
+    private final AtomicLong _received = new AtomicLong();
+    private final AtomicLong _sent = new AtomicLong();
+    private final AtomicLong _floodViolations = new AtomicLong();
+    private volatile int _floodMessages = 20;
+    private volatile long _floodPeriod = 30000;
+    private volatile Thread _loadThread = null;
+    private volatile boolean _closed = false;
+    private volatile boolean _silent = false;
+
+    /**
+     * Starts a server on a free port of the loopback address.
+     *
+     * @throws IOException if no port could be opened.
+     */
+    public LocalIrcServer() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts a server on the given port of the loopback address.
+     *
+     * @param port The port, or 0 for any free port
+     * @throws IOException if the port could not be opened.
+     */
+    public LocalIrcServer(int port) throws IOException {
+        _serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(this::accept, "Pirc-LocalServer-" + getPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the port that the server listens on.
+     *
+     * @return The port
+     */
+    public int getPort() {
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Makes the server refuse a nick with 433 when a client logs in with it.
+     *
+     * @param nick The nick
+     */
+    public void setNickInUse(String nick) {
+        _nicksInUse.add(nick.toLowerCase());
+    }
+
+    /**
+     * Sets how many messages a client may send in a period of time. Twitch
+     * allows 20 per 30 seconds, or 100 for moderators.
+     *
+     * @param messages Number of messages
+     * @param periodMillis Length of the period in milliseconds
+     */
+    public void setFloodLimit(int messages, long periodMillis) {
+        _floodMessages = messages;
+        _floodPeriod = periodMillis;
+    }
+
+    /**
+     * Makes the server stop answering and sending anything, without closing
+     * any connection, as if the network between it and its clients had gone
+     * away. Lines sent by clients meanwhile are thrown away.
+     *
+     * @param silent True to go silent, false to carry on as normal
+     */
+    public void setSilent(boolean silent) {
+        _silent = silent;
+    }
+
+    /**
+     * Returns the number of clients that are connected.
+     *
+     * @return Number of clients
+     */
+    public int getClientCount() {
+        return _clients.size();
+    }
+
+    /**
+     * Returns the number of PRIVMSG lines received from clients that were
+     * within the flood limit.
+     *
+     * @return Number of messages received
+     */
+    public long getReceivedMessageCount() {
+        return _received.get();
+    }
+
+    /**
+     * Returns the number of messages written by the load generator.
+     *
+     * @return Number of generated messages
+     */
+    public long getGeneratedMessageCount() {
+        return _sent.get();
+    }
+
+    /**
+     * Returns the number of messages from clients that were dropped for going
+     * over the flood limit.
+     *
+     * @return Number of dropped messages
+     */
+    public long getFloodViolationCount() {
+        return _floodViolations.get();
+    }
+
+    /**
+     * Sends a raw line to every client that has logged in.
+     *
+     * @param line The line, without the "\r\n"
+     */
+    public void sendToAll(String line) {
+        for (Client client : _clients) {
+            if (client._nick != null) {
+                client.send(line);
+            }
+        }
+    }
+
+    /**
+     * Sends a PING to every client.
+     */
+    public void sendPing() {
+        sendToAll("PING :" + HOST);
+    }
+
+    /**
+     * Asks every client to reconnect, as Twitch does before a restart.
+     */
+    public void sendReconnect() {
+        sendToAll(":" + HOST + " RECONNECT");
+    }
+
+    /**
+     * Clears the chat of a channel.
+     *
+     * @param channel Name of the channel
+     */
+    public void clearChat(String channel) {
+        sendToChannel(channel, "@room-id=1;tmi-sent-ts=" + System.currentTimeMillis() + " :" + HOST + " CLEARCHAT " + channel);
+    }
+
+    /**
+     * Times out a user in a channel.
+     *
+     * @param channel Name of the channel
+     * @param nick Nick of the user
+     * @param seconds Length of the time out
+     */
+    public void timeout(String channel, String nick, int seconds) {
+        sendToChannel(channel, "@ban-duration=" + seconds + ";room-id=1;target-user-id=2;tmi-sent-ts=" + System.currentTimeMillis()
+                + " :" + HOST + " CLEARCHAT " + channel + " :" + nick);
+    }
+
+    /**
+     * Changes the slow mode of a channel.
+     *
+     * @param channel Name of the channel
+     * @param slow Seconds between messages, or 0 to turn slow mode off
+     */
+    public void setSlow(String channel, int slow) {
+        sendToChannel(channel, "@room-id=1;slow=" + slow + " :" + HOST + " ROOMSTATE " + channel);
+    }
+
+    private void sendToChannel(String channel, String line) {
+        channel = channel.toLowerCase();
+        for (Client client : _clients) {
+            if (client._channels.contains(channel)) {
+                client.send(line);
+            }
+        }
+    }
+
+    /**
+     * Starts generating chat, replacing any load that was already being
+     * generated. Messages go to the channels #load0, #load1 and so on, from
+     * the users user0, user1 and so on, and only reach clients that joined
+     * the channel.
+     *
+     * @param channels Number of channels
+     * @param users Number of users per channel
+     * @param messagesPerSecond Total number of messages per second
+     */
+    public void startLoad(int channels, int users, int messagesPerSecond) {
+        if (channels < 1 || users < 1 || messagesPerSecond < 1) {
+            throw new IllegalArgumentException("Cannot generate load without channels, users or messages.");
+        }
+        stopLoad();
+        Thread thread = new Thread(() -> generate(channels, users, messagesPerSecond), "Pirc-LocalServer-Load");
+        thread.setDaemon(true);
+        _loadThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops generating chat.
+     */
+    public void stopLoad() {
+        Thread thread = _loadThread;
+        _loadThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void generate(int channels, int users, int messagesPerSecond) {
+        long interval = 1000000000L / messagesPerSecond;
+        long next = System.nanoTime();
+        long count = 0;
+        try {
+            while (_loadThread == Thread.currentThread()) {
+                long now = System.nanoTime();
+                // Write every message that is due, then wait for the next.
+                while (next <= now) {
+                    int channel = (int) (count % channels);
+                    long user = (count / channels) % users;
+                    String nick = "user" + user;
+                    sendToChannel("#load" + channel, "@badges=;color=#1E90FF;display-name=" + nick + ";emotes=;id=" + count
+                            + ";mod=0;room-id=" + (channel + 1) + ";subscriber=0;tmi-sent-ts=" + System.currentTimeMillis()
+                            + ";turbo=0;user-id=" + (user + 1000) + ";user-type=;pirc-sent-ns=" + System.nanoTime()
+                            + " :" + nick + "!" + nick + "@" + nick + "." + HOST + " PRIVMSG #load" + channel + " :message number " + count);
+                    _sent.incrementAndGet();
+                    count++;
+                    next += interval;
+                }
+                for (Client client : _clients) {
+                    client.flush();
+                }
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stop generating load.
+        }
+    }
+
+    /**
+     * Stops the server and disconnects every client.
+     */
+    @Override
+    public void close() {
+        _closed = true;
+        stopLoad();
+        try {
+            _serverSocket.close();
+        } catch (IOException e) {
+            // Already closed.
+        }
+        for (Client client : _clients) {
+            client.close();
+        }
+    }
+
+    private void accept() {
+        while (!_closed) {
+            try {
+                Socket socket = _serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                _clients.add(client);
+                Thread thread = new Thread(client, "Pirc-LocalServer-Client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // Closed, or a client gave up before we got to it.
+            }
+        }
+    }
+
+    private final class Client implements Runnable {
+
+        private final Socket _socket;
+        private final OutputStream _out;
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final StringBuilder _pending = new StringBuilder();
+        private final Set<String> _channels = ConcurrentHashMap.newKeySet();
+        private final ArrayDeque<Long> _sentTimes = new ArrayDeque<>();
+        private volatile String _nick = null;
+
+        Client(Socket socket) throws IOException {
+            _socket = socket;
+            _out = socket.getOutputStream();
+        }
+
+        /**
+         * Queues a line, which goes out with the next flush.
+         */
+        void queue(String line) {
+            _lock.lock();
+            try {
+                _pending.append(line).append("\r\n");
+            } finally {
+                _lock.unlock();
+            }
+        }
+
+        void send(String line) {
+            queue(line);
+            flush();
+        }
+
+        void flush() {
+            _lock.lock();
+            try {
+                if (_pending.length() == 0 || _silent) {
+                    return;
+                }
+                _out.write(_pending.toString().getBytes(StandardCharsets.UTF_8));
+                _out.flush();
+            } catch (IOException e) {
+                close();
+            } finally {
+                _pending.setLength(0);
+                _lock.unlock();
+            }
+        }
+
+        void close() {
+            _clients.remove(this);
+            try {
+                _socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(_socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    handle(new IrcMessage(line));
+                }
+            } catch (IOException e) {
+                // The client went away.
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(IrcMessage message) {
+            if (_silent) {
+                return;
+            }
+            String command = message.getCommand().toUpperCase();
+            String nick = _nick;
+            switch (command) {
+                case "NICK":
+                    login(message.getParam(0));
+                    break;
+                case "CAP":
+                    send(":" + HOST + " CAP * ACK :" + message.getParam(message.getParamCount() - 1));
+                    break;
+                case "PING":
+                    send(":" + HOST + " PONG " + HOST + " :" + message.getParam(0));
+                    break;
+                case "JOIN":
+                    for (String channel : message.getParam(0).split(",")) {
+                        join(nick, channel.toLowerCase());
+                    }
+                    break;
+                case "PART":
+                    String channel = message.getParam(0).toLowerCase();
+                    if (_channels.remove(channel)) {
+                        send(":" + nick + "!" + nick + "@" + nick + "." + HOST + " PART " + channel);
+                    }
+                    break;
+                case "PRIVMSG":
+                    privmsg(nick, message.getParam(0).toLowerCase(), message.getParam(1));
+                    break;
+                case "QUIT":
+                    close();
+                    break;
+                default:
+                    // PASS, USER, PONG and anything else need no answer.
+                    break;
+            }
+        }
+
+        private void login(String nick) {
+            if (_nicksInUse.contains(nick.toLowerCase())) {
+                send(":" + HOST + " 433 * " + nick + " :Nickname is already in use");
+                return;
+            }
+            _nick = nick;
+            queue(":" + HOST + " 001 " + nick + " :Welcome, GLHF!");
+            queue(":" + HOST + " 002 " + nick + " :Your host is " + HOST);
+            queue(":" + HOST + " 003 " + nick + " :This server is rather new");
+            queue(":" + HOST + " 004 " + nick + " :-");
+            queue(":" + HOST + " 375 " + nick + " :-");
+            queue(":" + HOST + " 372 " + nick + " :You are in a maze of twisty passages, all alike.");
+            queue(":" + HOST + " 376 " + nick + " :>");
+            flush();
+        }
+
+        private void join(String nick, String channel) {
+            if (nick == null || !_channels.add(channel)) {
+                return;
+            }
+            String prefix = ":" + nick + "!" + nick + "@" + nick + "." + HOST;
+            queue(prefix + " JOIN " + channel);
+            queue(":" + nick + "." + HOST + " 353 " + nick + " = " + channel + " :" + nick);
+            queue(":" + nick + "." + HOST + " 366 " + nick + " " + channel + " :End of /NAMES list");
+            queue("@badge-info=;badges=;color=;display-name=" + nick + ";emote-sets=0;mod=0;subscriber=0;user-type= :"
+                    + HOST + " USERSTATE " + channel);
+            queue("@emote-only=0;followers-only=-1;r9k=0;room-id=1;slow=0;subs-only=0 :" + HOST + " ROOMSTATE " + channel);
+            flush();
+        }
+
+        private void privmsg(String nick, String channel, String text) {
+            if (nick == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            while (!_sentTimes.isEmpty() && _sentTimes.peekFirst() <= now - _floodPeriod) {
+                _sentTimes.pollFirst();
+            }
+            if (_sentTimes.size() >= _floodMessages) {
+                _floodViolations.incrementAndGet();
+                send("@msg-id=msg_ratelimit :" + HOST + " NOTICE " + channel + " :Your message was not sent because you are sending messages too quickly.");
+                return;
+            }
+            _sentTimes.addLast(now);
+            _received.incrementAndGet();
+            String line = "@display-name=" + nick + ";tmi-sent-ts=" + now + " :" + nick + "!" + nick + "@" + nick + "." + HOST
+                    + " PRIVMSG " + channel + " :" + text;
+            for (Client client : _clients) {
+                if (client != this && client._channels.contains(channel)) {
+                    client.send(line);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package PircBot;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Connects PircBots to a LocalIrcServer, which the other tests rely on.
+ */
+class LocalIrcServerTest {
+
+    private static PircBot newBot(String nick) {
+        PircBot bot = new PircBot() {
+        };
+        bot.setName(nick);
+        bot.setVerbose(false);
+        return bot;
+    }
+
+    @Test
+    void joinsAndReceivesMessages() throws Exception {
+        try (LocalIrcServer server = new LocalIrcServer()) {
+            PircBot bot = newBot("listener");
+            PircBot other = newBot("talker");
+            CountDownLatch received = new CountDownLatch(3);
+            bot.getListenerManager().addListener(event -> received.countDown(), "#test", EventType.MESSAGE);
+            try {
+                bot.connect("127.0.0.1", server.getPort());
+                other.connect("127.0.0.1", server.getPort());
+                CountDownLatch joined = new CountDownLatch(2);
+                IrcListener onJoin = event -> joined.countDown();
+                bot.getListenerManager().addListener(onJoin, EventType.JOIN);
+                other.getListenerManager().addListener(onJoin, EventType.JOIN);
+                bot.joinChannel("#test");
+                other.joinChannel("#test");
+                assertTrue(joined.await(5, TimeUnit.SECONDS));
+                for (int i = 0; i < 3; i++) {
+                    other.sendRawLine("PRIVMSG #test :hello " + i);
+                }
+                assertTrue(received.await(5, TimeUnit.SECONDS));
+                assertEquals(3, server.getReceivedMessageCount());
+            } finally {
+                bot.dispose();
+                other.dispose();
+            }
+        }
+    }
+
+    @Test
+    void seamlessReconnectDeliversEveryMessageOnceAndInOrder() throws Exception {
+        try (LocalIrcServer server = new LocalIrcServer()) {
+            PircBot bot = newBot("listener");
+            InMemoryMetrics metrics = new InMemoryMetrics();
+            bot.setMetrics(metrics);
+            ReconnectSupervisor supervisor = new ReconnectSupervisor();
+            supervisor.setSeamless(true);
+            supervisor.setBackoff(1, 1);
+            bot.setReconnectSupervisor(supervisor);
+            List<Long> numbers = new ArrayList<>();
+            AtomicInteger handling = new AtomicInteger();
+            AtomicBoolean overlapped = new AtomicBoolean();
+            bot.getListenerManager().addListener(event -> {
+                if (handling.incrementAndGet() > 1) {
+                    overlapped.set(true);
+                }
+                String text = event.getMessage().getParam(1);
+                long number = Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+                synchronized (numbers) {
+                    numbers.add(number);
+                }
+                // Handling slowly gives the new connection the chance to
+                // overtake the old one while both are reading.
+                LockSupport.parkNanos(1000000);
+                handling.decrementAndGet();
+            }, "#load0", EventType.MESSAGE);
+            try {
+                CountDownLatch joined = new CountDownLatch(1);
+                bot.getListenerManager().addListener(event -> joined.countDown(), EventType.JOIN);
+                bot.connect("127.0.0.1", server.getPort());
+                bot.joinChannel("#load0");
+                assertTrue(joined.await(5, TimeUnit.SECONDS));
+                server.startLoad(1, 10, 500);
+                Thread.sleep(200);
+                server.sendReconnect();
+                long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+                while (metrics.getHandovers() == 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(1, metrics.getHandovers());
+                // Let the new connection deliver for a while on its own.
+                Thread.sleep(300);
+                server.stopLoad();
+                Thread.sleep(200);
+            } finally {
+                bot.dispose();
+                supervisor.shutdown();
+            }
+            assertFalse(overlapped.get(), "Lines were handled by both connections at once");
+            synchronized (numbers) {
+                assertTrue(numbers.size() > 200, "Only " + numbers.size() + " messages arrived");
+                for (int i = 1; i < numbers.size(); i++) {
+                    assertEquals(numbers.get(i - 1) + 1, numbers.get(i), "Message " + i + " out of order or duplicated");
+                }
+            }
+        }
+    }
+
+    @Test
+    void refusesNickInUse() throws Exception {
+        try (LocalIrcServer server = new LocalIrcServer()) {
+            server.setNickInUse("taken");
+            PircBot bot = newBot("taken");
+            assertThrows(NickAlreadyInUseException.class, () -> bot.connect("127.0.0.1", server.getPort()));
+        }
+    }
+
+}